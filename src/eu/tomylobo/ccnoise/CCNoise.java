@@ -5,6 +5,7 @@ import eu.tomylobo.ccnoise.common.BlockSpeaker;
 import eu.tomylobo.ccnoise.common.PacketManager;
 import eu.tomylobo.ccnoise.common.SoundSystemUtils;
 import eu.tomylobo.ccnoise.common.TileEntitySpeaker;
+import eu.tomylobo.expression.runtime.LoopUnrolling;
 
 import net.minecraft.block.Block;
 import net.minecraft.creativetab.CreativeTabs;
@@ -42,6 +43,12 @@ public class CCNoise {
 		public static boolean allowPlayRegularSounds = true;
 		public static boolean allowGenerateSounds = true;
 		public static boolean allowGenerateGlobalSounds = true;
+		public static int expressionCacheSize = 256;
+		public static int maxUnrolledIterations = 16;
+		public static int globalBufferPages = 256;
+		public static int soundCacheMemory = 64;
+		public static boolean soundCacheDisk = true;
+		public static int soundCacheDiskSize = 256;
 	}
 
 	@Mod.Instance("CCNoise")
@@ -92,7 +99,16 @@ public class CCNoise {
 		Config.allowGenerateSounds = configFile.get("speaker", "allowGenerateSounds", Config.allowGenerateSounds, "Enable the speaker.generate* functions.").getBoolean(Config.allowGenerateSounds);
 		Config.allowGenerateGlobalSounds = configFile.get("speaker", "allowGenerateGlobalSounds", Config.allowGenerateGlobalSounds, "Allow the speaker.generate* functions to generate globally accessible sounds and potentially override existing sounds.").getBoolean(Config.allowGenerateGlobalSounds);
 
+		Config.expressionCacheSize = configFile.get("speaker", "expressionCacheSize", Config.expressionCacheSize, "The number of compiled expressions to keep around for repeated speaker.eval and speaker.generate* calls. 0 disables the cache.").getInt(Config.expressionCacheSize);
+		Config.maxUnrolledIterations = configFile.get("speaker", "maxUnrolledIterations", Config.maxUnrolledIterations, "Loops in expressions with up to this many iterations are replaced by copies of their body. 0 disables loop unrolling.").getInt(Config.maxUnrolledIterations);
+		Config.globalBufferPages = configFile.get("speaker", "globalBufferPages", Config.globalBufferPages, "The number of pages of 1024 values (8 KiB each) that gmegabuf may use in each dimension.").getInt(Config.globalBufferPages);
+		Config.soundCacheMemory = configFile.get("client", "soundCacheMemory", Config.soundCacheMemory, "The amount of memory in MiB to use for keeping generated sounds around, so they don't have to be generated again.").getInt(Config.soundCacheMemory);
+		Config.soundCacheDisk = configFile.get("client", "soundCacheDisk", Config.soundCacheDisk, "Also store generated sounds in the ccnoise/sounds folder in the Minecraft directory.").getBoolean(Config.soundCacheDisk);
+		Config.soundCacheDiskSize = configFile.get("client", "soundCacheDiskSize", Config.soundCacheDiskSize, "The amount of disk space in MiB the ccnoise/sounds folder may use. The least recently used sounds are deleted first.").getInt(Config.soundCacheDiskSize);
+
 		configFile.save();
+
+		LoopUnrolling.setMaxIterations(Config.maxUnrolledIterations);
 	}
 
 	public static SoundSystemUtils ignore1 = new SoundSystemUtils();
@@ -0,0 +1,271 @@
+package eu.tomylobo.ccnoise.common;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.sound.sampled.AudioFormat;
+
+public class PcmCache {
+	// Bump this whenever a change to the expression parser or the sample generator changes the generated data
+	private static final int VERSION = 9;
+
+	// Files from other versions are deleted, since their keys can't be generated anymore
+	private static final String FILE_SUFFIX = "." + VERSION + ".pcm";
+
+	// Temporary files older than this were left behind by a crash
+	private static final long TEMP_FILE_AGE = 60 * 60 * 1000L;
+
+	private final long memoryBudget;
+	private final File directory;
+	private final long diskBudget;
+
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long memoryUsed = 0;
+
+	private final Object diskLock = new Object();
+	// -1 until the directory was scanned
+	private long diskUsed = -1;
+
+	/**
+	 * @param memoryBudget The number of bytes to keep in memory.
+	 * @param directory The directory for the disk tier or null to only keep sounds in memory.
+	 * @param diskBudget The number of bytes to keep on disk.
+	 */
+	public PcmCache(long memoryBudget, File directory, long diskBudget) {
+		this.memoryBudget = memoryBudget;
+		this.directory = directory;
+		this.diskBudget = diskBudget;
+	}
+
+	/**
+	 * @return a key identifying the data generated from the given expression, length and format.
+	 */
+	public static String getKey(String expression, double length, AudioFormat format) {
+		final String description = String.format("%d\n%s\n%d\n%d\n%d\n%b\n%d\n%s",
+				VERSION,
+				format.getEncoding(),
+				Float.floatToIntBits(format.getSampleRate()),
+				format.getSampleSizeInBits(),
+				format.getChannels(),
+				format.isBigEndian(),
+				Double.doubleToLongBits(length),
+				expression
+		);
+
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(description.getBytes("UTF-8"));
+
+			final StringBuilder key = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16));
+				key.append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Looks up the data for the given key, first in memory, then on disk.
+	 *
+	 * @return the cached data or null if there is none.
+	 */
+	public byte[] get(String key) {
+		synchronized (this) {
+			final byte[] data = memory.get(key);
+			if (data != null)
+				return data;
+		}
+
+		final byte[] data = readFile(key);
+		if (data == null)
+			return null;
+
+		putMemory(key, data);
+		return data;
+	}
+
+	/**
+	 * Stores the data for the given key in memory and on disk.
+	 * The data must not be modified afterwards.
+	 */
+	public void put(String key, byte[] data) {
+		putMemory(key, data);
+		writeFile(key, data);
+	}
+
+	private synchronized void putMemory(String key, byte[] data) {
+		if (data.length > memoryBudget)
+			return;
+
+		final byte[] previous = memory.put(key, data);
+		if (previous != null)
+			memoryUsed -= previous.length;
+		memoryUsed += data.length;
+
+		// Evict the least recently used sounds until everything fits again
+		final Iterator<byte[]> it = memory.values().iterator();
+		while (memoryUsed > memoryBudget) {
+			memoryUsed -= it.next().length;
+			it.remove();
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(directory, key + FILE_SUFFIX);
+	}
+
+	/**
+	 * Deletes the files of other versions and adds up the size of the rest.
+	 * Must be called with diskLock held.
+	 */
+	private void scanDirectory() {
+		if (diskUsed >= 0)
+			return;
+
+		diskUsed = 0;
+
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		final long now = System.currentTimeMillis();
+		for (File file : files) {
+			final String name = file.getName();
+			if (name.endsWith(FILE_SUFFIX)) {
+				diskUsed += file.length();
+			}
+			else if (name.endsWith(".pcm") || name.endsWith(".tmp") && now - file.lastModified() > TEMP_FILE_AGE) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files until the rest fits into the budget.
+	 * Must be called with diskLock held.
+	 */
+	private void evictFiles() {
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		// Reading a file touches it, so the modification time is the time of the last use
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				final long aTime = a.lastModified();
+				final long bTime = b.lastModified();
+				return aTime < bTime ? -1 : aTime > bTime ? 1 : 0;
+			}
+		});
+
+		for (File file : files) {
+			if (diskUsed <= diskBudget)
+				return;
+
+			if (!file.getName().endsWith(FILE_SUFFIX))
+				continue;
+
+			final long length = file.length();
+			if (file.delete())
+				diskUsed -= length;
+		}
+	}
+
+	private byte[] readFile(String key) {
+		if (directory == null)
+			return null;
+
+		synchronized (diskLock) {
+			scanDirectory();
+		}
+
+		final File file = getFile(key);
+		if (!file.isFile())
+			return null;
+
+		try {
+			final DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				final byte[] data = new byte[(int) file.length()];
+				in.readFully(data);
+				file.setLastModified(System.currentTimeMillis());
+				return data;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void writeFile(String key, byte[] data) {
+		if (directory == null || data.length > diskBudget)
+			return;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			return;
+
+		synchronized (diskLock) {
+			scanDirectory();
+		}
+
+		// Write to a temporary file first, so other readers never see a partial file
+		final File file = getFile(key);
+		final File tempFile = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(data);
+			}
+			finally {
+				out.close();
+			}
+
+			synchronized (diskLock) {
+				final long previousLength = file.length();
+				if (!tempFile.renameTo(file)) {
+					tempFile.delete();
+					return;
+				}
+
+				diskUsed += data.length - previousLength;
+				if (diskUsed > diskBudget)
+					evictFiles();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder("PcmCache[");
+		sb.append(memory.size()).append(" sounds, ");
+		sb.append(memoryUsed).append('/').append(memoryBudget).append(" bytes");
+		if (directory != null)
+			sb.append(", ").append(directory).append(' ').append(diskBudget).append(" bytes");
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,205 @@
+package eu.tomylobo.ccnoise.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import eu.tomylobo.expression.Expression;
+import eu.tomylobo.expression.runtime.EvaluationException;
+import eu.tomylobo.expression.runtime.Frame;
+import eu.tomylobo.expression.runtime.GlobalMegabuf;
+import eu.tomylobo.expression.runtime.LValue;
+import eu.tomylobo.expression.runtime.RangeAnalysis;
+
+public class SampleGenerator {
+	private static final int CHUNK_SIZE = 4096;
+
+	// Number of samples rendered by each parallel task
+	private static final int TASK_SIZE = 16 * CHUNK_SIZE;
+
+	// Number of copies of an expression specialized on the branches they take
+	private static final int MAX_SEGMENTS = 16;
+
+	// Number of chunks a copy has to render to make up for compiling it
+	private static final int MIN_SEGMENT_CHUNKS = 4;
+
+	private static final int threadCount = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService executor;
+
+	/**
+	 * Renders 16 bit little-endian mono PCM data from an expression of t and length.
+	 * Expressions that only depend on t and length are rendered on several threads.
+	 *
+	 * @param globalBuffer The buffer gmegabuf reads and writes
+	 */
+	public static byte[] generate(final Expression compiled, final double length, final GlobalMegabuf globalBuffer) throws Exception {
+		final int samples = (int) (TileEntitySpeaker.SAMPLE_RATE * length);
+		final byte[] data = new byte[samples*2];
+		final LValue lengthVariable = (LValue) compiled.getVariable("length", true);
+		final Expression[] segments = getSegments(compiled, lengthVariable, length, samples);
+
+		if (threadCount < 2 || samples <= TASK_SIZE || !compiled.isPure()) {
+			generate(compiled, segments, lengthVariable, length, globalBuffer, data, 0, samples);
+			return data;
+		}
+
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int start = 0; start < samples; start += TASK_SIZE) {
+			final int taskStart = start;
+			final int taskEnd = Math.min(start + TASK_SIZE, samples);
+			futures.add(getExecutor().submit(new Callable<Void>() {
+				@Override
+				public Void call() throws EvaluationException {
+					generate(compiled, segments, lengthVariable, length, globalBuffer, data, taskStart, taskEnd);
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		}
+		catch (ExecutionException e) {
+			for (Future<Void> future : futures) {
+				future.cancel(false);
+			}
+
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+
+			throw e;
+		}
+
+		return data;
+	}
+
+	/**
+	 * Finds the expression to render each chunk with.
+	 * Consecutive chunks in which the same conditionals always take the same branches are
+	 * rendered by a copy of the expression with these conditionals replaced by their branches.
+	 *
+	 * @return the expression for each chunk
+	 */
+	private static Expression[] getSegments(Expression compiled, LValue lengthVariable, double length, int samples) throws EvaluationException {
+		final Frame frame = compiled.newFrame();
+		lengthVariable.assign(frame, length);
+
+		final int chunks = (samples + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final Expression[] segments = new Expression[chunks];
+
+		int specialized = 0;
+		int segmentStart = 0;
+		RangeAnalysis segmentRange = null;
+		for (int chunk = 0; chunk <= chunks; ++chunk) {
+			RangeAnalysis range = null;
+			if (chunk < chunks) {
+				range = compiled.analyzeRange(frame, getTime(chunk * CHUNK_SIZE), getTime(Math.min((chunk + 1) * CHUNK_SIZE, samples) - 1));
+				if (segmentRange != null && range.hasSameBranches(segmentRange))
+					continue;
+			}
+
+			if (segmentRange != null) {
+				Expression segment = compiled;
+				if (segmentRange.hasDecidedBranches() && chunk - segmentStart >= MIN_SEGMENT_CHUNKS && specialized < MAX_SEGMENTS) {
+					segment = compiled.specializeTime(frame, getTime(segmentStart * CHUNK_SIZE), getTime(Math.min(chunk * CHUNK_SIZE, samples) - 1));
+					if (segment != compiled) {
+						segment.compileToBytecode();
+						++specialized;
+					}
+				}
+
+				Arrays.fill(segments, segmentStart, chunk, segment);
+			}
+
+			segmentStart = chunk;
+			segmentRange = range;
+		}
+
+		return segments;
+	}
+
+	private static double getTime(int sample) {
+		return sample / TileEntitySpeaker.SAMPLE_RATE;
+	}
+
+	/**
+	 * All segments use the same variables, so they can share a frame and the state of stateful expressions.
+	 */
+	private static void generate(Expression compiled, Expression[] segments, LValue lengthVariable, double length, GlobalMegabuf globalBuffer, byte[] data, int start, int end) throws EvaluationException {
+		final Frame frame = compiled.newFrame();
+		frame.setGlobalMegabuf(globalBuffer);
+		lengthVariable.assign(frame, length);
+
+		// Chunks of pure expressions that always return the same value don't need to be evaluated
+		final boolean pure = compiled.isPure();
+
+		final double[] t = new double[CHUNK_SIZE];
+		final double[] y = new double[CHUNK_SIZE];
+		for (int chunkStart = start; chunkStart < end; chunkStart += CHUNK_SIZE) {
+			final int count = Math.min(CHUNK_SIZE, end - chunkStart);
+			for (int i = 0; i < count; ++i) {
+				t[i] = getTime(chunkStart + i);
+			}
+
+			final Expression segment = segments[chunkStart / CHUNK_SIZE];
+			final RangeAnalysis range = segment.analyzeRange(frame, t[0], t[count - 1]);
+			if (pure && range.isConstant()) {
+				final short sample = toSample(range.getMin());
+				for (int i = 0; i < count; ++i) {
+					writeSample(data, chunkStart + i, sample);
+				}
+				continue;
+			}
+
+			segment.evaluateBlock(frame, t, y, 0, count);
+
+			if (range.isWithin(-1, 1)) {
+				// Clamping wouldn't change anything
+				for (int i = 0; i < count; ++i) {
+					writeSample(data, chunkStart + i, (short) (y[i] * Short.MAX_VALUE));
+				}
+			}
+			else {
+				for (int i = 0; i < count; ++i) {
+					writeSample(data, chunkStart + i, toSample(y[i]));
+				}
+			}
+		}
+	}
+
+	private static short toSample(double y) {
+		return (short) (Math.max(-1, Math.min(1, y)) * Short.MAX_VALUE);
+	}
+
+	private static void writeSample(byte[] data, int index, short sample) {
+		// Write sample in little-endian order, as that's the only order SoundSystem supports
+		data[index * 2    ] = (byte) ((sample >>> 0) & 0xFF);
+		data[index * 2 + 1] = (byte) ((sample >>> 8) & 0xFF);
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+				private int lastId;
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "CCNoise sample generator " + (++lastId));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return executor;
+	}
+}
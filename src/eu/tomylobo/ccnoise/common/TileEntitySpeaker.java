@@ -1,9 +1,12 @@
 package eu.tomylobo.ccnoise.common;
 
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.sound.sampled.AudioFormat;
 
@@ -14,13 +17,17 @@ import dan200.computer.api.IPeripheral;
 import eu.tomylobo.ccnoise.CCNoise;
 import eu.tomylobo.ccnoise.common.PacketManager.TileEntityPacketStream;
 import eu.tomylobo.expression.Expression;
+import eu.tomylobo.expression.ExpressionCache;
 import eu.tomylobo.expression.ExpressionException;
-import eu.tomylobo.expression.runtime.EvaluationException;
-import eu.tomylobo.expression.runtime.LValue;
+import eu.tomylobo.expression.runtime.Frame;
+import eu.tomylobo.expression.runtime.GlobalMegabuf;
+import eu.tomylobo.expression.runtime.Purity;
+import net.minecraft.client.Minecraft;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.network.INetworkManager;
 import net.minecraft.network.packet.Packet;
 import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.World;
 
 public class TileEntitySpeaker extends TileEntity implements IPeripheral, PacketManager.PacketHandler {
 	public static class SoundDescriptor {
@@ -49,6 +56,13 @@ public class TileEntitySpeaker extends TileEntity implements IPeripheral, Packet
 		}
 	}
 
+	private static final ExpressionCache expressionCache = new ExpressionCache(CCNoise.Config.expressionCacheSize);
+
+	private static PcmCache pcmCache;
+
+	// gmegabuf of each world, shared by all computers and generator threads in it. Dropped along with unloaded worlds.
+	private static final Map<World, GlobalMegabuf> globalBuffers = new WeakHashMap<World, GlobalMegabuf>();
+
 	private static int lastId;
 	private final int id;
 
@@ -66,6 +80,7 @@ public class TileEntitySpeaker extends TileEntity implements IPeripheral, Packet
 		"playSound",
 		"eval",
 		"generateFunctional",
+		"getGlobalBufferUsage",
 	};
 	public static final double SAMPLE_RATE = 44100;
 	private static final byte ID_GENERATE_FUNCTIONAL = (byte) -1;
@@ -92,9 +107,12 @@ public class TileEntitySpeaker extends TileEntity implements IPeripheral, Packet
 		case 1: { // eval
 			final String expression = args[0].toString();
 
-			final Expression compiled = Expression.compile(expression);
+			final Expression compiled = expressionCache.compile(expression);
 
-			return wrap(compiled.evaluate());
+			final Frame frame = compiled.newFrame();
+			frame.setGlobalMegabuf(getGlobalBuffer());
+
+			return wrap(compiled.evaluate(frame));
 		}
 
 		case 2: { // generateFunctional
@@ -119,6 +137,12 @@ public class TileEntitySpeaker extends TileEntity implements IPeripheral, Packet
 
 			return wrap();
 		}
+
+		case 3: { // getGlobalBufferUsage
+			final GlobalMegabuf globalBuffer = getGlobalBuffer();
+
+			return wrap(globalBuffer.getPageCount(), globalBuffer.getMaxPages());
+		}
 		}
 
 		return wrap();
@@ -203,23 +227,23 @@ public class TileEntitySpeaker extends TileEntity implements IPeripheral, Packet
 	}
 
 	public void generateFunctional(String soundName, String expression, double length) throws Exception {
+		final AudioFormat format = new AudioFormat((float) SAMPLE_RATE, 16, 1, true, false);
 		final Expression compiled = compileFunctional(expression);
-		((LValue) compiled.getVariable("length", true)).assign(length);
 
-		final int samples = (int) (SAMPLE_RATE * length);
+		// Sounds using random numbers are different every time
+		final boolean cacheable = compiled.getPurity() != Purity.NONDETERMINISTIC;
+		final String cacheKey = cacheable ? PcmCache.getKey(expression, length, format) : null;
 
-		final byte[] data = new byte[samples*2];
-		for (int i = 0; i < samples; ++i) {
-			final double t = i / SAMPLE_RATE;
-			final double y = Math.max(-1, Math.min(1, compiled.evaluate(t)));
-			final short sample = (short) (y * Short.MAX_VALUE);
+		byte[] data = cacheable ? getPcmCache().get(cacheKey) : null;
+		if (data == null) {
+			// Fold everything that only depends on the length
+			final Expression specialized = compileFunctional(expression, length);
+			data = SampleGenerator.generate(specialized, length, getGlobalBuffer());
 
-			// Write sample in little-endian order, as that's the only order SoundSystem supports
-			data[i * 2    ] = (byte) ((sample >>> 0) & 0xFF);
-			data[i * 2 + 1] = (byte) ((sample >>> 8) & 0xFF);
+			if (cacheable)
+				getPcmCache().put(cacheKey, data);
 		}
 
-		final AudioFormat format = new AudioFormat((float) SAMPLE_RATE, 16, 1, true, false);
 		SoundSystemUtils.addSound(soundName, data, format);
 
 
@@ -231,10 +255,37 @@ public class TileEntitySpeaker extends TileEntity implements IPeripheral, Packet
 	}
 
 
-	public Expression compileFunctional(String expression) throws ExpressionException, EvaluationException {
-		final Expression compiled = Expression.compile(expression, "t", "length");
-		compiled.optimize();
-		return compiled;
+	public Expression compileFunctional(String expression) throws ExpressionException {
+		return expressionCache.compile(expression, "t", "length");
+	}
+
+	public Expression compileFunctional(String expression, double length) throws ExpressionException {
+		return expressionCache.specialize(expression, Collections.singletonMap("length", length), "t", "length");
+	}
+
+	private GlobalMegabuf getGlobalBuffer() {
+		// Each dimension has its own world
+		synchronized (globalBuffers) {
+			GlobalMegabuf globalBuffer = globalBuffers.get(this.worldObj);
+			if (globalBuffer == null) {
+				globalBuffers.put(this.worldObj, globalBuffer = new GlobalMegabuf(CCNoise.Config.globalBufferPages));
+			}
+
+			return globalBuffer;
+		}
+	}
+
+	public static ExpressionCache getExpressionCache() {
+		return expressionCache;
+	}
+
+	public static synchronized PcmCache getPcmCache() {
+		if (pcmCache == null) {
+			final File directory = CCNoise.Config.soundCacheDisk ? new File(Minecraft.getMinecraftDir(), "ccnoise/sounds") : null;
+			pcmCache = new PcmCache(CCNoise.Config.soundCacheMemory * 1024L * 1024L, directory, CCNoise.Config.soundCacheDiskSize * 1024L * 1024L);
+		}
+
+		return pcmCache;
 	}
 
 	public String mapSoundName(String soundName, int computerId, boolean allowGlobalSounds) throws Exception {
@@ -0,0 +1,97 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression;
+
+import eu.tomylobo.expression.runtime.EvaluationException;
+import eu.tomylobo.expression.runtime.Frame;
+
+/**
+ * Evaluates an expression sample by sample, created by {@link Expression#bind(double)}.
+ *
+ * The first variable is the time, which advances by one sample with each call to {@link #next()}.
+ * The other variables keep their values between samples and can be changed with {@link #set(int, double)}.
+ * Unlike {@link Expression#evaluate(Frame, double...)}, evaluating a sample doesn't allocate anything,
+ * unless the expression calls functions registered through reflection.
+ *
+ * @author TomyLobo
+ */
+public final class BoundExpression {
+    private final Expression expression;
+    private final Frame frame;
+    private final int variableCount;
+    private final double sampleRate;
+
+    private double start = 0;
+    private long sample = 0;
+
+    BoundExpression(Expression expression, Frame frame, int variableCount, double sampleRate) {
+        this.expression = expression;
+        this.frame = frame;
+        this.variableCount = variableCount;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the time of the next sample.
+     */
+    public void setT(double t) {
+        start = t;
+        sample = 0;
+    }
+
+    /**
+     * @return the time of the next sample
+     */
+    public double getT() {
+        // Counting samples instead of adding up the sample length doesn't accumulate rounding errors.
+        return start + sample / sampleRate;
+    }
+
+    /**
+     * Sets one of the other variables passed to compile.
+     *
+     * @param index The position of the variable in the list passed to compile
+     */
+    public void set(int index, double value) {
+        if (index <= 0 || index >= variableCount) {
+            throw new IndexOutOfBoundsException("Tried to set variable " + index + " of an expression with " + variableCount + " variables.");
+        }
+
+        frame.values[index] = value;
+    }
+
+    /**
+     * Evaluates the expression for the next sample.
+     *
+     * @return the value of the expression
+     */
+    public double next() throws EvaluationException {
+        frame.values[0] = getT();
+        ++sample;
+
+        return expression.evaluateFrame(frame);
+    }
+
+    /**
+     * @return the frame holding the variables
+     */
+    public Frame getFrame() {
+        return frame;
+    }
+}
@@ -21,16 +21,25 @@ package eu.tomylobo.expression;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import eu.tomylobo.expression.lexer.Lexer;
 import eu.tomylobo.expression.lexer.tokens.Token;
 import eu.tomylobo.expression.parser.Parser;
+import eu.tomylobo.expression.runtime.BlockEvaluator;
+import eu.tomylobo.expression.runtime.BytecodeCompiler;
+import eu.tomylobo.expression.runtime.CommonSubexpressions;
 import eu.tomylobo.expression.runtime.Constant;
+import eu.tomylobo.expression.runtime.ControlFlow;
 import eu.tomylobo.expression.runtime.EvaluationException;
-import eu.tomylobo.expression.runtime.Functions;
+import eu.tomylobo.expression.runtime.Frame;
+import eu.tomylobo.expression.runtime.LoopInvariants;
+import eu.tomylobo.expression.runtime.Purity;
+import eu.tomylobo.expression.runtime.PurityAnalysis;
 import eu.tomylobo.expression.runtime.RValue;
+import eu.tomylobo.expression.runtime.RangeAnalysis;
+import eu.tomylobo.expression.runtime.RegisterCompiler;
 import eu.tomylobo.expression.runtime.ReturnException;
+import eu.tomylobo.expression.runtime.Specialization;
 import eu.tomylobo.expression.runtime.Variable;
 
 /**
@@ -48,22 +57,38 @@ import eu.tomylobo.expression.runtime.Variable;
  *
  * To compile an equation, run <code>Expression.compile("expression here", "var1", "var2"...)</code>
  * If you wish to run the equation multiple times, you can then optimize it, by calling myExpression.optimize();
+ * If some variables have the same value for many evaluations, myExpression.specialize(values) makes an
+ * optimized copy with these variables replaced by constants.
+ * After optimizing, myExpression.compileToBytecode() turns the expression into a JVM class, which is faster for many evaluations.
+ * Alternatively, myExpression.compileToRegisters() turns it into a compact program for a register machine, without generating classes.
  * You can then run the equation as many times as you want by calling myExpression.evaluate(var1, var2...)
+ * To evaluate it for many values of the first variable at once, use myExpression.evaluateBlock(values, results, offset, count)
+ * To evaluate it sample by sample, bind it with myExpression.bind(sampleRate) and call next() on the returned handle.
  * You do not need to pass values for all variables specified while compiling.
  * To query variables after evaluation, you can use myExpression.getVariable("variable name").
- * To get a value out of these, use myVariable.getValue()
+ * To get a value out of these, use myVariable.getValue(myExpression.getFrame())
+ * The variables' values are stored in a {@link Frame}. To evaluate the same expression with several
+ * independent sets of variables, create more frames with myExpression.newFrame() and pass them to evaluate.
+ * Once it's optimized (and compiled), an expression can be shared by several threads, as long as each one
+ * uses its own frame. The methods that don't take a frame use the expression's own frame and aren't thread-safe.
+ * An {@link ExpressionCache} keeps optimized expressions around, so the same source isn't parsed over and over.
  *
  * Variables are also supported and can be set either by passing values to <code>evaluate</code>
  *
  * @author TomyLobo
  */
 public class Expression {
-    private static final ThreadLocal<Stack<Expression>> instance = new ThreadLocal<Stack<Expression>>();
-
+    private final List<Token> tokens;
     private final Map<String, RValue> variables = new HashMap<String, RValue>();
     private final String[] variableNames;
-    private RValue root;
-    private final Functions functions = new Functions();
+    private int slotCount = 0;
+    private volatile RValue root;
+    private Frame frame;
+
+    /**
+     * Splitting and compiling the tree for block evaluation is expensive, so all frames share the evaluator.
+     */
+    private volatile BlockEvaluator blockEvaluator;
 
     public static Expression compile(String expression, String... variableNames) throws ExpressionException {
         return new Expression(expression, variableNames);
@@ -74,6 +99,7 @@ public class Expression {
     }
 
     private Expression(List<Token> tokens, String... variableNames) throws ExpressionException {
+        this.tokens = tokens;
         this.variableNames = variableNames;
 
         variables.put("e", new Constant(-1, Math.E));
@@ -85,35 +111,238 @@ public class Expression {
             if (variables.containsKey(variableName)) {
                 throw new ExpressionException(-1, "Tried to overwrite identifier '" + variableName + "'");
             }
-            variables.put(variableName, new Variable(0));
+            variables.put(variableName, new Variable(slotCount++));
         }
 
         root = Parser.parse(tokens, this);
+        ControlFlow.prepare(root);
+        frame = newFrame();
+    }
+
+    /**
+     * Creates an expression with a different tree that shares the variables of the given one.
+     */
+    private Expression(Expression parent, RValue root) {
+        tokens = parent.tokens;
+        variableNames = parent.variableNames;
+        variables.putAll(parent.variables);
+        slotCount = parent.slotCount;
+
+        ControlFlow.prepare(root);
+        this.root = root;
+        frame = newFrame();
     }
 
     public double evaluate(double... values) throws EvaluationException {
-        for (int i = 0; i < values.length; ++i) {
-            final String variableName = variableNames[i];
-            final RValue invokable = variables.get(variableName);
-            if (!(invokable instanceof Variable)) {
-                throw new EvaluationException(invokable.getPosition(), "Tried to assign constant " + variableName + ".");
-            }
+        return evaluate(getFrame(), values);
+    }
 
-            ((Variable) invokable).value = values[i];
+    /**
+     * Evaluates the expression with the given frame.
+     *
+     * @param frame A frame created by {@link #newFrame()}
+     * @param values Values for the variables passed to compile, in the same order
+     */
+    public double evaluate(Frame frame, double... values) throws EvaluationException {
+        if (values.length > variableNames.length) {
+            throw new EvaluationException(-1, "Tried to pass " + values.length + " values to an expression with " + variableNames.length + " variables.");
         }
 
-        pushInstance();
+        // The variables passed to compile occupy the first slots.
+        System.arraycopy(values, 0, frame.values, 0, values.length);
+
+        return evaluateFrame(frame);
+    }
+
+    /**
+     * Evaluates the expression with the values already in the frame.
+     */
+    double evaluateFrame(Frame frame) throws EvaluationException {
         try {
-            return root.getValue();
+            return frame.finish(root.getValue(frame));
         } catch (ReturnException e) {
             return e.getValue();
-        } finally {
-            popInstance();
         }
     }
 
+    /**
+     * Evaluates the expression for many values of the first variable.
+     * The other variables keep their current values.
+     *
+     * @param t The values for the first variable
+     * @param out Receives the results. out[offset + i] is the result for t[offset + i]
+     * @param offset The first index to evaluate
+     * @param count The number of values to evaluate
+     */
+    public void evaluateBlock(double[] t, double[] out, int offset, int count) throws EvaluationException {
+        evaluateBlock(getFrame(), t, out, offset, count);
+    }
+
+    /**
+     * Evaluates the expression for many values of the first variable, using the given frame.
+     *
+     * @see #evaluateBlock(double[], double[], int, int)
+     */
+    public void evaluateBlock(Frame frame, double[] t, double[] out, int offset, int count) throws EvaluationException {
+        if (variableNames.length == 0) {
+            throw new EvaluationException(-1, "Tried to evaluate a block without variables.");
+        }
+
+        getBlockEvaluator().evaluate(frame, t, out, offset, count);
+    }
+
+    /**
+     * @return the block evaluator for the current tree
+     */
+    private BlockEvaluator getBlockEvaluator() {
+        final RValue root = this.root;
+        BlockEvaluator ret = blockEvaluator;
+        if (ret != null && ret.getSource() == root) {
+            return ret;
+        }
+
+        synchronized (this) {
+            ret = blockEvaluator;
+            if (ret == null || ret.getSource() != root) {
+                blockEvaluator = ret = new BlockEvaluator(root, (Variable) variables.get(variableNames[0]));
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     * Creates a handle that evaluates the expression for consecutive samples, without allocating anything per sample.
+     * The first variable is the time.
+     *
+     * @param sampleRate The number of samples per unit of time
+     * @see #bind(Frame, double)
+     */
+    public BoundExpression bind(double sampleRate) throws EvaluationException {
+        return bind(newFrame(), sampleRate);
+    }
+
+    /**
+     * Creates a handle that evaluates the expression for consecutive samples with the given frame.
+     *
+     * @param frame A frame created by {@link #newFrame()}
+     * @param sampleRate The number of samples per unit of time
+     */
+    public BoundExpression bind(Frame frame, double sampleRate) throws EvaluationException {
+        if (variableNames.length == 0) {
+            throw new EvaluationException(-1, "Tried to bind an expression without variables.");
+        }
+
+        return new BoundExpression(this, frame, variableNames.length, sampleRate);
+    }
+
+    /**
+     * Classifies the expression and its subtrees by how much they depend on things other than
+     * the values passed to evaluate. The first variable is treated as the time.
+     */
+    public PurityAnalysis analyze() {
+        return new PurityAnalysis(root, variableNames.length == 0 ? null : (Variable) variables.get(variableNames[0]));
+    }
+
+    /**
+     * Finds the range of the results for time values between tMin and tMax.
+     * The other variables keep the values they have in the given frame.
+     * The first variable is treated as the time.
+     */
+    public RangeAnalysis analyzeRange(Frame frame, double tMin, double tMax) {
+        return new RangeAnalysis(root, frame, variableNames.length == 0 ? null : (Variable) variables.get(variableNames[0]), tMin, tMax);
+    }
+
+    /**
+     * @see #analyze()
+     */
+    public Purity getPurity() {
+        return analyze().getPurity();
+    }
+
+    /**
+     * An expression is pure if its result only depends on the values passed to evaluate.
+     * It may use variables, as long as it assigns them before reading them, but it must not
+     * use oscillators or call dynamic functions.
+     * Pure expressions can be evaluated out of order, for example by several threads.
+     */
+    public boolean isPure() {
+        return getPurity().compareTo(Purity.PURE) <= 0;
+    }
+
     public void optimize() throws EvaluationException {
-        root = root.optimize();
+        final RValue optimized = CommonSubexpressions.eliminate(LoopInvariants.hoist(root.optimize(), this), this);
+        ControlFlow.prepare(optimized);
+        root = optimized;
+    }
+
+    /**
+     * Creates an optimized copy of the expression that treats the given variables as constants,
+     * so everything that only depends on them is folded.
+     * Variables the expression assigns itself keep working like before.
+     * The copy still takes the same values in evaluate, but it ignores the ones for the replaced variables.
+     *
+     * @param values The values of some of the variables passed to compile, by name
+     */
+    public Expression specialize(Map<String, Double> values) throws ExpressionException {
+        final Expression specialized = new Expression(tokens, variableNames);
+
+        final Map<Variable, Double> knownValues = new HashMap<Variable, Double>();
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            final RValue variable = specialized.variables.get(entry.getKey());
+
+            // The variables passed to compile occupy the first slots.
+            if (!(variable instanceof Variable) || ((Variable) variable).getSlot() >= variableNames.length) {
+                throw new ExpressionException(-1, "Tried to specialize unknown variable '" + entry.getKey() + "'");
+            }
+
+            knownValues.put((Variable) variable, entry.getValue());
+        }
+
+        specialized.root = Specialization.substitute(specialized.root, knownValues);
+        specialized.optimize();
+
+        return specialized;
+    }
+
+    /**
+     * Creates a copy of the expression for time values between tMin and tMax.
+     * Conditionals that always take the same branch for these time values are replaced by that branch.
+     * The other variables are assumed to keep the values they have in the given frame, unless the expression assigns them.
+     * The copy uses the same variable slots, so a frame can be used with both expressions.
+     *
+     * @return the optimized copy or this expression if no conditional always takes the same branch
+     */
+    public Expression specializeTime(Frame frame, double tMin, double tMax) throws EvaluationException {
+        final RValue pruned = Specialization.prune(root, analyzeRange(frame, tMin, tMax));
+        if (pruned == root) {
+            return this;
+        }
+
+        // Only the tree is optimized again, so no temporary variables are added.
+        return new Expression(this, pruned.optimize());
+    }
+
+    /**
+     * Compiles the expression into a JVM class.
+     * Parts that can't be compiled keep running through the interpreter.
+     * If no class can be generated, the whole expression does.
+     */
+    public void compileToBytecode() {
+        final RValue compiled = BytecodeCompiler.compile(root);
+        ControlFlow.prepare(compiled);
+        root = compiled;
+    }
+
+    /**
+     * Compiles the expression into a compact program for a register machine.
+     * This doesn't load any classes at runtime, but it usually runs slower than a JVM class and isn't always faster than the interpreter.
+     * Parts that can't be compiled keep running through the interpreter.
+     */
+    public void compileToRegisters() {
+        final RValue compiled = RegisterCompiler.compile(root);
+        ControlFlow.prepare(compiled);
+        root = compiled;
     }
 
     @Override
@@ -124,36 +353,38 @@ public class Expression {
     public RValue getVariable(String name, boolean create) {
         RValue variable = variables.get(name);
         if (variable == null && create) {
-            variables.put(name, variable = new Variable(0));
+            variables.put(name, variable = new Variable(slotCount++));
         }
 
         return variable;
     }
 
-    public static Expression getInstance() {
-        return instance.get().peek();
+    /**
+     * Creates a variable without a name, for intermediate results.
+     */
+    public Variable newTemporary() {
+        return new Variable(slotCount++, true);
     }
 
-    private void pushInstance() {
-        Stack<Expression> foo = instance.get();
-        if (foo == null) {
-            instance.set(foo = new Stack<Expression>());
-        }
-
-        foo.push(this);
+    /**
+     * Creates a new frame for evaluating this expression.
+     * All variables start out as 0.
+     */
+    public Frame newFrame() {
+        return new Frame(slotCount);
     }
 
-    private void popInstance() {
-        Stack<Expression> foo = instance.get();
-
-        foo.pop();
-
-        if (foo.isEmpty()) {
-            instance.set(null);
+    /**
+     * @return the frame used by the evaluate methods that don't take one
+     */
+    public Frame getFrame() {
+        if (frame.values.length < slotCount) {
+            // Variables were created after the frame.
+            final Frame oldFrame = frame;
+            frame = newFrame();
+            System.arraycopy(oldFrame.values, 0, frame.values, 0, oldFrame.values.length);
         }
-    }
 
-    public Functions getFunctions() {
-        return functions;
+        return frame;
     }
 }
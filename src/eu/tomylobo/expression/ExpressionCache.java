@@ -0,0 +1,185 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used optimized expressions, so compiling the same source again is cheap.
+ * Specializations of an expression on known variable values are kept alongside it.
+ *
+ * The cached expressions are shared, so they must only be evaluated with frames from
+ * {@link Expression#newFrame()}, never with the methods that use the expression's own frame.
+ *
+ * @author TomyLobo
+ */
+public class ExpressionCache {
+    private final int capacity;
+    private final Map<Key, Expression> expressions;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity The number of expressions to keep. 0 disables the cache.
+     */
+    public ExpressionCache(final int capacity) {
+        this.capacity = capacity;
+
+        expressions = new LinkedHashMap<Key, Expression>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Expression> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached expression for the given source and variable names or compiles and optimizes a new one.
+     * Expressions that fail to compile aren't cached.
+     *
+     * @see Expression#compile(String, String...)
+     */
+    public Expression compile(String source, String... variableNames) throws ExpressionException {
+        final Key key = new Key(source, variableNames, Collections.<String, Double>emptyMap());
+
+        final Expression cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Compile outside the lock, so other threads don't have to wait for it.
+        final Expression compiled = Expression.compile(source, variableNames);
+        compiled.optimize();
+
+        return put(key, compiled);
+    }
+
+    /**
+     * Returns the cached specialization of the given source on the given values or specializes the cached expression.
+     * The unspecialized expression is cached as well.
+     * Specializations are compiled to bytecode before they're cached, since they're made to be evaluated often.
+     *
+     * @see Expression#specialize(Map)
+     */
+    public Expression specialize(String source, Map<String, Double> values, String... variableNames) throws ExpressionException {
+        final Expression generic = compile(source, variableNames);
+        if (values.isEmpty()) {
+            return generic;
+        }
+
+        final Key key = new Key(source, variableNames, values);
+
+        final Expression cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Shared expressions must not change once they're cached, so this is the last chance to compile it.
+        final Expression specialized = generic.specialize(values);
+        specialized.compileToBytecode();
+
+        return put(key, specialized);
+    }
+
+    private synchronized Expression get(Key key) {
+        final Expression cached = expressions.get(key);
+        if (cached != null) {
+            ++hits;
+        }
+        else {
+            ++misses;
+        }
+
+        return cached;
+    }
+
+    /**
+     * @return the given expression or the one another thread put in the meantime
+     */
+    private synchronized Expression put(Key key, Expression compiled) {
+        if (capacity == 0) {
+            return compiled;
+        }
+
+        final Expression cached = expressions.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        expressions.put(key, compiled);
+        return compiled;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return expressions.size();
+    }
+
+    public synchronized void clear() {
+        expressions.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExpressionCache[" + expressions.size() + "/" + capacity + " expressions, " + hits + " hits, " + misses + " misses]";
+    }
+
+    private static final class Key {
+        private final String source;
+        private final String[] variableNames;
+        private final Map<String, Double> values;
+        private final int hashCode;
+
+        Key(String source, String[] variableNames, Map<String, Double> values) {
+            this.source = source;
+            this.variableNames = variableNames.clone();
+            this.values = new HashMap<String, Double>(values);
+            hashCode = (source.hashCode() * 31 + Arrays.hashCode(variableNames)) * 31 + values.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return source.equals(other.source) && Arrays.equals(variableNames, other.variableNames) && values.equals(other.values);
+        }
+    }
+}
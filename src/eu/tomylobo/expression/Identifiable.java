@@ -42,7 +42,7 @@ public interface Identifiable {
      * Nodes:
      * c - Constant
      * v - Variable
-     * f - Function
+     * f - Function, Operation
      * l - LValueFunction
      * s - Sequence
      * I - Conditional
@@ -52,6 +52,7 @@ public interface Identifiable {
      * b - Break (includes continue)
      * S - SimpleFor
      * C - Switch
+     * x - CompiledNode
      * </pre>
      */
     public abstract char id();
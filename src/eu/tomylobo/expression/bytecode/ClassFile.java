@@ -0,0 +1,299 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal class file writer.
+ *
+ * Only supports what the expression compiler needs: a constant pool,
+ * methods with a Code attribute and nothing else.
+ * Classes are written in version 49 (Java 5) format, so no stack map frames are required.
+ *
+ * @author TomyLobo
+ */
+public class ClassFile {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+    private final Map<String, Integer> constants = new HashMap<String, Integer>();
+    private int constantCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    /**
+     * Creates a new public final class.
+     *
+     * @param name The internal name of the class, i.e. with slashes instead of dots
+     * @param superName The internal name of the superclass
+     */
+    public ClassFile(String name, String superName) {
+        thisClass = classConstant(name);
+        superClass = classConstant(superName);
+    }
+
+    /**
+     * Adds a method to this class. The code must be complete at this point.
+     */
+    public void addMethod(int access, String name, String descriptor, Code code) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        final byte[] codeBytes = code.toByteArray();
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            out.writeShort(1); // attributes_count
+
+            out.writeShort(utf8Constant("Code"));
+            out.writeInt(12 + codeBytes.length);
+            out.writeShort(code.getMaxStack());
+            out.writeShort(code.getMaxLocals());
+            out.writeInt(codeBytes.length);
+            out.write(codeBytes);
+            out.writeShort(0); // exception_table_length
+            out.writeShort(0); // attributes_count
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        methods.add(bytes.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // minor_version
+            out.writeShort(49); // major_version
+
+            out.writeShort(constantCount);
+            constantPool.flush();
+            constantPoolBytes.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces_count
+            out.writeShort(0); // fields_count
+
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+
+            out.writeShort(0); // attributes_count
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public int utf8Constant(String value) {
+        final String key = "U" + value;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            constantPool.writeByte(CONSTANT_Utf8);
+            constantPool.writeUTF(value);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return addConstant(key, 1);
+    }
+
+    public int classConstant(String internalName) {
+        final String key = "C" + internalName;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        final int nameIndex = utf8Constant(internalName);
+        writeConstant(CONSTANT_Class, nameIndex);
+
+        return addConstant(key, 1);
+    }
+
+    public int stringConstant(String value) {
+        final String key = "S" + value;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        final int valueIndex = utf8Constant(value);
+        writeConstant(CONSTANT_String, valueIndex);
+
+        return addConstant(key, 1);
+    }
+
+    public int intConstant(int value) {
+        final String key = "I" + value;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            constantPool.writeByte(CONSTANT_Integer);
+            constantPool.writeInt(value);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return addConstant(key, 1);
+    }
+
+    public int longConstant(long value) {
+        final String key = "J" + value;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            constantPool.writeByte(CONSTANT_Long);
+            constantPool.writeLong(value);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return addConstant(key, 2);
+    }
+
+    public int doubleConstant(double value) {
+        // Key by the raw bits, so -0.0 and NaN get their own entries.
+        final long bits = Double.doubleToRawLongBits(value);
+        final String key = "D" + bits;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            constantPool.writeByte(CONSTANT_Double);
+            constantPool.writeLong(bits);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return addConstant(key, 2);
+    }
+
+    public int fieldConstant(String owner, String name, String descriptor) {
+        return memberConstant(CONSTANT_Fieldref, owner, name, descriptor);
+    }
+
+    public int methodConstant(String owner, String name, String descriptor) {
+        return memberConstant(CONSTANT_Methodref, owner, name, descriptor);
+    }
+
+    public int interfaceMethodConstant(String owner, String name, String descriptor) {
+        return memberConstant(CONSTANT_InterfaceMethodref, owner, name, descriptor);
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        final String key = "M" + tag + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        final int classIndex = classConstant(owner);
+        final int nameAndTypeIndex = nameAndTypeConstant(name, descriptor);
+        writeConstant(tag, classIndex, nameAndTypeIndex);
+
+        return addConstant(key, 1);
+    }
+
+    private int nameAndTypeConstant(String name, String descriptor) {
+        final String key = "N" + name + " " + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        final int nameIndex = utf8Constant(name);
+        final int descriptorIndex = utf8Constant(descriptor);
+        writeConstant(CONSTANT_NameAndType, nameIndex, descriptorIndex);
+
+        return addConstant(key, 1);
+    }
+
+    private void writeConstant(int tag, int... indices) {
+        try {
+            constantPool.writeByte(tag);
+            for (int index : indices) {
+                constantPool.writeShort(index);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int addConstant(String key, int size) {
+        final int index = constantCount;
+        constantCount += size;
+        if (constantCount > 0xFFFF) {
+            throw new IllegalStateException("Constant pool overflow.");
+        }
+
+        constants.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.bytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles the bytecode of a single method.
+ *
+ * Keeps track of the operand stack depth and the number of locals,
+ * so the caller doesn't have to compute max_stack and max_locals.
+ *
+ * @author TomyLobo
+ */
+public class Code {
+    public static final int ICONST_0 = 0x03;
+    public static final int ICONST_1 = 0x04;
+    public static final int LCONST_0 = 0x09;
+    public static final int DCONST_0 = 0x0e;
+    public static final int DCONST_1 = 0x0f;
+    public static final int ILOAD = 0x15;
+    public static final int DLOAD = 0x18;
+    public static final int ALOAD = 0x19;
+    public static final int DALOAD = 0x31;
+    public static final int AALOAD = 0x32;
+    public static final int ISTORE = 0x36;
+    public static final int DSTORE = 0x39;
+    public static final int ASTORE = 0x3a;
+    public static final int DASTORE = 0x52;
+    public static final int POP = 0x57;
+    public static final int POP2 = 0x58;
+    public static final int DUP = 0x59;
+    public static final int DUP_X1 = 0x5a;
+    public static final int DUP2 = 0x5c;
+    public static final int DUP2_X1 = 0x5d;
+    public static final int DUP2_X2 = 0x5e;
+    public static final int IADD = 0x60;
+    public static final int DADD = 0x63;
+    public static final int ISUB = 0x64;
+    public static final int DSUB = 0x67;
+    public static final int DMUL = 0x6b;
+    public static final int DDIV = 0x6f;
+    public static final int DREM = 0x73;
+    public static final int DNEG = 0x77;
+    public static final int LSHL = 0x79;
+    public static final int ISHR = 0x7a;
+    public static final int LSHR = 0x7b;
+    public static final int IUSHR = 0x7c;
+    public static final int IAND = 0x7e;
+    public static final int LXOR = 0x83;
+    public static final int IINC = 0x84;
+    public static final int I2D = 0x87;
+    public static final int L2I = 0x88;
+    public static final int L2D = 0x8a;
+    public static final int D2I = 0x8e;
+    public static final int D2L = 0x8f;
+    public static final int DCMPL = 0x97;
+    public static final int DCMPG = 0x98;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IFLT = 0x9b;
+    public static final int IFGE = 0x9c;
+    public static final int IFGT = 0x9d;
+    public static final int IFLE = 0x9e;
+    public static final int IF_ICMPEQ = 0x9f;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int IF_ICMPLT = 0xa1;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3;
+    public static final int IF_ICMPLE = 0xa4;
+    public static final int GOTO = 0xa7;
+    public static final int DRETURN = 0xaf;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int GETSTATIC = 0xb2;
+    public static final int GETFIELD = 0xb4;
+    public static final int PUTFIELD = 0xb5;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int INVOKEINTERFACE = 0xb9;
+    public static final int NEW = 0xbb;
+    public static final int ARRAYLENGTH = 0xbe;
+    public static final int ATHROW = 0xbf;
+    public static final int CHECKCAST = 0xc0;
+    public static final int WIDE = 0xc4;
+    public static final int IFNULL = 0xc6;
+    public static final int IFNONNULL = 0xc7;
+
+    private static final int[] stackDeltas = new int[256];
+    private static final boolean[] simple = new boolean[256];
+    static {
+        final int[][] deltas = {
+            { ICONST_0, 1 }, { ICONST_1, 1 }, { LCONST_0, 2 }, { DCONST_0, 2 }, { DCONST_1, 2 },
+            { DALOAD, 0 }, { AALOAD, -1 }, { DASTORE, -4 },
+            { POP, -1 }, { POP2, -2 }, { DUP, 1 }, { DUP_X1, 1 }, { DUP2, 2 }, { DUP2_X1, 2 }, { DUP2_X2, 2 },
+            { IADD, -1 }, { ISUB, -1 }, { ISHR, -1 }, { IUSHR, -1 }, { IAND, -1 },
+            { DADD, -2 }, { DSUB, -2 }, { DMUL, -2 }, { DDIV, -2 }, { DREM, -2 }, { DNEG, 0 },
+            { LSHL, -1 }, { LSHR, -1 }, { LXOR, -2 },
+            { I2D, 1 }, { L2I, -1 }, { L2D, 0 }, { D2I, -1 }, { D2L, 0 },
+            { DCMPL, -3 }, { DCMPG, -3 },
+            { DRETURN, -2 }, { ARETURN, -1 }, { RETURN, 0 }, { ARRAYLENGTH, 0 }, { ATHROW, -1 },
+        };
+        for (int[] delta : deltas) {
+            stackDeltas[delta[0]] = delta[1];
+            simple[delta[0]] = true;
+        }
+    }
+
+    private final ClassFile classFile;
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+    private final List<Label> labels = new ArrayList<Label>();
+
+    /**
+     * @param classFile The class this code will be added to. Used for constant pool lookups.
+     * @param parameterSlots The number of local variable slots used by "this" and the method parameters.
+     */
+    public Code(ClassFile classFile, int parameterSlots) {
+        this.classFile = classFile;
+        this.maxLocals = parameterSlots;
+    }
+
+    public ClassFile getClassFile() {
+        return classFile;
+    }
+
+    /**
+     * Allocates a new local variable.
+     *
+     * @param size 1 for int and references, 2 for long and double
+     * @return the index of the new local
+     */
+    public int newLocal(int size) {
+        final int index = maxLocals;
+        maxLocals += size;
+        return index;
+    }
+
+    public int getStack() {
+        return stack;
+    }
+
+    /**
+     * Adjusts the tracked stack depth without emitting any code.
+     * Used after unconditional jumps to account for values the code after them expects.
+     */
+    public void adjustStack(int delta) {
+        stack += delta;
+        if (stack > maxStack) {
+            maxStack = stack;
+        }
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Emits an instruction without operands.
+     */
+    public void insn(int opcode) {
+        if (!simple[opcode]) {
+            throw new IllegalArgumentException("Opcode 0x" + Integer.toHexString(opcode) + " takes operands.");
+        }
+        write1(opcode);
+        adjustStack(stackDeltas[opcode]);
+    }
+
+    public void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            write1(ICONST_0 + value);
+        }
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            write1(0x10); // BIPUSH
+            write1(value);
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            write1(0x11); // SIPUSH
+            write2(value);
+        }
+        else {
+            ldc(classFile.intConstant(value));
+        }
+        adjustStack(1);
+    }
+
+    public void dconst(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            write1(DCONST_0);
+        }
+        else if (value == 1.0) {
+            write1(DCONST_1);
+        }
+        else {
+            write1(0x14); // LDC2_W
+            write2(classFile.doubleConstant(value));
+        }
+        adjustStack(2);
+    }
+
+    public void lconst(long value) {
+        if (value == 0L) {
+            write1(LCONST_0);
+        }
+        else {
+            write1(0x14); // LDC2_W
+            write2(classFile.longConstant(value));
+        }
+        adjustStack(2);
+    }
+
+    public void sconst(String value) {
+        ldc(classFile.stringConstant(value));
+        adjustStack(1);
+    }
+
+    private void ldc(int index) {
+        if (index <= 0xFF) {
+            write1(0x12); // LDC
+            write1(index);
+        }
+        else {
+            write1(0x13); // LDC_W
+            write2(index);
+        }
+    }
+
+    /**
+     * Emits a local variable load or store.
+     */
+    public void var(int opcode, int index) {
+        if (index > 0xFF) {
+            write1(WIDE);
+            write1(opcode);
+            write2(index);
+        }
+        else {
+            write1(opcode);
+            write1(index);
+        }
+
+        switch (opcode) {
+        case ILOAD:
+        case ALOAD:
+            adjustStack(1);
+            break;
+
+        case DLOAD:
+            adjustStack(2);
+            break;
+
+        case ISTORE:
+        case ASTORE:
+            adjustStack(-1);
+            break;
+
+        case DSTORE:
+            adjustStack(-2);
+            break;
+
+        default:
+            throw new IllegalArgumentException("Opcode 0x" + Integer.toHexString(opcode) + " is not a local variable instruction.");
+        }
+    }
+
+    public void iinc(int index, int increment) {
+        if (index > 0xFF || increment < Byte.MIN_VALUE || increment > Byte.MAX_VALUE) {
+            write1(WIDE);
+            write1(IINC);
+            write2(index);
+            write2(increment);
+        }
+        else {
+            write1(IINC);
+            write1(index);
+            write1(increment);
+        }
+    }
+
+    /**
+     * Emits NEW or CHECKCAST.
+     */
+    public void type(int opcode, String internalName) {
+        write1(opcode);
+        write2(classFile.classConstant(internalName));
+
+        switch (opcode) {
+        case NEW:
+            adjustStack(1);
+            break;
+
+        case CHECKCAST:
+            break;
+
+        default:
+            throw new IllegalArgumentException("Opcode 0x" + Integer.toHexString(opcode) + " is not a type instruction.");
+        }
+    }
+
+    /**
+     * Emits GETFIELD, PUTFIELD or GETSTATIC.
+     */
+    public void field(int opcode, String owner, String name, String descriptor) {
+        write1(opcode);
+        write2(classFile.fieldConstant(owner, name, descriptor));
+
+        final int size = descriptorSize(descriptor);
+        switch (opcode) {
+        case GETFIELD:
+            adjustStack(size - 1);
+            break;
+
+        case PUTFIELD:
+            adjustStack(-size - 1);
+            break;
+
+        case GETSTATIC:
+            adjustStack(size);
+            break;
+
+        default:
+            throw new IllegalArgumentException("Opcode 0x" + Integer.toHexString(opcode) + " is not a field instruction.");
+        }
+    }
+
+    /**
+     * Emits one of the INVOKE* instructions.
+     */
+    public void invoke(int opcode, String owner, String name, String descriptor) {
+        write1(opcode);
+
+        final int close = descriptor.indexOf(')');
+        final int argumentSlots = parameterSlots(descriptor.substring(1, close));
+        final int returnSlots = descriptorSize(descriptor.substring(close + 1));
+
+        switch (opcode) {
+        case INVOKESTATIC:
+            write2(classFile.methodConstant(owner, name, descriptor));
+            adjustStack(returnSlots - argumentSlots);
+            break;
+
+        case INVOKEVIRTUAL:
+        case INVOKESPECIAL:
+            write2(classFile.methodConstant(owner, name, descriptor));
+            adjustStack(returnSlots - argumentSlots - 1);
+            break;
+
+        case INVOKEINTERFACE:
+            write2(classFile.interfaceMethodConstant(owner, name, descriptor));
+            write1(argumentSlots + 1);
+            write1(0);
+            adjustStack(returnSlots - argumentSlots - 1);
+            break;
+
+        default:
+            throw new IllegalArgumentException("Opcode 0x" + Integer.toHexString(opcode) + " is not an invoke instruction.");
+        }
+    }
+
+    /**
+     * Emits a branch instruction to the given label.
+     */
+    public void jump(int opcode, Label label) {
+        switch (opcode) {
+        case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE:
+        case IFNULL: case IFNONNULL:
+            adjustStack(-1);
+            break;
+
+        case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE:
+            adjustStack(-2);
+            break;
+
+        case GOTO:
+            break;
+
+        default:
+            throw new IllegalArgumentException("Opcode 0x" + Integer.toHexString(opcode) + " is not a branch instruction.");
+        }
+
+        recordStack(label);
+        label.fixups.add(new int[] { length, length + 1 });
+        write1(opcode);
+        write2(0);
+    }
+
+    /**
+     * Emits a TABLESWITCH instruction.
+     *
+     * @param low The key of the first label
+     * @param defaultLabel The label to jump to if the key is out of range
+     * @param labels The labels for keys low, low+1, ...
+     */
+    public void tableSwitch(int low, Label defaultLabel, Label... labels) {
+        adjustStack(-1);
+
+        final int start = length;
+        write1(0xaa); // TABLESWITCH
+        while (length % 4 != 0) {
+            write1(0);
+        }
+
+        recordStack(defaultLabel);
+        defaultLabel.fixups.add(new int[] { start, length, 4 });
+        write4(0);
+        write4(low);
+        write4(low + labels.length - 1);
+        for (Label label : labels) {
+            recordStack(label);
+            label.fixups.add(new int[] { start, length, 4 });
+            write4(0);
+        }
+    }
+
+    private void recordStack(Label label) {
+        register(label);
+
+        if (label.stack < 0) {
+            label.stack = stack;
+        }
+        else if (label.stack != stack) {
+            throw new IllegalStateException("Inconsistent stack depth at jump target: " + label.stack + " != " + stack);
+        }
+    }
+
+    /**
+     * Places a label at the current position.
+     * If the label is the target of earlier jumps, the tracked stack depth is taken from them.
+     */
+    public void place(Label label) {
+        if (label.position >= 0) {
+            throw new IllegalStateException("Label placed twice.");
+        }
+
+        register(label);
+
+        label.position = length;
+        if (label.stack < 0) {
+            label.stack = stack;
+        }
+        else {
+            stack = label.stack;
+        }
+    }
+
+    public byte[] toByteArray() {
+        resolve();
+
+        if (length > 0xFFFF) {
+            throw new IllegalStateException("Method too large.");
+        }
+
+        final byte[] ret = new byte[length];
+        System.arraycopy(code, 0, ret, 0, length);
+        return ret;
+    }
+
+    private void resolve() {
+        for (Label label : labels) {
+            if (label.position < 0) {
+                if (label.fixups.isEmpty()) {
+                    continue;
+                }
+
+                throw new IllegalStateException("Jump to a label that was never placed.");
+            }
+
+            for (int[] fixup : label.fixups) {
+                final int offset = label.position - fixup[0];
+                if (fixup.length > 2) {
+                    patch4(fixup[1], offset);
+                    continue;
+                }
+
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Jump offset too large.");
+                }
+                patch2(fixup[1], offset);
+            }
+        }
+    }
+
+    private void register(Label label) {
+        if (label.code == this) {
+            return;
+        }
+
+        if (label.code != null) {
+            throw new IllegalStateException("Label used in more than one method.");
+        }
+
+        label.code = this;
+        labels.add(label);
+    }
+
+    private void write1(int value) {
+        if (length == code.length) {
+            final byte[] newCode = new byte[code.length * 2];
+            System.arraycopy(code, 0, newCode, 0, length);
+            code = newCode;
+        }
+        code[length++] = (byte) value;
+    }
+
+    private void write2(int value) {
+        write1(value >> 8);
+        write1(value);
+    }
+
+    private void write4(int value) {
+        write2(value >> 16);
+        write2(value);
+    }
+
+    private void patch2(int position, int value) {
+        code[position    ] = (byte) (value >> 8);
+        code[position + 1] = (byte) value;
+    }
+
+    private void patch4(int position, int value) {
+        patch2(position, value >> 16);
+        patch2(position + 2, value);
+    }
+
+    private static int parameterSlots(String descriptors) {
+        int slots = 0;
+        for (int i = 0; i < descriptors.length(); ++i) {
+            switch (descriptors.charAt(i)) {
+            case 'D':
+            case 'J':
+                slots += 2;
+                break;
+
+            case 'L':
+                slots += 1;
+                i = descriptors.indexOf(';', i);
+                break;
+
+            case '[':
+                slots += 1;
+                while (descriptors.charAt(i) == '[') {
+                    ++i;
+                }
+                if (descriptors.charAt(i) == 'L') {
+                    i = descriptors.indexOf(';', i);
+                }
+                break;
+
+            default:
+                slots += 1;
+            }
+        }
+        return slots;
+    }
+
+    private static int descriptorSize(String descriptor) {
+        switch (descriptor.charAt(0)) {
+        case 'V':
+            return 0;
+
+        case 'D':
+        case 'J':
+            return 2;
+
+        default:
+            return 1;
+        }
+    }
+}
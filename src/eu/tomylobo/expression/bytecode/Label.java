@@ -0,0 +1,48 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.bytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A jump target inside a {@link Code} block.
+ *
+ * @author TomyLobo
+ */
+public class Label {
+    Code code;
+    int position = -1;
+    int stack = -1;
+    final List<int[]> fixups = new ArrayList<int[]>();
+
+    /**
+     * @return true if the label has already been placed
+     */
+    public boolean isPlaced() {
+        return position >= 0;
+    }
+
+    /**
+     * @return the operand stack depth at this label, or -1 if not known yet
+     */
+    public int getStack() {
+        return stack;
+    }
+}
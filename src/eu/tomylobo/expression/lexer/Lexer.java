@@ -20,13 +20,9 @@ package eu.tomylobo.expression.lexer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import eu.tomylobo.expression.lexer.tokens.*;
 
@@ -35,201 +31,220 @@ import eu.tomylobo.expression.lexer.tokens.*;
  *
  * Tokens can be numbers, identifiers, operators and assorted other characters.
  *
+ * The input is scanned once from start to end. Characters are classified through a lookup table
+ * and only the text of numbers and identifiers is copied out of the input.
+ *
  * @author TomyLobo
  */
 public class Lexer {
-    private final String expression;
+    private static final byte WHITESPACE = 1;
+    private static final byte DIGIT = 2;
+    private static final byte LETTER = 4;
+    private static final byte IDENTIFIER_PART = 8;
+    private static final byte CHARACTER_TOKEN = 16;
+
+    /**
+     * Character classes of all ASCII characters. Other characters are only checked for whitespace.
+     */
+    private static final byte[] classes = new byte[128];
+    static {
+        for (char ch = 0; ch < 128; ++ch) {
+            if (Character.isWhitespace(ch)) {
+                classes[ch] |= WHITESPACE;
+            }
+        }
+        for (char ch = '0'; ch <= '9'; ++ch) {
+            classes[ch] |= DIGIT | IDENTIFIER_PART;
+        }
+        for (char ch = 'A'; ch <= 'Z'; ++ch) {
+            classes[ch] |= LETTER | IDENTIFIER_PART;
+            classes[Character.toLowerCase(ch)] |= LETTER | IDENTIFIER_PART;
+        }
+        classes['_'] |= IDENTIFIER_PART;
+        for (char ch : ",(){};?:".toCharArray()) {
+            classes[ch] |= CHARACTER_TOKEN;
+        }
+    }
+
+    private static final Set<String> keywords = new HashSet<String>(Arrays.asList("if", "else", "while", "do", "for", "break", "continue", "return", "switch", "case", "default"));
+
+    private final char[] expression;
     private int position = 0;
 
     private Lexer(String expression) {
-        this.expression = expression;
+        this.expression = expression.toCharArray();
     }
 
     public static final List<Token> tokenize(String expression) throws LexerException {
         return new Lexer(expression).tokenize();
     }
 
-    private final DecisionTree operatorTree = new DecisionTree(null,
-        '+', new DecisionTree("+",
-            '=', new DecisionTree("+="),
-            '+', new DecisionTree("++")
-        ),
-        '-', new DecisionTree("-",
-            '=', new DecisionTree("-="),
-            '-', new DecisionTree("--")
-        ),
-        '*', new DecisionTree("*",
-            '=', new DecisionTree("*="),
-            '*', new DecisionTree("**")
-        ),
-        '/', new DecisionTree("/",
-            '=', new DecisionTree("/=")
-        ),
-        '%', new DecisionTree("%",
-            '=', new DecisionTree("%=")
-        ),
-        '^', new DecisionTree("^",
-            '=', new DecisionTree("^=")
-        ),
-        '=', new DecisionTree("=",
-            '=', new DecisionTree("==")
-        ),
-        '!', new DecisionTree("!",
-            '=', new DecisionTree("!=")
-        ),
-        '<', new DecisionTree("<",
-            '<', new DecisionTree("<<"),
-            '=', new DecisionTree("<=")
-        ),
-        '>', new DecisionTree(">",
-            '>', new DecisionTree(">>"),
-            '=', new DecisionTree(">=")
-        ),
-        '&', new DecisionTree(null, // not implemented
-            '&', new DecisionTree("&&")
-        ),
-        '|', new DecisionTree(null, // not implemented
-            '|', new DecisionTree("||")
-        ),
-        '~', new DecisionTree("~",
-            '=', new DecisionTree("~=")
-        )
-    );
-
-    private static final Set<Character> characterTokens = new HashSet<Character>();
-    static {
-        characterTokens.add(',');
-        characterTokens.add('(');
-        characterTokens.add(')');
-        characterTokens.add('{');
-        characterTokens.add('}');
-        characterTokens.add(';');
-        characterTokens.add('?');
-        characterTokens.add(':');
-    }
-
-    private static final Set<String> keywords = new HashSet<String>(Arrays.asList("if", "else", "while", "do", "for", "break", "continue", "return", "switch", "case", "default"));
-
-    private static final Pattern numberPattern = Pattern.compile("^([0-9]*(?:\\.[0-9]+)?(?:[eE][+-]?[0-9]+)?)");
-    private static final Pattern identifierPattern = Pattern.compile("^([A-Za-z][0-9A-Za-z_]*)");
-
     private final List<Token> tokenize() throws LexerException {
-        List<Token> tokens = new ArrayList<Token>();
+        final List<Token> tokens = new ArrayList<Token>();
 
-        do {
+        while (true) {
             skipWhitespace();
-            if (position >= expression.length()) {
+            if (position >= expression.length) {
                 break;
             }
 
-            Token token = operatorTree.evaluate(position);
-            if (token != null) {
-                tokens.add(token);
+            final String operator = scanOperator();
+            if (operator != null) {
+                tokens.add(new OperatorToken(position, operator));
+                position += operator.length();
                 continue;
             }
 
-            final char ch = peek();
+            final char ch = expression[position];
 
-            if (characterTokens.contains(ch)) {
+            if (is(ch, CHARACTER_TOKEN)) {
                 tokens.add(new CharacterToken(position++, ch));
                 continue;
             }
 
-            final Matcher numberMatcher = numberPattern.matcher(expression.substring(position));
-            if (numberMatcher.lookingAt()) {
-                String numberPart = numberMatcher.group(1);
-                if (!numberPart.isEmpty()) {
-                    try {
-                        tokens.add(new NumberToken(position, Double.parseDouble(numberPart)));
-                    }
-                    catch (NumberFormatException e) {
-                        throw new LexerException(position, "Number parsing failed", e);
-                    }
-
-                    position += numberPart.length();
-                    continue;
+            final int numberEnd = scanNumber();
+            if (numberEnd > position) {
+                final String numberPart = new String(expression, position, numberEnd - position);
+                try {
+                    tokens.add(new NumberToken(position, Double.parseDouble(numberPart)));
+                }
+                catch (NumberFormatException e) {
+                    throw new LexerException(position, "Number parsing failed", e);
                 }
+
+                position = numberEnd;
+                continue;
             }
 
-            final Matcher identifierMatcher = identifierPattern.matcher(expression.substring(position));
-            if (identifierMatcher.lookingAt()) {
-                String identifierPart = identifierMatcher.group(1);
-                if (!identifierPart.isEmpty()) {
-                    if (keywords.contains(identifierPart)) {
-                        tokens.add(new KeywordToken(position, identifierPart));
-                    }
-                    else {
-                        tokens.add(new IdentifierToken(position, identifierPart));
-                    }
-
-                    position += identifierPart.length();
-                    continue;
+            if (is(ch, LETTER)) {
+                int identifierEnd = position + 1;
+                while (identifierEnd < expression.length && is(expression[identifierEnd], IDENTIFIER_PART)) {
+                    ++identifierEnd;
+                }
+
+                final String identifierPart = new String(expression, position, identifierEnd - position);
+                if (keywords.contains(identifierPart)) {
+                    tokens.add(new KeywordToken(position, identifierPart));
                 }
+                else {
+                    tokens.add(new IdentifierToken(position, identifierPart));
+                }
+
+                position = identifierEnd;
+                continue;
             }
 
             throw new LexerException(position, "Unknown character '" + ch + "'");
         }
-        while (position < expression.length());
 
         return tokens;
     }
 
-    private char peek() {
-        return expression.charAt(position);
+    private static boolean is(char ch, byte characterClass) {
+        return ch < 128 && (classes[ch] & characterClass) != 0;
+    }
+
+    private char peek(int offset) {
+        final int index = position + offset;
+        return index < expression.length ? expression[index] : 0;
     }
 
     private final void skipWhitespace() {
-        while (position < expression.length() && Character.isWhitespace(peek())) {
+        while (position < expression.length) {
+            final char ch = expression[position];
+            final boolean whitespace = ch < 128 ? is(ch, WHITESPACE) : Character.isWhitespace(ch);
+            if (!whitespace) {
+                break;
+            }
             ++position;
         }
     }
 
-    public class DecisionTree {
-        private final String tokenName;
-        private final Map<Character, DecisionTree> subTrees = new HashMap<Character, Lexer.DecisionTree>();
+    /**
+     * @return the longest operator at the current position or null if there is none
+     */
+    private String scanOperator() {
+        final char next = peek(1);
 
-        private DecisionTree(String tokenName, Object... args) {
-            this.tokenName = tokenName;
+        switch (peek(0)) {
+        case '+':
+            return next == '=' ? "+=" : next == '+' ? "++" : "+";
 
-            if (args.length % 2 != 0) {
-                throw new UnsupportedOperationException("You need to pass an even number of arguments.");
-            }
+        case '-':
+            return next == '=' ? "-=" : next == '-' ? "--" : "-";
 
-            for (int i = 0; i < args.length; i += 2) {
-                if (!(args[i] instanceof Character)) {
-                    throw new UnsupportedOperationException("Argument #" + i + " expected to be 'Character', not '" + args[i].getClass().getName() + "'.");
-                }
-                if (!(args[i + 1] instanceof DecisionTree)) {
-                    throw new UnsupportedOperationException("Argument #" + (i + 1) + " expected to be 'DecisionTree', not '" + args[i + 1].getClass().getName() + "'.");
-                }
+        case '*':
+            return next == '=' ? "*=" : next == '*' ? "**" : "*";
 
-                Character next = (Character) args[i];
-                DecisionTree subTree = (DecisionTree) args[i + 1];
+        case '/':
+            return next == '=' ? "/=" : "/";
 
-                subTrees.put(next, subTree);
-            }
+        case '%':
+            return next == '=' ? "%=" : "%";
+
+        case '^':
+            return next == '=' ? "^=" : "^";
+
+        case '=':
+            return next == '=' ? "==" : "=";
+
+        case '!':
+            return next == '=' ? "!=" : "!";
+
+        case '<':
+            return next == '<' ? "<<" : next == '=' ? "<=" : "<";
+
+        case '>':
+            return next == '>' ? ">>" : next == '=' ? ">=" : ">";
+
+        case '&': // & is not implemented
+            return next == '&' ? "&&" : null;
+
+        case '|': // | is not implemented
+            return next == '|' ? "||" : null;
+
+        case '~':
+            return next == '=' ? "~=" : "~";
+
+        default:
+            return null;
         }
+    }
 
-        private Token evaluate(int startPosition) throws LexerException {
-            if (position < expression.length()) {
-                final char next = peek();
-
-                final DecisionTree subTree = subTrees.get(next);
-                if (subTree != null) {
-                    ++position;
-                    final Token subTreeResult = subTree.evaluate(startPosition);
-                    if (subTreeResult != null) {
-                        return subTreeResult;
-                    }
-                    --position;
-                }
+    /**
+     * Numbers consist of digits, an optional fractional part and an optional exponent, all of them optional.
+     *
+     * @return the end of the number at the current position, which is the current position if there is none
+     */
+    private int scanNumber() {
+        int end = position;
+        while (end < expression.length && is(expression[end], DIGIT)) {
+            ++end;
+        }
+
+        // The fractional part needs at least one digit after the dot.
+        if (end + 1 < expression.length && expression[end] == '.' && is(expression[end + 1], DIGIT)) {
+            end += 2;
+            while (end < expression.length && is(expression[end], DIGIT)) {
+                ++end;
             }
+        }
 
-            if (tokenName == null) {
-                return null;
+        // So does the exponent, after the optional sign.
+        if (end < expression.length && (expression[end] == 'e' || expression[end] == 'E')) {
+            int exponentEnd = end + 1;
+            if (exponentEnd < expression.length && (expression[exponentEnd] == '+' || expression[exponentEnd] == '-')) {
+                ++exponentEnd;
             }
 
-            return new OperatorToken(startPosition, tokenName);
+            if (exponentEnd < expression.length && is(expression[exponentEnd], DIGIT)) {
+                end = exponentEnd + 1;
+                while (end < expression.length && is(expression[end], DIGIT)) {
+                    ++end;
+                }
+            }
         }
+
+        return end;
     }
 }
@@ -19,7 +19,6 @@
 package eu.tomylobo.expression.parser;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import eu.tomylobo.expression.Expression;
 import eu.tomylobo.expression.Identifiable;
@@ -32,7 +31,6 @@ import eu.tomylobo.expression.runtime.Break;
 import eu.tomylobo.expression.runtime.Conditional;
 import eu.tomylobo.expression.runtime.Constant;
 import eu.tomylobo.expression.runtime.For;
-import eu.tomylobo.expression.runtime.Function;
 import eu.tomylobo.expression.runtime.Functions;
 import eu.tomylobo.expression.runtime.LValue;
 import eu.tomylobo.expression.runtime.RValue;
@@ -85,9 +83,7 @@ public class Parser {
             throw new ParserException(token.getPosition(), "Extra token at the end of the input: " + token);
         }
 
-        ret.bindVariables(expression, false);
-
-        return ret;
+        return ret.bindVariables(expression, false);
     }
 
     private RValue parseStatements(boolean singleStatement) throws ParserException {
@@ -314,7 +310,7 @@ public class Parser {
     }
 
     private final RValue parseExpression(boolean canBeEmpty) throws ParserException {
-        LinkedList<Identifiable> halfProcessed = new LinkedList<Identifiable>();
+        final List<Identifiable> halfProcessed = new ArrayList<Identifiable>();
 
         // process brackets, numbers, functions, variables and detect prefix operators
         boolean expressionStart = true;
@@ -395,7 +391,7 @@ public class Parser {
         return tokens.get(position);
     }
 
-    private Function parseFunctionCall(IdentifierToken identifierToken) throws ParserException {
+    private RValue parseFunctionCall(IdentifierToken identifierToken) throws ParserException {
         consumeCharacter('(');
 
         try {
@@ -20,8 +20,7 @@ package eu.tomylobo.expression.parser;
 
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import eu.tomylobo.expression.Identifiable;
@@ -147,107 +146,111 @@ public final class ParserProcessors {
         }
     }
 
-    static RValue processExpression(LinkedList<Identifiable> input) throws ParserException {
-        return processBinaryOpsRA(input, binaryOpMapsRA.length - 1);
-    }
+    private final Identifiable[] input;
 
-    private static RValue processBinaryOpsLA(LinkedList<Identifiable> input, int level) throws ParserException {
-        if (level < 0) {
-            return processUnaryOps(input);
-        }
+    /**
+     * The names of the binary operators in the input or null for other elements.
+     */
+    private final String[] operatorNames;
 
-        LinkedList<Identifiable> lhs = new LinkedList<Identifiable>();
-        LinkedList<Identifiable> rhs = new LinkedList<Identifiable>();
-        String operator = null;
+    /**
+     * The precedence level of each binary operator in the input.
+     * Assignment operators are level {@link #ASSIGNMENT}, other elements are -1.
+     */
+    private final int[] operatorLevels;
 
-        for (Iterator<Identifiable> it = input.descendingIterator(); it.hasNext();) {
-            Identifiable identifiable = it.next();
-            if (operator == null) {
-                rhs.addFirst(identifiable);
+    private static final int ASSIGNMENT = Integer.MAX_VALUE;
 
-                if (!(identifiable instanceof OperatorToken)) {
-                    continue;
-                }
+    private ParserProcessors(List<Identifiable> input) {
+        this.input = input.toArray(new Identifiable[input.size()]);
 
-                operator = binaryOpMapsLA[level].get(((OperatorToken) identifiable).operator);
-                if (operator == null) {
-                    continue;
-                }
+        operatorNames = new String[this.input.length];
+        operatorLevels = new int[this.input.length];
+        for (int i = 0; i < this.input.length; ++i) {
+            operatorLevels[i] = -1;
 
-                rhs.removeFirst();
+            if (!(this.input[i] instanceof OperatorToken)) {
+                continue;
             }
-            else {
-                lhs.addFirst(identifiable);
-            }
-        }
-
-        RValue rhsInvokable = processBinaryOpsLA(rhs, level - 1);
-        if (operator == null) return rhsInvokable;
 
-        RValue lhsInvokable = processBinaryOpsLA(lhs, level);
+            final String operator = ((OperatorToken) this.input[i]).operator;
+            for (int level = 0; level < binaryOpMapsLA.length; ++level) {
+                final String name = binaryOpMapsLA[level].get(operator);
+                if (name != null) {
+                    operatorNames[i] = name;
+                    operatorLevels[i] = level;
+                    break;
+                }
+            }
 
-        try {
-            return Operators.getOperator(input.get(0).getPosition(), operator, lhsInvokable, rhsInvokable);
-        }
-        catch (NoSuchMethodException e) {
-            final Token operatorToken = (Token) input.get(lhs.size());
-            throw new ParserException(operatorToken.getPosition(), "Couldn't find operator '" + operator + "'");
+            for (int level = 0; level < binaryOpMapsRA.length; ++level) {
+                final String name = binaryOpMapsRA[level].get(operator);
+                if (name != null) {
+                    operatorNames[i] = name;
+                    operatorLevels[i] = ASSIGNMENT;
+                    break;
+                }
+            }
         }
     }
 
-    private static RValue processBinaryOpsRA(LinkedList<Identifiable> input, int level) throws ParserException {
-        if (level < 0) {
-            return processTernaryOps(input);
-        }
-
-        LinkedList<Identifiable> lhs = new LinkedList<Identifiable>();
-        LinkedList<Identifiable> rhs = new LinkedList<Identifiable>();
-        String operator = null;
-
-        for (Identifiable identifiable : input) {
-            if (operator == null) {
-                lhs.addLast(identifiable);
-
-                if (!(identifiable instanceof OperatorToken)) {
-                    continue;
-                }
-
-                operator = binaryOpMapsRA[level].get(((OperatorToken) identifiable).operator);
-                if (operator == null) {
-                    continue;
-                }
+    /**
+     * Processes the operators in a list of operands, operator tokens and unary operators into a tree.
+     *
+     * The input is split at the operators with the lowest precedence and each part is processed
+     * at the next level, so every level only looks at each element once.
+     * The parts are index ranges into the input, so nothing is copied.
+     */
+    static RValue processExpression(List<Identifiable> input) throws ParserException {
+        return new ParserProcessors(input).processAssignments(0, input.size());
+    }
 
-                lhs.removeLast();
-            }
-            else {
-                rhs.addLast(identifiable);
+    /**
+     * Assignments are right-associative: a = b = c is a = (b = c).
+     */
+    private RValue processAssignments(int start, int end) throws ParserException {
+        int operatorCount = 0;
+        for (int i = start; i < end; ++i) {
+            if (operatorLevels[i] == ASSIGNMENT) {
+                ++operatorCount;
             }
         }
 
-        RValue lhsInvokable = processBinaryOpsRA(lhs, level - 1);
-        if (operator == null) return lhsInvokable;
-
-        RValue rhsInvokable = processBinaryOpsRA(rhs, level);
+        if (operatorCount == 0) {
+            return processTernaryOps(start, end);
+        }
 
-        try {
-            return Operators.getOperator(input.get(0).getPosition(), operator, lhsInvokable, rhsInvokable);
+        // The operands are processed from left to right, then the operators from right to left.
+        final int[] operators = new int[operatorCount];
+        final RValue[] operands = new RValue[operatorCount + 1];
+        int partStart = start;
+        int operatorIndex = 0;
+        for (int i = start; i < end; ++i) {
+            if (operatorLevels[i] == ASSIGNMENT) {
+                operands[operatorIndex] = processTernaryOps(partStart, i);
+                operators[operatorIndex++] = i;
+                partStart = i + 1;
+            }
         }
-        catch (NoSuchMethodException e) {
-            final Token operatorToken = (Token) input.get(lhs.size());
-            throw new ParserException(operatorToken.getPosition(), "Couldn't find operator '" + operator + "'");
+        operands[operatorCount] = processTernaryOps(partStart, end);
+
+        RValue ret = operands[operatorCount];
+        for (int i = operatorCount - 1; i >= 0; --i) {
+            final int lhsStart = i == 0 ? start : operators[i - 1] + 1;
+            ret = getBinaryOperator(lhsStart, operators[i], operands[i], ret);
         }
-    }
 
-    private static RValue processTernaryOps(LinkedList<Identifiable> input) throws ParserException {
-        LinkedList<Identifiable> lhs = new LinkedList<Identifiable>();
-        LinkedList<Identifiable> mhs = new LinkedList<Identifiable>();
-        LinkedList<Identifiable> rhs = new LinkedList<Identifiable>();
+        return ret;
+    }
 
+    private RValue processTernaryOps(int start, int end) throws ParserException {
         int partsFound = 0;
         int conditionalsFound = 0;
+        int questionMark = -1;
+        int colon = -1;
 
-        for (Identifiable identifiable : input) {
-            final char character = identifiable.id();
+        for (int i = start; i < end; ++i) {
+            final char character = input[i].id();
             switch (character) {
             case '?':
                 ++conditionalsFound;
@@ -258,102 +261,153 @@ public final class ParserProcessors {
             }
 
             if (conditionalsFound < 0) {
-                throw new ParserException(identifiable.getPosition(), "Unexpected ':'");
+                throw new ParserException(input[i].getPosition(), "Unexpected ':'");
             }
 
             switch (partsFound) {
             case 0:
                 if (character == '?') {
                     partsFound = 1;
-                }
-                else {
-                    lhs.addLast(identifiable);
+                    questionMark = i;
                 }
                 break;
 
             case 1:
                 if (conditionalsFound == 0 && character == ':') {
                     partsFound = 2;
-                }
-                else {
-                    mhs.addLast(identifiable);
+                    colon = i;
                 }
                 break;
-
-            case 2:
-                rhs.addLast(identifiable);
             }
         }
 
         if (partsFound < 2) {
-            return processBinaryOpsLA(input, binaryOpMapsLA.length - 1);
+            return processBinaryOpsLA(start, end, binaryOpMapsLA.length - 1);
         }
 
-        RValue lhsInvokable = processBinaryOpsLA(lhs, binaryOpMapsLA.length - 1);
-        RValue mhsInvokable = processTernaryOps(mhs);
-        RValue rhsInvokable = processTernaryOps(rhs);
+        RValue lhsInvokable = processBinaryOpsLA(start, questionMark, binaryOpMapsLA.length - 1);
+        RValue mhsInvokable = processTernaryOps(questionMark + 1, colon);
+        RValue rhsInvokable = processTernaryOps(colon + 1, end);
 
-        return new Conditional(input.get(lhs.size()).getPosition(), lhsInvokable, mhsInvokable, rhsInvokable);
+        return new Conditional(input[questionMark].getPosition(), lhsInvokable, mhsInvokable, rhsInvokable);
     }
 
-    private static RValue processUnaryOps(LinkedList<Identifiable> input) throws ParserException {
-        // Preprocess postfix operators into unary operators
-        final Identifiable center;
-        LinkedList<UnaryOperator> postfixes = new LinkedList<UnaryOperator>();
-        do {
-            if (input.isEmpty()) {
-                throw new ParserException(-1, "Expression missing.");
+    /**
+     * Binary operators are left-associative: a - b - c is (a - b) - c.
+     */
+    private RValue processBinaryOpsLA(int start, int end, int level) throws ParserException {
+        if (level < 0) {
+            return processUnaryOps(start, end);
+        }
+
+        int operatorCount = 0;
+        for (int i = start; i < end; ++i) {
+            if (operatorLevels[i] == level) {
+                ++operatorCount;
             }
+        }
 
-            final Identifiable last = input.removeLast();
-            if (last instanceof OperatorToken) {
-                postfixes.addLast(new UnaryOperator(last.getPosition(), "x" + ((OperatorToken) last).operator));
-            } else if (last instanceof UnaryOperator) {
-                postfixes.addLast(new UnaryOperator(last.getPosition(), "x" + ((UnaryOperator) last).operator));
-            } else {
-                center = last;
-                break;
+        if (operatorCount == 0) {
+            return processBinaryOpsLA(start, end, level - 1);
+        }
+
+        // The operands are processed from right to left, then the operators from left to right.
+        final int[] operators = new int[operatorCount];
+        final RValue[] operands = new RValue[operatorCount + 1];
+        int partEnd = end;
+        int operatorIndex = operatorCount;
+        for (int i = end - 1; i >= start; --i) {
+            if (operatorLevels[i] == level) {
+                operands[operatorIndex] = processBinaryOpsLA(i + 1, partEnd, level - 1);
+                operators[--operatorIndex] = i;
+                partEnd = i;
             }
-        } while (true);
+        }
+        operands[0] = processBinaryOpsLA(start, partEnd, level - 1);
 
-        if (!(center instanceof RValue)) {
-            throw new ParserException(center.getPosition(), "Expected expression, found " + center);
+        RValue ret = operands[0];
+        for (int i = 0; i < operatorCount; ++i) {
+            ret = getBinaryOperator(start, operators[i], ret, operands[i + 1]);
         }
 
-        input.addAll(postfixes);
+        return ret;
+    }
 
-        RValue ret = (RValue) center;
-        while (!input.isEmpty()) {
-            final Identifiable last = input.removeLast();
-            final int lastPosition = last.getPosition();
-            if (last instanceof UnaryOperator) {
-                final String operator = ((UnaryOperator) last).operator;
-                if (operator.equals("+")) {
-                    continue;
-                }
+    /**
+     * @param start The index of the first element of the operation, which determines its position
+     * @param operator The index of the operator token
+     */
+    private RValue getBinaryOperator(int start, int operator, RValue lhs, RValue rhs) throws ParserException {
+        try {
+            return Operators.getOperator(input[start].getPosition(), operatorNames[operator], lhs, rhs);
+        }
+        catch (NoSuchMethodException e) {
+            throw new ParserException(input[operator].getPosition(), "Couldn't find operator '" + operatorNames[operator] + "'");
+        }
+    }
 
-                String opName = unaryOpMap.get(operator);
-                if (opName != null) {
-                    try {
-                        ret = Operators.getOperator(lastPosition, opName, ret);
-                        continue;
-                    }
-                    catch (NoSuchMethodException e) {
-                        throw new ParserException(lastPosition, "No such prefix operator: " + operator);
-                    }
-                }
+    private RValue processUnaryOps(int start, int end) throws ParserException {
+        // Operators after the operand are postfix operators
+        int center = end - 1;
+        while (true) {
+            if (center < start) {
+                throw new ParserException(-1, "Expression missing.");
             }
 
-            if (last instanceof Token) {
-                throw new ParserException(lastPosition, "Extra token found in expression: " + last);
+            final Identifiable last = input[center];
+            if (!(last instanceof OperatorToken) && !(last instanceof UnaryOperator)) {
+                break;
             }
-            else if (last instanceof RValue) {
-                throw new ParserException(lastPosition, "Extra expression found: " + last);
+
+            --center;
+        }
+
+        if (!(input[center] instanceof RValue)) {
+            throw new ParserException(input[center].getPosition(), "Expected expression, found " + input[center]);
+        }
+
+        // Apply the postfix operators from the inside out, then the prefix operators.
+        RValue ret = (RValue) input[center];
+        for (int i = center + 1; i < end; ++i) {
+            final Identifiable postfix = input[i];
+            final String operator = postfix instanceof OperatorToken ? ((OperatorToken) postfix).operator : ((UnaryOperator) postfix).operator;
+            ret = applyUnaryOperator(new UnaryOperator(postfix.getPosition(), "x" + operator), ret);
+        }
+
+        for (int i = center - 1; i >= start; --i) {
+            ret = applyUnaryOperator(input[i], ret);
+        }
+
+        return ret;
+    }
+
+    private RValue applyUnaryOperator(Identifiable last, RValue ret) throws ParserException {
+        final int lastPosition = last.getPosition();
+        if (last instanceof UnaryOperator) {
+            final String operator = ((UnaryOperator) last).operator;
+            if (operator.equals("+")) {
+                return ret;
             }
-            else {
-                throw new ParserException(lastPosition, "Extra element found: " + last);
+
+            String opName = unaryOpMap.get(operator);
+            if (opName != null) {
+                try {
+                    return Operators.getOperator(lastPosition, opName, ret);
+                }
+                catch (NoSuchMethodException e) {
+                    throw new ParserException(lastPosition, "No such prefix operator: " + operator);
+                }
             }
         }
-        return ret;
+
+        if (last instanceof Token) {
+            throw new ParserException(lastPosition, "Extra token found in expression: " + last);
+        }
+        else if (last instanceof RValue) {
+            throw new ParserException(lastPosition, "Extra expression found: " + last);
+        }
+        else {
+            throw new ParserException(lastPosition, "Extra element found: " + last);
+        }
     }
 }
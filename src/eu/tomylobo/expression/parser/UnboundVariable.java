@@ -2,6 +2,7 @@ package eu.tomylobo.expression.parser;
 
 import eu.tomylobo.expression.Expression;
 import eu.tomylobo.expression.runtime.EvaluationException;
+import eu.tomylobo.expression.runtime.Frame;
 import eu.tomylobo.expression.runtime.LValue;
 import eu.tomylobo.expression.runtime.RValue;
 
@@ -26,7 +27,7 @@ public class UnboundVariable extends PseudoToken implements LValue {
     }
 
 	@Override
-    public double getValue() throws EvaluationException {
+    public double getValue(Frame frame) throws EvaluationException {
         throw new EvaluationException(getPosition(), "Tried to evaluate unbound variable!");
     }
 
@@ -36,7 +37,7 @@ public class UnboundVariable extends PseudoToken implements LValue {
     }
 
 	@Override
-    public double assign(double value) throws EvaluationException {
+    public double assign(Frame frame, double value) throws EvaluationException {
         throw new EvaluationException(getPosition(), "Tried to assign unbound variable!");
     }
 
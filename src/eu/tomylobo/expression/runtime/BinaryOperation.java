@@ -0,0 +1,48 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+/**
+ * An operation with two operands.
+ *
+ * @author TomyLobo
+ */
+public abstract class BinaryOperation extends Operation {
+    final RValue lhs;
+    final RValue rhs;
+
+    BinaryOperation(int position, String name, RValue lhs, RValue rhs) {
+        super(position, name);
+
+        this.lhs = lhs;
+        this.rhs = rhs;
+    }
+
+    abstract BinaryOperation copy(int position, RValue lhs, RValue rhs);
+
+    @Override
+    public RValue[] getOperands() {
+        return new RValue[] { lhs, rhs };
+    }
+
+    @Override
+    Operation withOperands(int position, RValue[] operands) {
+        return copy(position, operands[0], operands[1]);
+    }
+}
@@ -0,0 +1,731 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates an expression tree for a whole block of time values at once.
+ *
+ * Subtrees that only depend on the time variable and on variables the expression never
+ * assigns to are evaluated one node at a time over the whole block, so the dispatch
+ * overhead is paid once per block instead of once per sample.
+ * Everything else (assignments, oscillators, loops, dynamic functions) is evaluated
+ * sample by sample, reading the results of the pure subtrees from the precomputed blocks.
+ * Variables that always hold the value of the same pure subtree when they're read, like the
+ * temporary variables introduced by {@link CommonSubexpressions}, are treated like that subtree.
+ *
+ * A tree compiled by {@link BytecodeCompiler} is split up like its source tree.
+ * If nothing could be split off, the compiled class is used for the per-sample evaluation.
+ *
+ * The split tree is only built and compiled once, so an evaluator can be shared by all frames
+ * evaluating the same tree. The values of the blocks are kept in a {@link State} in each frame.
+ *
+ * @author TomyLobo
+ */
+public final class BlockEvaluator {
+    /**
+     * Longer blocks are split up, so the scratch buffers stay small.
+     */
+    private static final int MAX_BLOCK_SIZE = 1024;
+
+    private static final int GENERIC = 0;
+    private static final int ADD = 1;
+    private static final int SUB = 2;
+    private static final int MUL = 3;
+    private static final int DIV = 4;
+    private static final int MOD = 5;
+    private static final int NEG = 6;
+    private static final int POW = 7;
+    private static final int SIN = 8;
+    private static final int COS = 9;
+    private static final int SQRT = 10;
+    private static final int ABS = 11;
+    private static final int FLOOR = 12;
+    private static final int MIN = 13;
+    private static final int MAX = 14;
+
+    private static final Map<String, Integer> opcodes = new HashMap<String, Integer>();
+    static {
+        opcodes.put("add", ADD);
+        opcodes.put("sub", SUB);
+        opcodes.put("mul", MUL);
+        opcodes.put("div", DIV);
+        opcodes.put("mod", MOD);
+        opcodes.put("neg", NEG);
+        opcodes.put("pow", POW);
+        opcodes.put("sin", SIN);
+        opcodes.put("cos", COS);
+        opcodes.put("sqrt", SQRT);
+        opcodes.put("abs", ABS);
+        opcodes.put("floor", FLOOR);
+        opcodes.put("min", MIN);
+        opcodes.put("max", MAX);
+    }
+
+    private final RValue source;
+    private final Variable time;
+    private final PurityAnalysis analysis;
+
+    /**
+     * The kernel for the whole tree, if the tree is pure. Otherwise null.
+     */
+    private final Kernel rootKernel;
+
+    /**
+     * The tree with its pure subtrees replaced by {@link BlockValue}s.
+     */
+    private final RValue root;
+    private final List<Kernel> kernels = new ArrayList<Kernel>();
+    private final List<BlockValue> blockValues = new ArrayList<BlockValue>();
+
+    /**
+     * The kernels for the values of variables as described by {@link PurityAnalysis#getDefinition(Variable)}.
+     * Null for variables whose values can't be evaluated over a whole block.
+     */
+    private final Map<Variable, SharedKernel> definitionKernels = new IdentityHashMap<Variable, SharedKernel>();
+
+    /**
+     * The temporary variables whose assignments can't be evaluated as kernels, since that leaves them unassigned.
+     */
+    private final Set<Variable> assignedTemporaries = new HashSet<Variable>();
+
+    /**
+     * The number of {@link BlockValue}s and {@link SharedKernel}s, which get their values from the frame's {@link State}.
+     */
+    private int blockValueCount = 0;
+    private int sharedKernelCount = 0;
+
+    /**
+     * @param root The tree to evaluate
+     * @param time The variable that receives the time values
+     */
+    public BlockEvaluator(RValue root, Variable time) {
+        this.source = root;
+        this.time = time;
+
+        final RValue source = root instanceof CompiledNode ? ((CompiledNode) root).getSource() : root;
+
+        analysis = new PurityAnalysis(source, time);
+
+        rootKernel = createKernel(source);
+        if (rootKernel != null) {
+            this.root = source;
+        }
+        else {
+            RValue split = split(source);
+            while (findKernelTemporaries(split, assignedTemporaries)) {
+                // Some temporary variables are read where the splitting doesn't reach, so they need to be assigned after all.
+                kernels.clear();
+                blockValues.clear();
+                definitionKernels.clear();
+                blockValueCount = 0;
+                sharedKernelCount = 0;
+                split = split(source);
+            }
+            if (kernels.isEmpty()) {
+                this.root = root;
+            }
+            else if (root instanceof CompiledNode) {
+                // The parts between the kernels shouldn't fall back to the interpreter.
+                this.root = root instanceof RegisterProgram ? RegisterCompiler.compile(split) : BytecodeCompiler.compile(split);
+                ControlFlow.prepare(this.root);
+            }
+            else {
+                this.root = split;
+            }
+        }
+    }
+
+    /**
+     * @return the tree this evaluator was created for
+     */
+    public RValue getSource() {
+        return source;
+    }
+
+    /**
+     * Evaluates the tree for the time values t[offset] to t[offset + count - 1]
+     * and stores the results in the same range of out.
+     */
+    public void evaluate(Frame frame, double[] t, double[] out, int offset, int count) throws EvaluationException {
+        State state = frame.blockState;
+        if (state == null || state.evaluator != this) {
+            frame.blockState = state = new State(this);
+        }
+
+        state.frame = frame;
+        state.t = t;
+        for (int done = 0; done < count; done += MAX_BLOCK_SIZE) {
+            evaluateBlock(state, out, offset + done, Math.min(MAX_BLOCK_SIZE, count - done));
+        }
+    }
+
+    private void evaluateBlock(State state, double[] out, int offset, int count) throws EvaluationException {
+        final Frame frame = state.frame;
+        final double[] t = state.t;
+        state.tOffset = offset;
+        state.count = count;
+        ++state.block;
+
+        if (rootKernel != null) {
+            rootKernel.evaluate(state, out, offset);
+            frame.values[time.slot] = t[offset + count - 1];
+            return;
+        }
+
+        for (int i = 0; i < kernels.size(); ++i) {
+            kernels.get(i).evaluate(state, state.blockValues[blockValues.get(i).id], 0);
+        }
+
+        for (int index = 0; index < count; ++index) {
+            state.index = index;
+            frame.values[time.slot] = t[offset + index];
+            try {
+                out[offset + index] = frame.finish(root.getValue(frame));
+            }
+            catch (ReturnException e) {
+                out[offset + index] = e.getValue();
+            }
+        }
+    }
+
+    /**
+     * The values of the blocks and the scratch space for evaluating an expression with one frame.
+     */
+    static final class State {
+        private final BlockEvaluator evaluator;
+        private final double[][] blockValues;
+        private final double[][] sharedValues;
+        private final int[] evaluatedBlocks;
+
+        private final List<double[]> scratch = new ArrayList<double[]>();
+        private int scratchUsed = 0;
+
+        private Frame frame;
+        private double[] t;
+        private int tOffset;
+        private int count;
+        private int index;
+
+        /**
+         * Counts the evaluated blocks, so shared kernels know when they're out of date.
+         */
+        private int block = 0;
+
+        State(BlockEvaluator evaluator) {
+            this.evaluator = evaluator;
+
+            blockValues = new double[evaluator.blockValueCount][MAX_BLOCK_SIZE];
+            sharedValues = new double[evaluator.sharedKernelCount][MAX_BLOCK_SIZE];
+            evaluatedBlocks = new int[evaluator.sharedKernelCount];
+        }
+
+        private double[] acquire() {
+            if (scratchUsed == scratch.size()) {
+                scratch.add(new double[MAX_BLOCK_SIZE]);
+            }
+
+            return scratch.get(scratchUsed++);
+        }
+    }
+
+    /**
+     * @return a kernel evaluating the given subtree over a whole block or null if the subtree isn't pure
+     */
+    private Kernel createKernel(RValue node) {
+        if (node instanceof Constant) {
+            return new ConstantKernel(((Constant) node).getValue());
+        }
+
+        if (node instanceof Variable) {
+            if (analysis.isAssigned((Variable) node)) {
+                return getDefinitionKernel((Variable) node);
+            }
+
+            return new VariableKernel((Variable) node);
+        }
+
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            if (operation.isDynamic()) {
+                return null;
+            }
+
+            // Nobody looks at temporary variables after the evaluation, so they don't need to be assigned.
+            final Variable temporary = getDefinedTemporary(operation);
+            if (temporary != null) {
+                return getDefinitionKernel(temporary);
+            }
+
+            final RValue[] operands = operation.getOperands();
+            final Kernel[] operandKernels = new Kernel[operands.length];
+            for (int i = 0; i < operands.length; ++i) {
+                if (operation.isLValue(i)) {
+                    return null;
+                }
+
+                if ((operandKernels[i] = createKernel(operands[i])) == null) {
+                    return null;
+                }
+            }
+
+            return new OperationKernel(operation, operandKernels);
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+
+            final Kernel condition = createKernel(conditional.condition);
+            if (condition == null) {
+                return null;
+            }
+
+            final Kernel truePart = createKernel(conditional.truePart);
+            if (truePart == null) {
+                return null;
+            }
+
+            final Kernel falsePart = conditional.falsePart == null ? new ConstantKernel(0.0) : createKernel(conditional.falsePart);
+            if (falsePart == null) {
+                return null;
+            }
+
+            return new ConditionalKernel(condition, truePart, falsePart);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a kernel for the value of the given variable or null if it can't be evaluated over a whole block
+     */
+    private SharedKernel getDefinitionKernel(Variable variable) {
+        if (definitionKernels.containsKey(variable)) {
+            return definitionKernels.get(variable);
+        }
+
+        final RValue definition = analysis.getDefinition(variable);
+        if (definition == null) {
+            definitionKernels.put(variable, null);
+            return null;
+        }
+
+        // Guards against variables defined in terms of themselves.
+        definitionKernels.put(variable, null);
+        final Kernel kernel = createKernel(definition);
+        final SharedKernel ret = kernel == null ? null : new SharedKernel(kernel);
+        definitionKernels.put(variable, ret);
+
+        return ret;
+    }
+
+    /**
+     * @return the variable if the given operation is the assignment defining a temporary variable that
+     *         can be evaluated as a kernel, otherwise null
+     */
+    private Variable getDefinedTemporary(Operation operation) {
+        if (!(operation instanceof Operators.Ass)) {
+            return null;
+        }
+
+        final RValue[] operands = operation.getOperands();
+        if (!(operands[0] instanceof Variable) || !((Variable) operands[0]).isTemporary() || assignedTemporaries.contains(operands[0])) {
+            return null;
+        }
+
+        if (analysis.getDefinition((Variable) operands[0]) != operands[1]) {
+            return null;
+        }
+
+        return (Variable) operands[0];
+    }
+
+    /**
+     * Finds the temporary variables read by the split tree that might not be assigned anymore.
+     *
+     * @param found Receives the variables
+     * @return true if variables were added
+     */
+    private boolean findKernelTemporaries(RValue node, Set<Variable> found) {
+        if (node instanceof Variable) {
+            final Variable variable = (Variable) node;
+            return variable.isTemporary() && definitionKernels.get(variable) != null && found.add(variable);
+        }
+
+        boolean ret = false;
+        for (RValue child : CommonSubexpressions.getChildren(node)) {
+            ret |= findKernelTemporaries(child, found);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Replaces the pure subtrees of an impure tree by {@link BlockValue}s.
+     */
+    private RValue split(RValue node) {
+        if (node instanceof Constant) {
+            return node;
+        }
+
+        if (node instanceof Variable) {
+            final Variable variable = (Variable) node;
+            if (!variable.isTemporary() || assignedTemporaries.contains(variable)) {
+                return node;
+            }
+
+            final SharedKernel definitionKernel = getDefinitionKernel(variable);
+            if (definitionKernel == null) {
+                return node;
+            }
+
+            final BlockValue blockValue = new BlockValue(node);
+            kernels.add(definitionKernel);
+            blockValues.add(blockValue);
+            return blockValue;
+        }
+
+        final Kernel kernel = createKernel(node);
+        if (kernel != null) {
+            final BlockValue blockValue = new BlockValue(node);
+            kernels.add(kernel);
+            blockValues.add(blockValue);
+            return blockValue;
+        }
+
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+
+            // The assignment keeps the variable up to date, but its value comes from the shared kernel.
+            if (operation instanceof Operators.Ass && operands[0] instanceof Variable && analysis.getDefinition((Variable) operands[0]) == operands[1]) {
+                final SharedKernel definitionKernel = getDefinitionKernel((Variable) operands[0]);
+                if (definitionKernel != null) {
+                    final BlockValue blockValue = new BlockValue(operands[1]);
+                    kernels.add(definitionKernel);
+                    blockValues.add(blockValue);
+                    operands[1] = blockValue;
+                    return operation.withOperands(operation.getPosition(), operands);
+                }
+            }
+
+            for (int i = 0; i < operands.length; ++i) {
+                if (!operation.isLValue(i)) {
+                    operands[i] = split(operands[i]);
+                }
+            }
+
+            return operation.withOperands(operation.getPosition(), operands);
+        }
+
+        if (node instanceof Sequence) {
+            final RValue[] statements = ((Sequence) node).sequence.clone();
+            for (int i = 0; i < statements.length; ++i) {
+                statements[i] = split(statements[i]);
+            }
+
+            return new Sequence(node.getPosition(), statements);
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            return new Conditional(
+                node.getPosition(),
+                split(conditional.condition),
+                split(conditional.truePart),
+                conditional.falsePart == null ? null : split(conditional.falsePart)
+            );
+        }
+
+        return node;
+    }
+
+    /**
+     * Stands in for a pure subtree inside a tree that's evaluated sample by sample.
+     */
+    private final class BlockValue extends Node {
+        private final RValue source;
+        final int id = blockValueCount++;
+
+        BlockValue(RValue source) {
+            super(source.getPosition());
+
+            this.source = source;
+        }
+
+        @Override
+        public double getValue(Frame frame) {
+            final State state = frame.blockState;
+            return state.blockValues[id][state.index];
+        }
+
+        @Override
+        public char id() {
+            return source.id();
+        }
+
+        @Override
+        public String toString() {
+            return source.toString();
+        }
+    }
+
+    private abstract class Kernel {
+        /**
+         * Evaluates the subtree for the current block and stores the results in out, starting at offset.
+         */
+        abstract void evaluate(State state, double[] out, int offset) throws EvaluationException;
+    }
+
+    private final class ConstantKernel extends Kernel {
+        private final double value;
+
+        ConstantKernel(double value) {
+            this.value = value;
+        }
+
+        @Override
+        void evaluate(State state, double[] out, int offset) {
+            Arrays.fill(out, offset, offset + state.count, value);
+        }
+    }
+
+    private final class VariableKernel extends Kernel {
+        private final Variable variable;
+
+        VariableKernel(Variable variable) {
+            this.variable = variable;
+        }
+
+        @Override
+        void evaluate(State state, double[] out, int offset) {
+            if (variable == time) {
+                System.arraycopy(state.t, state.tOffset, out, offset, state.count);
+            }
+            else {
+                Arrays.fill(out, offset, offset + state.count, state.frame.values[variable.slot]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates a kernel that is used in several places only once per block.
+     */
+    private final class SharedKernel extends Kernel {
+        private final Kernel kernel;
+        private final int id = sharedKernelCount++;
+
+        SharedKernel(Kernel kernel) {
+            this.kernel = kernel;
+        }
+
+        @Override
+        void evaluate(State state, double[] out, int offset) throws EvaluationException {
+            final double[] values = state.sharedValues[id];
+            if (state.evaluatedBlocks[id] != state.block) {
+                kernel.evaluate(state, values, 0);
+                state.evaluatedBlocks[id] = state.block;
+            }
+
+            System.arraycopy(values, 0, out, offset, state.count);
+        }
+    }
+
+    private final class ConditionalKernel extends Kernel {
+        private final Kernel condition;
+        private final Kernel truePart;
+        private final Kernel falsePart;
+
+        ConditionalKernel(Kernel condition, Kernel truePart, Kernel falsePart) {
+            this.condition = condition;
+            this.truePart = truePart;
+            this.falsePart = falsePart;
+        }
+
+        @Override
+        void evaluate(State state, double[] out, int offset) throws EvaluationException {
+            final int mark = state.scratchUsed;
+            final double[] conditionValues = state.acquire();
+            final double[] trueValues = state.acquire();
+            final double[] falseValues = state.acquire();
+
+            condition.evaluate(state, conditionValues, 0);
+            truePart.evaluate(state, trueValues, 0);
+            falsePart.evaluate(state, falseValues, 0);
+
+            final int count = state.count;
+            for (int i = 0; i < count; ++i) {
+                out[offset + i] = conditionValues[i] > 0.0 ? trueValues[i] : falseValues[i];
+            }
+
+            state.scratchUsed = mark;
+        }
+    }
+
+    private final class OperationKernel extends Kernel {
+        private final Kernel[] operands;
+        private final int opcode;
+
+        /**
+         * The operation with its operands replaced by {@link #operandValues},
+         * for operations without a specialized loop.
+         */
+        private final RValue generic;
+        private final BlockValue[] operandValues;
+
+        OperationKernel(Operation operation, Kernel[] operands) {
+            this.operands = operands;
+
+            final Integer opcode = opcodes.get(operation.getName());
+            this.opcode = opcode == null ? GENERIC : opcode;
+
+            if (this.opcode == GENERIC) {
+                final RValue[] sources = operation.getOperands();
+                operandValues = new BlockValue[operands.length];
+                for (int i = 0; i < operands.length; ++i) {
+                    sources[i] = operandValues[i] = new BlockValue(sources[i]);
+                }
+                generic = operation.withOperands(operation.getPosition(), sources);
+            }
+            else {
+                operandValues = null;
+                generic = null;
+            }
+        }
+
+        @Override
+        void evaluate(State state, double[] out, int offset) throws EvaluationException {
+            final int count = state.count;
+            if (opcode == GENERIC) {
+                for (int i = 0; i < operands.length; ++i) {
+                    operands[i].evaluate(state, state.blockValues[operandValues[i].id], 0);
+                }
+
+                final Frame frame = state.frame;
+                final int oldIndex = state.index;
+                for (int index = 0; index < count; ++index) {
+                    state.index = index;
+                    out[offset + index] = generic.getValue(frame);
+                }
+                state.index = oldIndex;
+                return;
+            }
+
+            final int mark = state.scratchUsed;
+            final double[] a = state.acquire();
+            operands[0].evaluate(state, a, 0);
+
+            final double[] b;
+            if (operands.length > 1) {
+                b = state.acquire();
+                operands[1].evaluate(state, b, 0);
+            }
+            else {
+                b = null;
+            }
+
+            final double[] c;
+            if (operands.length > 2) {
+                c = state.acquire();
+                operands[2].evaluate(state, c, 0);
+            }
+            else {
+                c = null;
+            }
+
+            switch (opcode) {
+            case ADD:
+                for (int i = 0; i < count; ++i) out[offset + i] = a[i] + b[i];
+                break;
+
+            case SUB:
+                for (int i = 0; i < count; ++i) out[offset + i] = a[i] - b[i];
+                break;
+
+            case MUL:
+                for (int i = 0; i < count; ++i) out[offset + i] = a[i] * b[i];
+                break;
+
+            case DIV:
+                for (int i = 0; i < count; ++i) out[offset + i] = a[i] / b[i];
+                break;
+
+            case MOD:
+                for (int i = 0; i < count; ++i) out[offset + i] = a[i] % b[i];
+                break;
+
+            case NEG:
+                for (int i = 0; i < count; ++i) out[offset + i] = -a[i];
+                break;
+
+            case POW:
+                for (int i = 0; i < count; ++i) out[offset + i] = Math.pow(a[i], b[i]);
+                break;
+
+            case SIN:
+                for (int i = 0; i < count; ++i) out[offset + i] = Math.sin(a[i]);
+                break;
+
+            case COS:
+                for (int i = 0; i < count; ++i) out[offset + i] = Math.cos(a[i]);
+                break;
+
+            case SQRT:
+                for (int i = 0; i < count; ++i) out[offset + i] = Math.sqrt(a[i]);
+                break;
+
+            case ABS:
+                for (int i = 0; i < count; ++i) out[offset + i] = Math.abs(a[i]);
+                break;
+
+            case FLOOR:
+                for (int i = 0; i < count; ++i) out[offset + i] = Math.floor(a[i]);
+                break;
+
+            case MIN:
+                if (c == null) {
+                    for (int i = 0; i < count; ++i) out[offset + i] = Math.min(a[i], b[i]);
+                }
+                else {
+                    for (int i = 0; i < count; ++i) out[offset + i] = Math.min(a[i], Math.min(b[i], c[i]));
+                }
+                break;
+
+            case MAX:
+                if (c == null) {
+                    for (int i = 0; i < count; ++i) out[offset + i] = Math.max(a[i], b[i]);
+                }
+                else {
+                    for (int i = 0; i < count; ++i) out[offset + i] = Math.max(a[i], Math.max(b[i], c[i]));
+                }
+                break;
+            }
+
+            state.scratchUsed = mark;
+        }
+    }
+}
@@ -26,6 +26,12 @@ package eu.tomylobo.expression.runtime;
 public class Break extends Node {
     boolean doContinue;
 
+    /**
+     * Set by {@link ControlFlow} if all nodes up to the enclosing loop check {@link Frame#jump}.
+     * Otherwise a {@link BreakException} is thrown.
+     */
+    boolean signal;
+
     public Break(int position, boolean doContinue) {
         super(position);
 
@@ -33,8 +39,13 @@ public class Break extends Node {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
-        throw new BreakException(doContinue);
+    public double getValue(Frame frame) throws EvaluationException {
+        if (!signal) {
+            throw new BreakException(doContinue);
+        }
+
+        frame.jump = doContinue ? Frame.CONTINUE : Frame.BREAK;
+        return 0.0;
     }
 
     @Override
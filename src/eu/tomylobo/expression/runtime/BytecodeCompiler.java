@@ -0,0 +1,952 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import eu.tomylobo.ccnoise.common.TileEntitySpeaker;
+import eu.tomylobo.expression.bytecode.ClassFile;
+import eu.tomylobo.expression.bytecode.Code;
+import eu.tomylobo.expression.bytecode.Label;
+
+/**
+ * Compiles an optimized expression tree into a JVM class, so the JIT can inline the arithmetic.
+ *
+ * The generated class extends {@link CompiledNode} and replaces the root of the tree.
+ * Nodes the compiler doesn't know about are kept and invoked through {@link RValue#getValue(Frame)}.
+ * If the tree can't be compiled at all, the original tree is returned.
+ *
+ * @author TomyLobo
+ */
+public final class BytecodeCompiler {
+    private static final String RVALUE = "eu/tomylobo/expression/runtime/RValue";
+    private static final String FRAME = "eu/tomylobo/expression/runtime/Frame";
+    private static final String COMPILED_NODE = "eu/tomylobo/expression/runtime/CompiledNode";
+    private static final String EVALUATION_EXCEPTION = "eu/tomylobo/expression/runtime/EvaluationException";
+    private static final String BREAK_EXCEPTION = "eu/tomylobo/expression/runtime/BreakException";
+    private static final String MATH = "java/lang/Math";
+
+    private static int classCounter = 0;
+
+    private static final Map<String, Integer> arithmeticOpcodes = new HashMap<String, Integer>();
+    private static final Map<String, String> mathFunctions = new HashMap<String, String>();
+
+    /**
+     * Maps comparison operators to { compare opcode, jump if true, jump if false }.
+     * DCMPG/DCMPL are chosen so that comparisons with NaN come out false.
+     */
+    private static final Map<String, int[]> comparisons = new HashMap<String, int[]>();
+    static {
+        comparisons.put("lth", new int[] { Code.DCMPG, Code.IFLT, Code.IFGE });
+        comparisons.put("leq", new int[] { Code.DCMPG, Code.IFLE, Code.IFGT });
+        comparisons.put("gth", new int[] { Code.DCMPL, Code.IFGT, Code.IFLE });
+        comparisons.put("geq", new int[] { Code.DCMPL, Code.IFGE, Code.IFLT });
+        comparisons.put("equ", new int[] { Code.DCMPL, Code.IFEQ, Code.IFNE });
+        comparisons.put("neq", new int[] { Code.DCMPL, Code.IFNE, Code.IFEQ });
+
+        arithmeticOpcodes.put("add", Code.DADD);
+        arithmeticOpcodes.put("sub", Code.DSUB);
+        arithmeticOpcodes.put("mul", Code.DMUL);
+        arithmeticOpcodes.put("div", Code.DDIV);
+        arithmeticOpcodes.put("mod", Code.DREM);
+
+        mathFunctions.put("sin", "sin");
+        mathFunctions.put("cos", "cos");
+        mathFunctions.put("tan", "tan");
+        mathFunctions.put("asin", "asin");
+        mathFunctions.put("acos", "acos");
+        mathFunctions.put("atan", "atan");
+        mathFunctions.put("sinh", "sinh");
+        mathFunctions.put("cosh", "cosh");
+        mathFunctions.put("tanh", "tanh");
+        mathFunctions.put("sqrt", "sqrt");
+        mathFunctions.put("cbrt", "cbrt");
+        mathFunctions.put("abs", "abs");
+        mathFunctions.put("ceil", "ceil");
+        mathFunctions.put("floor", "floor");
+        mathFunctions.put("rint", "rint");
+        mathFunctions.put("exp", "exp");
+        mathFunctions.put("ln", "log");
+        mathFunctions.put("log", "log");
+        mathFunctions.put("log10", "log10");
+    }
+
+    /**
+     * Thrown when a construct can't be compiled and the whole tree needs to stay interpreted.
+     */
+    private static final class UnsupportedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A construct that break or continue can jump out of.
+     */
+    private static final class JumpTarget {
+        final Label breakLabel;
+        final Label continueLabel;
+        final int stack;
+
+        JumpTarget(Label breakLabel, Label continueLabel, int stack) {
+            this.breakLabel = breakLabel;
+            this.continueLabel = continueLabel;
+            this.stack = stack;
+        }
+    }
+
+    private static final class GeneratedClassLoader extends ClassLoader {
+        GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private final List<RValue> references = new ArrayList<RValue>();
+    private final LinkedList<JumpTarget> jumpTargets = new LinkedList<JumpTarget>();
+    private Code code;
+    private int valuesLocal;
+
+    private BytecodeCompiler() {
+    }
+
+    /**
+     * Compiles the given tree.
+     *
+     * @param root the root of an optimized tree
+     * @return a {@link CompiledNode} or the original tree, if it couldn't be compiled
+     */
+    public static RValue compile(RValue root) {
+        if (root instanceof Constant || root instanceof CompiledNode) {
+            return root;
+        }
+
+        try {
+            return new BytecodeCompiler().compileRoot(root);
+        }
+        catch (UnsupportedException e) {
+            return root;
+        }
+        catch (IllegalStateException e) {
+            // Method too large, jump offsets out of range, etc.
+            return root;
+        }
+        catch (LinkageError e) {
+            return root;
+        }
+        catch (SecurityException e) {
+            return root;
+        }
+        catch (NoSuchMethodException e) {
+            return root;
+        }
+        catch (InstantiationException e) {
+            return root;
+        }
+        catch (IllegalAccessException e) {
+            return root;
+        }
+        catch (InvocationTargetException e) {
+            return root;
+        }
+    }
+
+    private RValue compileRoot(RValue root) throws UnsupportedException, NoSuchMethodException, InstantiationException, IllegalAccessException, InvocationTargetException {
+        final String className;
+        synchronized (BytecodeCompiler.class) {
+            className = "eu/tomylobo/expression/runtime/generated/Compiled" + (++classCounter);
+        }
+
+        final ClassFile classFile = new ClassFile(className, COMPILED_NODE);
+
+        final Code constructor = new Code(classFile, 4);
+        constructor.var(Code.ALOAD, 0);
+        constructor.var(Code.ILOAD, 1);
+        constructor.var(Code.ALOAD, 2);
+        constructor.var(Code.ALOAD, 3);
+        constructor.invoke(Code.INVOKESPECIAL, COMPILED_NODE, "<init>", "(IL" + RVALUE + ";[L" + RVALUE + ";)V");
+        constructor.insn(Code.RETURN);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "(IL" + RVALUE + ";[L" + RVALUE + ";)V", constructor);
+
+        // The frame's values are loaded into a local up front, so variables are plain array accesses.
+        code = new Code(classFile, 2);
+        valuesLocal = code.newLocal(1);
+        code.var(Code.ALOAD, 1);
+        code.field(Code.GETFIELD, FRAME, "values", "[D");
+        code.var(Code.ASTORE, valuesLocal);
+
+        compileNode(root);
+        code.insn(Code.DRETURN);
+        classFile.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL, "getValue", "(L" + FRAME + ";)D", code);
+
+        final byte[] bytes = classFile.toByteArray();
+        final GeneratedClassLoader loader = new GeneratedClassLoader(CompiledNode.class.getClassLoader());
+        final Class<?> generatedClass = loader.define(className.replace('/', '.'), bytes);
+        final Constructor<?> generatedConstructor = generatedClass.getConstructor(int.class, RValue.class, RValue[].class);
+
+        return (RValue) generatedConstructor.newInstance(root.getPosition(), root, references.toArray(new RValue[references.size()]));
+    }
+
+    /**
+     * Emits code that leaves the value of the given node on the operand stack.
+     */
+    private void compileNode(RValue node) throws UnsupportedException {
+        if (node instanceof Constant) {
+            code.dconst(((Constant) node).getValue());
+        }
+        else if (node instanceof Variable) {
+            loadSlot(node);
+            code.insn(Code.DALOAD);
+        }
+        else if (node instanceof Operation) {
+            compileOperation((Operation) node);
+        }
+        else if (node instanceof Sequence) {
+            compileSequence((Sequence) node);
+        }
+        else if (node instanceof Conditional) {
+            compileConditional((Conditional) node);
+        }
+        else if (node instanceof While) {
+            compileWhile((While) node);
+        }
+        else if (node instanceof For) {
+            compileFor((For) node);
+        }
+        else if (node instanceof SimpleFor) {
+            compileSimpleFor((SimpleFor) node);
+        }
+        else if (node instanceof Switch) {
+            compileSwitch((Switch) node);
+        }
+        else if (node instanceof Break) {
+            compileBreak((Break) node);
+        }
+        else if (node instanceof Return) {
+            compileNode(((Return) node).value);
+            code.insn(Code.DRETURN);
+            code.adjustStack(2);
+        }
+        else {
+            invokeReference(node);
+        }
+    }
+
+    private void compileOperation(Operation operation) throws UnsupportedException {
+        final Class<?> owner = operation.getClass().getEnclosingClass();
+        final String name = operation.getName();
+        final RValue[] args = operation.getOperands();
+
+        if (owner == Operators.class) {
+            if (compileOperator(operation, name, args)) {
+                return;
+            }
+        }
+        else if (owner == Functions.class) {
+            if (compileBuiltin(name, args)) {
+                return;
+            }
+        }
+
+        invokeReference(operation);
+    }
+
+    private boolean compileOperator(Operation operation, String name, RValue[] args) throws UnsupportedException {
+        if (args.length == 1) {
+            final RValue x = args[0];
+
+            if (name.equals("neg")) {
+                compileNode(x);
+                code.insn(Code.DNEG);
+                return true;
+            }
+
+            if (name.equals("inv")) {
+                compileNode(x);
+                code.insn(Code.D2L);
+                code.lconst(-1L);
+                code.insn(Code.LXOR);
+                code.insn(Code.L2D);
+                return true;
+            }
+
+            if (name.equals("not")) {
+                compileBoolean(operation);
+                return true;
+            }
+
+            if (!(x instanceof Variable)) {
+                return false;
+            }
+
+            if (name.equals("inc") || name.equals("dec")) {
+                // x = x + 1
+                loadSlot(x);
+                code.insn(Code.DUP2);
+                code.insn(Code.DALOAD);
+                code.insn(Code.DCONST_1);
+                code.insn(name.equals("inc") ? Code.DADD : Code.DSUB);
+                code.insn(Code.DUP2_X2);
+                code.insn(Code.DASTORE);
+                return true;
+            }
+
+            if (name.equals("postinc") || name.equals("postdec")) {
+                // old = x; x = old + 1; old
+                loadSlot(x);
+                code.insn(Code.DUP2);
+                code.insn(Code.DALOAD);
+                code.insn(Code.DUP2_X2);
+                code.insn(Code.DCONST_1);
+                code.insn(name.equals("postinc") ? Code.DADD : Code.DSUB);
+                code.insn(Code.DASTORE);
+                return true;
+            }
+
+            return false;
+        }
+
+        if (args.length != 2) {
+            return false;
+        }
+
+        final RValue lhs = args[0];
+        final RValue rhs = args[1];
+
+        final Integer arithmeticOpcode = arithmeticOpcodes.get(name);
+        if (arithmeticOpcode != null) {
+            compileNode(lhs);
+            compileNode(rhs);
+            code.insn(arithmeticOpcode);
+            return true;
+        }
+
+        if (name.equals("pow")) {
+            compileNode(lhs);
+            compileNode(rhs);
+            code.invoke(Code.INVOKESTATIC, MATH, "pow", "(DD)D");
+            return true;
+        }
+
+        if (name.equals("shl") || name.equals("shr")) {
+            compileNode(lhs);
+            code.insn(Code.D2L);
+            compileNode(rhs);
+            code.insn(Code.D2L);
+            code.insn(Code.L2I);
+            code.insn(name.equals("shl") ? Code.LSHL : Code.LSHR);
+            code.insn(Code.L2D);
+            return true;
+        }
+
+        if (comparisons.containsKey(name) || name.equals("and") || name.equals("or")) {
+            compileBoolean(operation);
+            return true;
+        }
+
+        if (name.startsWith("a") && lhs instanceof Variable) {
+            final String operator = name.substring(1);
+            if (operator.equals("ss")) {
+                // x = rhs
+                loadSlot(lhs);
+                compileNode(rhs);
+                code.insn(Code.DUP2_X2);
+                code.insn(Code.DASTORE);
+                return true;
+            }
+
+            final Integer opcode = arithmeticOpcodes.get(operator.equals("exp") ? "pow" : operator);
+            if (opcode == null && !operator.equals("exp")) {
+                return false;
+            }
+
+            // x = x op rhs
+            loadSlot(lhs);
+            code.insn(Code.DUP2);
+            code.insn(Code.DALOAD);
+            compileNode(rhs);
+            if (opcode == null) {
+                code.invoke(Code.INVOKESTATIC, MATH, "pow", "(DD)D");
+            }
+            else {
+                code.insn(opcode);
+            }
+            code.insn(Code.DUP2_X2);
+            code.insn(Code.DASTORE);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean compileBuiltin(String name, RValue[] args) throws UnsupportedException {
+        switch (args.length) {
+        case 1: {
+            final String mathFunction = mathFunctions.get(name);
+            if (mathFunction != null) {
+                compileNode(args[0]);
+                code.invoke(Code.INVOKESTATIC, MATH, mathFunction, "(D)D");
+                return true;
+            }
+
+            if (name.equals("round")) {
+                compileNode(args[0]);
+                code.invoke(Code.INVOKESTATIC, MATH, "round", "(D)J");
+                code.insn(Code.L2D);
+                return true;
+            }
+
+            if (name.equals("sign")) {
+                final Label notNegative = new Label();
+                final Label zero = new Label();
+                final Label end = new Label();
+
+                compileNode(args[0]);
+                code.insn(Code.DUP2);
+                code.insn(Code.DCONST_0);
+                code.insn(Code.DCMPG);
+                code.jump(Code.IFGE, notNegative);
+                code.insn(Code.POP2);
+                code.dconst(-1.0);
+                code.jump(Code.GOTO, end);
+
+                code.place(notNegative);
+                code.insn(Code.DCONST_0);
+                code.insn(Code.DCMPL);
+                code.jump(Code.IFLE, zero);
+                code.insn(Code.DCONST_1);
+                code.jump(Code.GOTO, end);
+
+                code.place(zero);
+                code.insn(Code.DCONST_0);
+
+                code.place(end);
+                return true;
+            }
+
+            return false;
+        }
+
+        case 2:
+            if (name.equals("atan2") || name.equals("min") || name.equals("max")) {
+                compileNode(args[0]);
+                compileNode(args[1]);
+                code.invoke(Code.INVOKESTATIC, MATH, name, "(DD)D");
+                return true;
+            }
+
+            if (!(args[0] instanceof Variable)) {
+                return false;
+            }
+
+            if (name.equals("_integrate")) {
+                compileIntegrate(args[0], args[1]);
+                return true;
+            }
+
+            if (name.equals("sawtooth")) {
+                compileIntegrate(args[0], args[1]);
+                code.insn(Code.DCONST_1);
+                code.insn(Code.DREM);
+                return true;
+            }
+
+            if (name.equals("sine")) {
+                code.dconst(2 * Math.PI);
+                compileIntegrate(args[0], args[1]);
+                code.insn(Code.DMUL);
+                code.invoke(Code.INVOKESTATIC, MATH, "sin", "(D)D");
+                return true;
+            }
+
+            if (name.equals("rect")) {
+                // (x % 1 < 0.5) ? -1 : 1
+                final Label high = new Label();
+                final Label end = new Label();
+
+                compileIntegrate(args[0], args[1]);
+                code.insn(Code.DCONST_1);
+                code.insn(Code.DREM);
+                code.dconst(0.5);
+                code.insn(Code.DCMPG);
+                code.jump(Code.IFGE, high);
+                code.dconst(-1.0);
+                code.jump(Code.GOTO, end);
+
+                code.place(high);
+                code.insn(Code.DCONST_1);
+
+                code.place(end);
+                return true;
+            }
+
+            if (name.equals("triangle")) {
+                // abs((x * 2 + 1) % 2 - 1) * 2 - 1
+                compileIntegrate(args[0], args[1]);
+                code.dconst(2.0);
+                code.insn(Code.DMUL);
+                code.insn(Code.DCONST_1);
+                code.insn(Code.DADD);
+                code.dconst(2.0);
+                code.insn(Code.DREM);
+                code.insn(Code.DCONST_1);
+                code.insn(Code.DSUB);
+                code.invoke(Code.INVOKESTATIC, MATH, "abs", "(D)D");
+                code.dconst(2.0);
+                code.insn(Code.DMUL);
+                code.insn(Code.DCONST_1);
+                code.insn(Code.DSUB);
+                return true;
+            }
+
+            return false;
+
+        case 3:
+            if (name.equals("min") || name.equals("max")) {
+                compileNode(args[0]);
+                compileNode(args[1]);
+                compileNode(args[2]);
+                code.invoke(Code.INVOKESTATIC, MATH, name, "(DD)D");
+                code.invoke(Code.INVOKESTATIC, MATH, name, "(DD)D");
+                return true;
+            }
+
+            return false;
+
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * state = state % 1 + frequency / SAMPLE_RATE
+     */
+    private void compileIntegrate(RValue state, RValue frequency) throws UnsupportedException {
+        loadSlot(state);
+        code.insn(Code.DUP2);
+        code.insn(Code.DALOAD);
+        code.insn(Code.DCONST_1);
+        code.insn(Code.DREM);
+        compileNode(frequency);
+        code.dconst(TileEntitySpeaker.SAMPLE_RATE);
+        code.insn(Code.DDIV);
+        code.insn(Code.DADD);
+        code.insn(Code.DUP2_X2);
+        code.insn(Code.DASTORE);
+    }
+
+    /**
+     * Emits code that pushes 1.0 if the condition holds and 0.0 otherwise.
+     */
+    private void compileBoolean(RValue condition) throws UnsupportedException {
+        final Label falseLabel = new Label();
+        final Label end = new Label();
+
+        compileBranch(condition, false, falseLabel);
+        code.insn(Code.DCONST_1);
+        code.jump(Code.GOTO, end);
+
+        code.place(falseLabel);
+        code.insn(Code.DCONST_0);
+
+        code.place(end);
+    }
+
+    /**
+     * Emits code that jumps to the given label if the condition is (or isn't) true.
+     * Comparisons and logical operators are compiled into branches directly.
+     *
+     * @param condition The condition to test
+     * @param jumpIfTrue Whether to jump if the condition holds or if it doesn't
+     * @param target The label to jump to
+     */
+    private void compileBranch(RValue condition, boolean jumpIfTrue, Label target) throws UnsupportedException {
+        final String name = operatorName(condition);
+        if (name != null) {
+            final RValue[] args = ((Operation) condition).getOperands();
+
+            final int[] comparison = comparisons.get(name);
+            if (comparison != null && args.length == 2) {
+                compileNode(args[0]);
+                compileNode(args[1]);
+                code.insn(comparison[0]);
+                code.jump(jumpIfTrue ? comparison[1] : comparison[2], target);
+                return;
+            }
+
+            if (name.equals("not") && args.length == 1) {
+                compileBranch(args[0], !jumpIfTrue, target);
+                return;
+            }
+
+            if (name.equals("and") && args.length == 2) {
+                if (jumpIfTrue) {
+                    final Label skip = new Label();
+                    compileBranch(args[0], false, skip);
+                    compileBranch(args[1], true, target);
+                    code.place(skip);
+                }
+                else {
+                    compileBranch(args[0], false, target);
+                    compileBranch(args[1], false, target);
+                }
+                return;
+            }
+
+            if (name.equals("or") && args.length == 2) {
+                if (jumpIfTrue) {
+                    compileBranch(args[0], true, target);
+                    compileBranch(args[1], true, target);
+                }
+                else {
+                    final Label skip = new Label();
+                    compileBranch(args[0], true, skip);
+                    compileBranch(args[1], false, target);
+                    code.place(skip);
+                }
+                return;
+            }
+        }
+
+        compileNode(condition);
+        code.insn(Code.DCONST_0);
+        code.insn(Code.DCMPL);
+        code.jump(jumpIfTrue ? Code.IFGT : Code.IFLE, target);
+    }
+
+    /**
+     * @return the name of the operator, if the node is an operator, null otherwise
+     */
+    private static String operatorName(RValue node) {
+        if (!(node instanceof Operation) || node.getClass().getEnclosingClass() != Operators.class) {
+            return null;
+        }
+
+        return ((Operation) node).getName();
+    }
+
+    private void compileSequence(Sequence sequence) throws UnsupportedException {
+        final RValue[] statements = sequence.sequence;
+        if (statements.length == 0) {
+            code.insn(Code.DCONST_0);
+            return;
+        }
+
+        for (int i = 0; i < statements.length; ++i) {
+            if (i > 0) {
+                code.insn(Code.POP2);
+            }
+            compileNode(statements[i]);
+        }
+    }
+
+    private void compileConditional(Conditional conditional) throws UnsupportedException {
+        final Label falseLabel = new Label();
+        final Label end = new Label();
+
+        compileBranch(conditional.condition, false, falseLabel);
+        compileNode(conditional.truePart);
+        code.jump(Code.GOTO, end);
+
+        code.place(falseLabel);
+        if (conditional.falsePart == null) {
+            code.insn(Code.DCONST_0);
+        }
+        else {
+            compileNode(conditional.falsePart);
+        }
+
+        code.place(end);
+    }
+
+    private void compileWhile(While loop) throws UnsupportedException {
+        final int ret = code.newLocal(2);
+        final int iterations = code.newLocal(1);
+        final Label top = new Label();
+        final Label next = new Label();
+        final Label end = new Label();
+
+        code.insn(Code.DCONST_0);
+        code.var(Code.DSTORE, ret);
+        code.insn(Code.ICONST_0);
+        code.var(Code.ISTORE, iterations);
+
+        if (loop.footChecked) {
+            code.place(top);
+            compileLoopBody(loop.getPosition(), loop.body, ret, iterations, end, next);
+
+            code.place(next);
+            compileBranch(loop.condition, true, top);
+        }
+        else {
+            code.place(next);
+            compileBranch(loop.condition, false, end);
+            compileLoopBody(loop.getPosition(), loop.body, ret, iterations, end, next);
+            code.jump(Code.GOTO, next);
+        }
+
+        code.place(end);
+        code.var(Code.DLOAD, ret);
+    }
+
+    private void compileFor(For loop) throws UnsupportedException {
+        final int ret = code.newLocal(2);
+        final int iterations = code.newLocal(1);
+        final Label condition = new Label();
+        final Label next = new Label();
+        final Label end = new Label();
+
+        code.insn(Code.DCONST_0);
+        code.var(Code.DSTORE, ret);
+        code.insn(Code.ICONST_0);
+        code.var(Code.ISTORE, iterations);
+
+        compileNode(loop.init);
+        code.insn(Code.POP2);
+
+        code.place(condition);
+        compileBranch(loop.condition, false, end);
+        compileLoopBody(loop.getPosition(), loop.body, ret, iterations, end, next);
+
+        code.place(next);
+        compileNode(loop.increment);
+        code.insn(Code.POP2);
+        code.jump(Code.GOTO, condition);
+
+        code.place(end);
+        code.var(Code.DLOAD, ret);
+    }
+
+    private void compileSimpleFor(SimpleFor loop) throws UnsupportedException {
+        if (!(loop.counter instanceof Variable)) {
+            invokeReference(loop);
+            return;
+        }
+
+        final int ret = code.newLocal(2);
+        final int iterations = code.newLocal(1);
+        final int counter = code.newLocal(2);
+        final int last = code.newLocal(2);
+        final Label condition = new Label();
+        final Label next = new Label();
+        final Label end = new Label();
+
+        code.insn(Code.DCONST_0);
+        code.var(Code.DSTORE, ret);
+        code.insn(Code.ICONST_0);
+        code.var(Code.ISTORE, iterations);
+
+        compileNode(loop.first);
+        code.var(Code.DSTORE, counter);
+        compileNode(loop.last);
+        code.var(Code.DSTORE, last);
+
+        // while (counter <= last)
+        code.place(condition);
+        code.var(Code.DLOAD, counter);
+        code.var(Code.DLOAD, last);
+        code.insn(Code.DCMPG);
+        code.jump(Code.IFGT, end);
+
+        // The counter has to be assigned before the iteration check, since the body needs it.
+        loadSlot(loop.counter);
+        code.var(Code.DLOAD, counter);
+        code.insn(Code.DASTORE);
+        compileLoopBody(loop.getPosition(), loop.body, ret, iterations, end, next);
+
+        code.place(next);
+        code.var(Code.DLOAD, counter);
+        code.insn(Code.DCONST_1);
+        code.insn(Code.DADD);
+        code.var(Code.DSTORE, counter);
+        code.jump(Code.GOTO, condition);
+
+        code.place(end);
+        code.var(Code.DLOAD, ret);
+    }
+
+    /**
+     * Emits the iteration limit check and the loop body, storing the body's value in the given local.
+     */
+    private void compileLoopBody(int position, RValue body, int ret, int iterations, Label breakLabel, Label continueLabel) throws UnsupportedException {
+        final Label withinLimit = new Label();
+
+        code.var(Code.ILOAD, iterations);
+        code.iconst(256);
+        code.jump(Code.IF_ICMPLE, withinLimit);
+        throwException(EVALUATION_EXCEPTION, position, "Loop exceeded 256 iterations.");
+        code.place(withinLimit);
+        code.iinc(iterations, 1);
+
+        jumpTargets.addFirst(new JumpTarget(breakLabel, continueLabel, code.getStack()));
+        compileNode(body);
+        jumpTargets.removeFirst();
+
+        code.var(Code.DSTORE, ret);
+    }
+
+    private void compileSwitch(Switch switchNode) throws UnsupportedException {
+        final int parameter = code.newLocal(2);
+        final int ret = code.newLocal(2);
+        final RValue[] caseStatements = switchNode.caseStatements;
+        final Label[] caseLabels = new Label[caseStatements.length];
+        final Label afterCases = new Label();
+        final Label breakLabel = new Label();
+        final Label end = new Label();
+
+        compileNode(switchNode.parameter);
+        code.var(Code.DSTORE, parameter);
+        code.insn(Code.DCONST_0);
+        code.var(Code.DSTORE, ret);
+
+        for (int i = 0; i < caseLabels.length; ++i) {
+            caseLabels[i] = new Label();
+        }
+
+        if (switchNode.table != null) {
+            // Only integers can match, everything else (including NaN) fails the round trip through int.
+            code.var(Code.DLOAD, parameter);
+            code.var(Code.DLOAD, parameter);
+            code.insn(Code.D2I);
+            code.insn(Code.I2D);
+            code.insn(Code.DCMPL);
+            code.jump(Code.IFNE, afterCases);
+
+            final Label[] tableLabels = new Label[switchNode.table.length];
+            for (int i = 0; i < tableLabels.length; ++i) {
+                tableLabels[i] = getCaseLabel(caseLabels, switchNode.table[i], afterCases);
+            }
+
+            code.var(Code.DLOAD, parameter);
+            code.insn(Code.D2I);
+            code.tableSwitch(switchNode.tableStart, afterCases, tableLabels);
+        }
+        else {
+            for (int i = 0; i < switchNode.values.length; ++i) {
+                code.var(Code.DLOAD, parameter);
+                code.dconst(switchNode.values[i]);
+                code.insn(Code.DCMPL);
+                code.jump(Code.IFEQ, getCaseLabel(caseLabels, switchNode.targets[i], afterCases));
+            }
+            code.jump(Code.GOTO, afterCases);
+        }
+
+        // break leaves the switch, continue goes to the enclosing loop.
+        jumpTargets.addFirst(new JumpTarget(breakLabel, null, code.getStack()));
+        for (int i = 0; i < caseStatements.length; ++i) {
+            code.place(caseLabels[i]);
+            compileNode(caseStatements[i]);
+            code.var(Code.DSTORE, ret);
+        }
+
+        code.place(afterCases);
+        if (switchNode.defaultCase == null) {
+            code.var(Code.DLOAD, ret);
+        }
+        else {
+            compileNode(switchNode.defaultCase);
+        }
+        jumpTargets.removeFirst();
+        code.jump(Code.GOTO, end);
+
+        if (breakLabel.getStack() >= 0) {
+            code.place(breakLabel);
+            code.insn(Code.DCONST_0);
+        }
+
+        code.place(end);
+    }
+
+    /**
+     * @param target The index of a case statement, the number of case statements or -1
+     * @return the label of the case statement or afterCases if there is none
+     */
+    private static Label getCaseLabel(Label[] caseLabels, int target, Label afterCases) {
+        return target >= 0 && target < caseLabels.length ? caseLabels[target] : afterCases;
+    }
+
+    private void compileBreak(Break breakNode) throws UnsupportedException {
+        for (JumpTarget target : jumpTargets) {
+            final Label label = breakNode.doContinue ? target.continueLabel : target.breakLabel;
+            if (label == null) {
+                continue;
+            }
+
+            if (code.getStack() != target.stack) {
+                throw new UnsupportedException("Can't jump out of an expression with values on the stack.");
+            }
+
+            code.jump(Code.GOTO, label);
+            code.adjustStack(2);
+            return;
+        }
+
+        // Not inside a loop, so do what the interpreter does.
+        code.type(Code.NEW, BREAK_EXCEPTION);
+        code.insn(Code.DUP);
+        code.iconst(breakNode.doContinue ? 1 : 0);
+        code.invoke(Code.INVOKESPECIAL, BREAK_EXCEPTION, "<init>", "(Z)V");
+        code.insn(Code.ATHROW);
+        code.adjustStack(2);
+    }
+
+    private void throwException(String exceptionClass, int position, String message) {
+        code.type(Code.NEW, exceptionClass);
+        code.insn(Code.DUP);
+        code.iconst(position);
+        code.sconst(message);
+        code.invoke(Code.INVOKESPECIAL, exceptionClass, "<init>", "(ILjava/lang/String;)V");
+        code.insn(Code.ATHROW);
+    }
+
+    /**
+     * Pushes the frame's values and the variable's slot, for DALOAD or DASTORE.
+     */
+    private void loadSlot(RValue variable) {
+        code.var(Code.ALOAD, valuesLocal);
+        code.iconst(((Variable) variable).slot);
+    }
+
+    private void loadReference(RValue node) {
+        final int index = references.size();
+        references.add(node);
+
+        code.var(Code.ALOAD, 0);
+        code.field(Code.GETFIELD, COMPILED_NODE, "references", "[L" + RVALUE + ";");
+        code.iconst(index);
+        code.insn(Code.AALOAD);
+    }
+
+    private void invokeReference(RValue node) {
+        loadReference(node);
+        code.var(Code.ALOAD, 1);
+        code.invoke(Code.INVOKEINTERFACE, RVALUE, "getValue", "(L" + FRAME + ";)D");
+    }
+}
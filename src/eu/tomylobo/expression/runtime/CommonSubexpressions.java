@@ -0,0 +1,564 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.tomylobo.expression.Expression;
+
+/**
+ * Evaluates structurally equal subtrees only once per evaluation.
+ *
+ * Operations without side effects and conditionals made of them are candidates. If a candidate
+ * is always evaluated before an equal one and none of the variables it reads can be assigned in
+ * between, the first one stores its value in a temporary variable and the second one reads it.
+ *
+ * Dynamic operations and functions are never candidates, since they don't always return the same value.
+ *
+ * @author TomyLobo
+ */
+public final class CommonSubexpressions {
+    private final Expression expression;
+
+    /**
+     * Structurally equal candidates get the same id.
+     */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final Map<RValue, Integer> nodeIds = new IdentityHashMap<RValue, Integer>();
+
+    /**
+     * The slots of the variables read by each candidate, by id.
+     */
+    private final List<BitSet> reads = new ArrayList<BitSet>();
+
+    /**
+     * The first evaluated candidate whose value each later one can use.
+     */
+    private final Map<RValue, RValue> replacements = new IdentityHashMap<RValue, RValue>();
+    private final Map<RValue, Variable> temporaries = new IdentityHashMap<RValue, Variable>();
+
+    private CommonSubexpressions(Expression expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * @param root An optimized tree
+     * @param expression The expression that provides the temporary variables
+     * @return the new tree
+     */
+    public static RValue eliminate(RValue root, Expression expression) {
+        final CommonSubexpressions pass = new CommonSubexpressions(expression);
+
+        pass.identify(root);
+        pass.findReplacements(root, new LinkedHashMap<Integer, RValue>());
+        if (pass.replacements.isEmpty()) {
+            return root;
+        }
+
+        return pass.rewrite(root);
+    }
+
+    /**
+     * Assigns an id to every candidate in the subtree.
+     *
+     * @return the key that identifies the subtree or null if it can't be a part of a candidate
+     */
+    private String identify(RValue node) {
+        if (node instanceof Constant) {
+            return "c" + Double.doubleToLongBits(((Constant) node).getValue());
+        }
+
+        if (node instanceof Variable) {
+            return "v" + ((Variable) node).slot;
+        }
+
+        final StringBuilder key = new StringBuilder();
+        final RValue[] children;
+        boolean candidate;
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            children = operation.getOperands();
+            candidate = !hasSideEffects(operation);
+
+            key.append(operation.getClass().getName());
+        }
+        else if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            children = new RValue[] { conditional.condition, conditional.truePart, conditional.falsePart == null ? new Constant(-1, 0.0) : conditional.falsePart };
+            candidate = true;
+
+            key.append('?');
+        }
+        else {
+            for (RValue child : getChildren(node)) {
+                identify(child);
+            }
+            return null;
+        }
+
+        // Identify all children, even if this node already isn't a candidate, to find the candidates among them.
+        final BitSet nodeReads = new BitSet();
+        key.append('(');
+        for (RValue child : children) {
+            final String childKey = identify(child);
+            if (childKey == null) {
+                candidate = false;
+                continue;
+            }
+
+            key.append(childKey).append(',');
+            if (child instanceof Variable) {
+                nodeReads.set(((Variable) child).slot);
+            }
+            else if (!(child instanceof Constant)) {
+                nodeReads.or(reads.get(nodeIds.get(child)));
+            }
+        }
+
+        if (!candidate) {
+            return null;
+        }
+
+        // The key of a candidate refers to its children by their ids, so keys don't grow with the depth of the tree.
+        Integer id = ids.get(key.toString());
+        if (id == null) {
+            id = reads.size();
+            ids.put(key.toString(), id);
+            reads.add(nodeReads);
+        }
+        nodeIds.put(node, id);
+
+        return "#" + id;
+    }
+
+    /**
+     * Walks the subtree in the order it is evaluated and records which candidates can use the value of an earlier one.
+     *
+     * @param available The earliest candidate with each id whose value is still valid. Updated as the subtree is evaluated.
+     */
+    private void findReplacements(RValue node, Map<Integer, RValue> available) {
+        final Integer id = nodeIds.get(node);
+        if (id != null) {
+            final RValue previous = available.get(id);
+            if (previous != null) {
+                replacements.put(node, previous);
+                // Created now, since the earlier candidate might be rewritten before this one.
+                getTemporary(previous);
+                return;
+            }
+        }
+
+        if (node instanceof Constant || node instanceof Variable || node instanceof Break) {
+            // Nothing to do
+        }
+        else if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+
+            if (operation instanceof Operators.Ass) {
+                findReplacements(operands[1], available);
+                if (!(operands[0] instanceof Variable)) {
+                    findReplacementsConditionally(operands[0], available);
+                }
+            }
+            else if (operation instanceof Operators.And || operation instanceof Operators.Or) {
+                findReplacements(operands[0], available);
+                findReplacementsConditionally(operands[1], available);
+            }
+            else if (!hasSideEffects(operation)) {
+                for (RValue operand : operands) {
+                    findReplacements(operand, available);
+                }
+            }
+            else {
+                // Operations with side effects might evaluate their operands in any order or not at all.
+                for (RValue operand : operands) {
+                    findReplacementsConditionally(operand, available);
+                }
+            }
+
+            for (int i = 0; i < operands.length; ++i) {
+                if (operation.isLValue(i) && operands[i] instanceof Variable) {
+                    kill(available, ((Variable) operands[i]).slot);
+                }
+            }
+        }
+        else if (node instanceof Function) {
+            // Functions decide on their own whether and when to evaluate their arguments.
+            for (RValue arg : ((Function) node).args) {
+                findReplacementsConditionally(arg, available);
+            }
+            kill(available, findAssignments(node));
+        }
+        else if (node instanceof Sequence) {
+            for (RValue statement : ((Sequence) node).sequence) {
+                findReplacements(statement, available);
+            }
+        }
+        else if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            findReplacements(conditional.condition, available);
+            findReplacementsConditionally(conditional.truePart, available);
+            if (conditional.falsePart != null) {
+                findReplacementsConditionally(conditional.falsePart, available);
+            }
+        }
+        else if (node instanceof While) {
+            final While loop = (While) node;
+
+            // Values from before the loop can only be used in the loop if the loop doesn't change them.
+            kill(available, findAssignments(loop));
+            final Map<Integer, RValue> entry = copy(available);
+
+            if (loop.footChecked) {
+                // A continue statement might skip the rest of the body.
+                findReplacements(loop.body, copy(available));
+                findReplacements(loop.condition, copy(available));
+            }
+            else {
+                findReplacements(loop.condition, available);
+                findReplacements(loop.body, copy(available));
+            }
+
+            // A break statement might leave the body at any point.
+            reset(available, entry);
+        }
+        else if (node instanceof For) {
+            final For loop = (For) node;
+            findReplacements(loop.init, available);
+
+            kill(available, findAssignments(loop));
+            final Map<Integer, RValue> entry = copy(available);
+
+            findReplacements(loop.condition, available);
+            findReplacements(loop.body, copy(available));
+            findReplacements(loop.increment, copy(entry));
+
+            reset(available, entry);
+        }
+        else if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            findReplacements(loop.first, available);
+            findReplacements(loop.last, available);
+
+            kill(available, findAssignments(loop));
+            if (!(loop.counter instanceof Variable)) {
+                findReplacements(loop.counter, copy(available));
+            }
+            findReplacements(loop.body, copy(available));
+        }
+        else if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+            findReplacements(switchStatement.parameter, available);
+
+            // Evaluation can start at any case.
+            for (RValue caseStatement : switchStatement.caseStatements) {
+                findReplacementsConditionally(caseStatement, available);
+            }
+            if (switchStatement.defaultCase != null) {
+                findReplacementsConditionally(switchStatement.defaultCase, available);
+            }
+        }
+        else if (node instanceof Return) {
+            findReplacements(((Return) node).value, available);
+        }
+        else {
+            // Unknown node types might do anything to the frame.
+            available.clear();
+            return;
+        }
+
+        if (id != null) {
+            available.put(id, node);
+        }
+    }
+
+    /**
+     * Operations without side effects evaluate each of their operands once, in order.
+     */
+    private static boolean hasSideEffects(Operation operation) {
+        if (operation.isDynamic()) {
+            return true;
+        }
+
+        final int operandCount = operation.getOperands().length;
+        for (int i = 0; i < operandCount; ++i) {
+            if (operation.isLValue(i)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Walks a subtree that might not be evaluated.
+     * Its candidates can use earlier values, but later ones can't use its values.
+     */
+    private void findReplacementsConditionally(RValue node, Map<Integer, RValue> available) {
+        findReplacements(node, copy(available));
+        kill(available, findAssignments(node));
+    }
+
+    /**
+     * Removes the values that read the given variable.
+     */
+    private void kill(Map<Integer, RValue> available, int slot) {
+        for (Iterator<Integer> it = available.keySet().iterator(); it.hasNext(); ) {
+            if (reads.get(it.next()).get(slot)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the values that read any of the given variables.
+     *
+     * @param slots The slots of the variables or null for all variables
+     */
+    private void kill(Map<Integer, RValue> available, BitSet slots) {
+        if (slots == null) {
+            available.clear();
+            return;
+        }
+
+        for (Iterator<Integer> it = available.keySet().iterator(); it.hasNext(); ) {
+            if (reads.get(it.next()).intersects(slots)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the slots of the variables the subtree might assign or null if that's not known
+     */
+    static BitSet findAssignments(RValue node) {
+        final BitSet ret = new BitSet();
+        return findAssignments(node, ret) ? ret : null;
+    }
+
+    private static boolean findAssignments(RValue node, BitSet slots) {
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+            for (int i = 0; i < operands.length; ++i) {
+                if (operation.isLValue(i) && operands[i] instanceof Variable) {
+                    slots.set(((Variable) operands[i]).slot);
+                }
+            }
+        }
+        else if (node instanceof Function) {
+            // Variables passed to LValue parameters might be assigned.
+            final Function function = (Function) node;
+            final Class<?>[] parameters = function.method.getParameterTypes();
+            for (int i = 0; i < function.args.length; ++i) {
+                if (function.args[i] instanceof Variable && LValue.class.isAssignableFrom(parameters[i + 1])) {
+                    slots.set(((Variable) function.args[i]).slot);
+                }
+            }
+        }
+        else if (node instanceof SimpleFor) {
+            final LValue counter = ((SimpleFor) node).counter;
+            if (counter instanceof Variable) {
+                slots.set(((Variable) counter).slot);
+            }
+        }
+        else if (node instanceof CompiledNode) {
+            return false;
+        }
+
+        for (RValue child : getChildren(node)) {
+            if (!findAssignments(child, slots)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces the recorded candidates by the temporary variables holding their values
+     * and makes the candidates they use assign them.
+     */
+    private RValue rewrite(RValue node) {
+        final RValue previous = replacements.get(node);
+        if (previous != null) {
+            return getTemporary(previous);
+        }
+
+        RValue ret = node;
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+
+            boolean changed = false;
+            for (int i = 0; i < operands.length; ++i) {
+                final RValue operand = rewrite(operands[i]);
+                changed |= operand != operands[i];
+                operands[i] = operand;
+            }
+
+            if (changed) {
+                ret = operation.withOperands(operation.getPosition(), operands);
+            }
+        }
+        else if (node instanceof Function) {
+            final RValue[] args = ((Function) node).args;
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = rewrite(args[i]);
+            }
+        }
+        else if (node instanceof Sequence) {
+            final RValue[] sequence = ((Sequence) node).sequence;
+            for (int i = 0; i < sequence.length; ++i) {
+                sequence[i] = rewrite(sequence[i]);
+            }
+        }
+        else if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            conditional.condition = rewrite(conditional.condition);
+            conditional.truePart = rewrite(conditional.truePart);
+            if (conditional.falsePart != null) {
+                conditional.falsePart = rewrite(conditional.falsePart);
+            }
+        }
+        else if (node instanceof While) {
+            final While loop = (While) node;
+            loop.condition = rewrite(loop.condition);
+            loop.body = rewrite(loop.body);
+        }
+        else if (node instanceof For) {
+            final For loop = (For) node;
+            loop.init = rewrite(loop.init);
+            loop.condition = rewrite(loop.condition);
+            loop.increment = rewrite(loop.increment);
+            loop.body = rewrite(loop.body);
+        }
+        else if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            loop.counter = (LValue) rewrite(loop.counter);
+            loop.first = rewrite(loop.first);
+            loop.last = rewrite(loop.last);
+            loop.body = rewrite(loop.body);
+        }
+        else if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+            switchStatement.parameter = rewrite(switchStatement.parameter);
+            for (int i = 0; i < switchStatement.caseStatements.length; ++i) {
+                switchStatement.caseStatements[i] = rewrite(switchStatement.caseStatements[i]);
+            }
+            if (switchStatement.defaultCase != null) {
+                switchStatement.defaultCase = rewrite(switchStatement.defaultCase);
+            }
+        }
+        else if (node instanceof Return) {
+            final Return returnStatement = (Return) node;
+            returnStatement.value = rewrite(returnStatement.value);
+        }
+
+        final Variable temporary = temporaries.get(node);
+        if (temporary != null) {
+            return new Operators.Ass(node.getPosition(), temporary, ret);
+        }
+
+        return ret;
+    }
+
+    private Variable getTemporary(RValue node) {
+        Variable temporary = temporaries.get(node);
+        if (temporary == null) {
+            temporaries.put(node, temporary = expression.newTemporary());
+        }
+
+        return temporary;
+    }
+
+    /**
+     * @return the subtrees of the given node that are evaluated by it
+     */
+    static RValue[] getChildren(RValue node) {
+        if (node instanceof Operation) {
+            return ((Operation) node).getOperands();
+        }
+
+        if (node instanceof Function) {
+            return ((Function) node).args;
+        }
+
+        if (node instanceof Sequence) {
+            return ((Sequence) node).sequence;
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            if (conditional.falsePart == null) {
+                return new RValue[] { conditional.condition, conditional.truePart };
+            }
+            return new RValue[] { conditional.condition, conditional.truePart, conditional.falsePart };
+        }
+
+        if (node instanceof While) {
+            return new RValue[] { ((While) node).condition, ((While) node).body };
+        }
+
+        if (node instanceof For) {
+            final For loop = (For) node;
+            return new RValue[] { loop.init, loop.condition, loop.increment, loop.body };
+        }
+
+        if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            return new RValue[] { loop.counter, loop.first, loop.last, loop.body };
+        }
+
+        if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+            final List<RValue> ret = new ArrayList<RValue>();
+            ret.add(switchStatement.parameter);
+            Collections.addAll(ret, switchStatement.caseStatements);
+            if (switchStatement.defaultCase != null) {
+                ret.add(switchStatement.defaultCase);
+            }
+            return ret.toArray(new RValue[ret.size()]);
+        }
+
+        if (node instanceof Return) {
+            return new RValue[] { ((Return) node).value };
+        }
+
+        return new RValue[0];
+    }
+
+    private static Map<Integer, RValue> copy(Map<Integer, RValue> available) {
+        return new LinkedHashMap<Integer, RValue>(available);
+    }
+
+    private static void reset(Map<Integer, RValue> available, Map<Integer, RValue> entry) {
+        available.clear();
+        available.putAll(entry);
+    }
+}
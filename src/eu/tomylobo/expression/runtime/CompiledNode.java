@@ -0,0 +1,55 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+/**
+ * Base class for the nodes generated by {@link BytecodeCompiler} and {@link RegisterCompiler}.
+ *
+ * The generated subclass or {@link RegisterProgram} implements {@link #getValue(Frame)}.
+ *
+ * @author TomyLobo
+ */
+public abstract class CompiledNode extends Node {
+    private final RValue source;
+    protected final RValue[] references;
+
+    protected CompiledNode(int position, RValue source, RValue[] references) {
+        super(position);
+
+        this.source = source;
+        this.references = references;
+    }
+
+    /**
+     * @return the tree this node was compiled from
+     */
+    public RValue getSource() {
+        return source;
+    }
+
+    @Override
+    public char id() {
+        return 'x';
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+}
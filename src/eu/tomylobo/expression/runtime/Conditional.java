@@ -40,12 +40,12 @@ public class Conditional extends Node {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
-        if (condition.getValue() > 0.0) {
-            return truePart.getValue();
+    public double getValue(Frame frame) throws EvaluationException {
+        if (condition.getValue(frame) > 0.0) {
+            return truePart.getValue(frame);
         }
         else {
-            return falsePart == null ? 0.0 : falsePart.getValue();
+            return falsePart == null ? 0.0 : falsePart.getValue(frame);
         }
     }
 
@@ -72,7 +72,7 @@ public class Conditional extends Node {
         final RValue newCondition = condition.optimize();
 
         if (newCondition instanceof Constant) {
-            if (newCondition.getValue() > 0) {
+            if (((Constant) newCondition).getValue() > 0) {
                 return truePart.optimize();
             }
             else {
@@ -87,7 +87,9 @@ public class Conditional extends Node {
     public RValue bindVariables(Expression expression, boolean preferLValue) throws ParserException {
         condition = condition.bindVariables(expression, false);
         truePart = truePart.bindVariables(expression, false);
-        falsePart = falsePart.bindVariables(expression, false);
+        if (falsePart != null) {
+            falsePart = falsePart.bindVariables(expression, false);
+        }
 
         return this;
     }
@@ -31,11 +31,15 @@ public final class Constant extends Node {
         this.value = value;
     }
 
-    @Override
     public double getValue() {
         return value;
     }
 
+    @Override
+    public double getValue(Frame frame) {
+        return value;
+    }
+
     @Override
     public String toString() {
         return String.valueOf(value);
@@ -0,0 +1,117 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+/**
+ * Prepares break, continue and return statements for evaluation without exceptions.
+ *
+ * A statement that is only enclosed by sequences, branches of conditionals, switch cases and loop bodies
+ * up to the node that handles it sets {@link Frame#jump} instead of throwing an exception, since all
+ * of those nodes stop evaluating when it's set. Statements anywhere else, like in the operand of an
+ * operation, still throw a {@link BreakException} or {@link ReturnException}.
+ *
+ * This has to be done whenever the tree changes, since the same statement might end up in a different place.
+ *
+ * @author TomyLobo
+ */
+public final class ControlFlow {
+    private ControlFlow() {
+    }
+
+    /**
+     * @param root The root of the tree that is going to be evaluated
+     */
+    public static void prepare(RValue root) {
+        // Jumps that reach the root are handled by Frame.finish.
+        prepare(root, true, true, true);
+    }
+
+    private static void prepare(RValue node, boolean canBreak, boolean canContinue, boolean canReturn) {
+        if (node instanceof Break) {
+            final Break breakNode = (Break) node;
+            breakNode.signal = breakNode.doContinue ? canContinue : canBreak;
+        }
+        else if (node instanceof Return) {
+            ((Return) node).signal = canReturn;
+            prepareOperand(((Return) node).value);
+        }
+        else if (node instanceof Sequence) {
+            for (RValue statement : ((Sequence) node).sequence) {
+                prepare(statement, canBreak, canContinue, canReturn);
+            }
+        }
+        else if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            prepareOperand(conditional.condition);
+            prepare(conditional.truePart, canBreak, canContinue, canReturn);
+            if (conditional.falsePart != null) {
+                prepare(conditional.falsePart, canBreak, canContinue, canReturn);
+            }
+        }
+        else if (node instanceof While) {
+            final While loop = (While) node;
+            prepareOperand(loop.condition);
+            prepare(loop.body, true, true, canReturn);
+        }
+        else if (node instanceof For) {
+            final For loop = (For) node;
+            prepareOperand(loop.init);
+            prepareOperand(loop.condition);
+            prepareOperand(loop.increment);
+            prepare(loop.body, true, true, canReturn);
+        }
+        else if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            prepareOperand(loop.counter);
+            prepareOperand(loop.first);
+            prepareOperand(loop.last);
+            prepare(loop.body, true, true, canReturn);
+        }
+        else if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+            prepareOperand(switchStatement.parameter);
+            for (RValue caseStatement : switchStatement.caseStatements) {
+                prepare(caseStatement, true, canContinue, canReturn);
+            }
+            if (switchStatement.defaultCase != null) {
+                prepare(switchStatement.defaultCase, true, canContinue, canReturn);
+            }
+        }
+        else if (node instanceof Operation) {
+            for (RValue operand : ((Operation) node).getOperands()) {
+                prepareOperand(operand);
+            }
+        }
+        else if (node instanceof Function) {
+            for (RValue arg : ((Function) node).args) {
+                prepareOperand(arg);
+            }
+        }
+        else if (node instanceof CompiledNode) {
+            // The generated code doesn't check the frame after evaluating a reference.
+            for (RValue reference : ((CompiledNode) node).references) {
+                prepareOperand(reference);
+            }
+        }
+    }
+
+    private static void prepareOperand(RValue node) {
+        prepare(node, false, false, false);
+    }
+}
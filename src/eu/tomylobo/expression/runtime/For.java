@@ -42,18 +42,19 @@ public class For extends Node {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
+    public double getValue(Frame frame) throws EvaluationException {
         int iterations = 0;
         double ret = 0.0;
 
-        for (init.getValue(); condition.getValue() > 0; increment.getValue()) {
+        for (init.getValue(frame); condition.getValue(frame) > 0; increment.getValue(frame)) {
             if (iterations > 256) {
                 throw new EvaluationException(getPosition(), "Loop exceeded 256 iterations.");
             }
             ++iterations;
 
+            final double value;
             try {
-                ret = body.getValue();
+                value = body.getValue(frame);
             }
             catch (BreakException e) {
                 if (e.doContinue) {
@@ -63,6 +64,23 @@ public class For extends Node {
                     break;
                 }
             }
+
+            if (frame.jump != Frame.NONE) {
+                if (frame.jump == Frame.RETURN) {
+                    return value;
+                }
+
+                final boolean doContinue = frame.jump == Frame.CONTINUE;
+                frame.jump = Frame.NONE;
+                if (doContinue) {
+                    continue;
+                }
+                else {
+                    break;
+                }
+            }
+
+            ret = value;
         }
 
         return ret;
@@ -82,14 +100,17 @@ public class For extends Node {
     public RValue optimize() throws EvaluationException {
         final RValue newCondition = condition.optimize();
 
-        if (newCondition instanceof Constant && newCondition.getValue() <= 0) {
+        if (newCondition instanceof Constant && ((Constant) newCondition).getValue() <= 0) {
             // If the condition is always false, the loop can be flattened.
             // So we run the init part and then return 0.0.
             return new Sequence(getPosition(), init, new Constant(getPosition(), 0.0)).optimize();
         }
 
         //return new Sequence(getPosition(), init.optimize(), new While(getPosition(), condition, new Sequence(getPosition(), body, increment), false)).optimize();
-        return new For(getPosition(), init.optimize(), newCondition, increment.optimize(), body.optimize());
+        final For optimized = new For(getPosition(), init.optimize(), newCondition, increment.optimize(), body.optimize());
+
+        final RValue unrolled = LoopUnrolling.unroll(optimized);
+        return unrolled == null ? optimized : unrolled;
     }
 
     @Override
@@ -0,0 +1,92 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.Random;
+
+/**
+ * Holds the state of an expression during evaluation:
+ * The values of its variables, its megabuf and its random number generator.
+ * It also points to the {@link GlobalMegabuf} that gmegabuf uses.
+ *
+ * Each variable is assigned a slot in the frame while the expression is parsed.
+ * The expression itself isn't modified by evaluating it, so several threads can
+ * evaluate the same expression at once, as long as each one uses its own frame.
+ *
+ * @author TomyLobo
+ */
+public final class Frame {
+    public final double[] values;
+    final Megabuf megabuf = new Megabuf();
+    final Random random = new Random();
+    GlobalMegabuf gmegabuf = GlobalMegabuf.SHARED;
+
+    static final int NONE = 0;
+    static final int BREAK = 1;
+    static final int CONTINUE = 2;
+    static final int RETURN = 3;
+
+    /**
+     * Set by break, continue and return statements that were prepared by {@link ControlFlow},
+     * so the enclosing statements stop evaluating until the statement handling it resets it.
+     */
+    int jump = NONE;
+
+    /**
+     * The block values of the last {@link BlockEvaluator} evaluated with this frame.
+     */
+    BlockEvaluator.State blockState;
+
+    /**
+     * The register file of the last {@link RegisterProgram} evaluated with this frame.
+     */
+    RegisterProgram registerProgram;
+    double[] registers;
+
+    public Frame(int size) {
+        values = new double[size];
+    }
+
+    /**
+     * Sets the buffer used by gmegabuf and gclosest.
+     * Expressions evaluated with frames that share a buffer can exchange data through it.
+     * By default, all frames share one buffer without a page limit.
+     */
+    public void setGlobalMegabuf(GlobalMegabuf gmegabuf) {
+        this.gmegabuf = gmegabuf;
+    }
+
+    /**
+     * Completes the evaluation of a whole expression.
+     *
+     * @param value The value of the expression's root node
+     * @return the value of the expression
+     * @throws BreakException if the evaluation ran into a break or continue outside a loop
+     */
+    public double finish(double value) throws EvaluationException {
+        final int jump = this.jump;
+        this.jump = NONE;
+
+        if (jump == BREAK || jump == CONTINUE) {
+            throw new BreakException(jump == CONTINUE);
+        }
+
+        return value;
+    }
+}
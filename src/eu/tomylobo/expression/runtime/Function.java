@@ -29,6 +29,9 @@ import eu.tomylobo.expression.parser.ParserException;
 /**
  * Wrapper for a Java method and its arguments (other Nodes)
  *
+ * Built-in operators and functions are {@link Operation}s. This class is only
+ * used for methods registered through {@link Functions#addFunction(java.lang.reflect.Method)}.
+ *
  * @author TomyLobo
  */
 public class Function extends Node {
@@ -49,8 +52,18 @@ public class Function extends Node {
     }
 
     @Override
-    public final double getValue() throws EvaluationException {
-        return invokeMethod(method, args);
+    public double getValue(Frame frame) throws EvaluationException {
+        return invokeMethod(method, buildArguments(frame, 0));
+    }
+
+    /**
+     * @return the frame, followed by the arguments and the given number of unset trailing elements
+     */
+    protected final Object[] buildArguments(Frame frame, int extraArguments) {
+        final Object[] arguments = new Object[args.length + 1 + extraArguments];
+        arguments[0] = frame;
+        System.arraycopy(args, 0, arguments, 1, args.length);
+        return arguments;
     }
 
     protected static final double invokeMethod(Method method, Object[] args) throws EvaluationException {
@@ -105,18 +118,35 @@ public class Function extends Node {
         }
 
         if (optimizable) {
-            return new Constant(position, invokeMethod(method, optimizedArgs));
+            // Constant arguments don't need a frame
+            final Object[] arguments = new Object[optimizedArgs.length + 1];
+            System.arraycopy(optimizedArgs, 0, arguments, 1, optimizedArgs.length);
+            return new Constant(position, invokeMethod(method, arguments));
         }
         else {
-            return new Function(position, method, optimizedArgs);
+            return copy(position, optimizedArgs);
         }
     }
 
+    /**
+     * @return a call to the same method with the given arguments
+     */
+    final Function withArguments(RValue... args) {
+        return copy(getPosition(), args);
+    }
+
+    /**
+     * @return a node of the same class, calling the same method with the given arguments
+     */
+    Function copy(int position, RValue[] args) {
+        return new Function(position, method, args);
+    }
+
     @Override
     public RValue bindVariables(Expression expression, boolean preferLValue) throws ParserException {
         Class<?>[] parameters = method.getParameterTypes();
         for (int i = 0; i < args.length; ++i) {
-            final boolean argumentPrefersLValue = LValue.class.isAssignableFrom(parameters[i]);
+            final boolean argumentPrefersLValue = LValue.class.isAssignableFrom(parameters[i + 1]);
             args[i] = args[i].bindVariables(expression, argumentPrefersLValue);
         }
 
@@ -26,7 +26,6 @@ import java.util.Map;
 import java.util.Random;
 
 import eu.tomylobo.ccnoise.common.TileEntitySpeaker;
-import eu.tomylobo.expression.Expression;
 import eu.tomylobo.expression.runtime.Function.Dynamic;
 
 /**
@@ -39,6 +38,7 @@ public final class Functions {
         private final Method method;
         private final int mask;
         private final boolean isSetter;
+        private final int argumentCount;
 
         public Overload(Method method) throws IllegalArgumentException {
             this.method = method;
@@ -46,7 +46,12 @@ public final class Functions {
             boolean isSetter = false;
             int accum = 0;
             Class<?>[] parameters = method.getParameterTypes();
-            for (Class<?> parameter : parameters) {
+            if (parameters.length == 0 || !Frame.class.equals(parameters[0])) {
+                throw new IllegalArgumentException("Method doesn't take a Frame as its first argument.");
+            }
+
+            for (int i = 1; i < parameters.length; ++i) {
+                final Class<?> parameter = parameters[i];
                 if (isSetter) {
                     throw new IllegalArgumentException("Method takes arguments that can't be cast to RValue.");
                 }
@@ -70,13 +75,14 @@ public final class Functions {
             }
             mask = accum;
             this.isSetter = isSetter;
+            argumentCount = parameters.length - (isSetter ? 2 : 1);
         }
 
         public boolean matches(boolean isSetter, RValue... args) {
             if (this.isSetter != isSetter)
                 return false;
 
-            if (this.method.getParameterTypes().length != args.length)
+            if (argumentCount != args.length)
                 return false;
 
             int accum = 0;
@@ -94,10 +100,24 @@ public final class Functions {
         }
     }
 
-    public static final Function getFunction(int position, String name, RValue... args) throws NoSuchMethodException {
+    public static final RValue getFunction(int position, String name, RValue... args) throws NoSuchMethodException {
+        final Operation builtin = Operation.instantiate(builtins.get(name), position, args);
+        if (builtin != null) {
+            return builtin;
+        }
+
         final Method getter = getMethod(name, false, args);
         try {
             Method setter = getMethod(name, true, args);
+            // Accessed directly, so reading and writing them doesn't box anything.
+            if (getter.getDeclaringClass() == Functions.class && name.equals("megabuf")) {
+                return new MegabufAccess(position, getter, setter, args[0]);
+            }
+
+            if (getter.getDeclaringClass() == Functions.class && name.equals("gmegabuf")) {
+                return new GlobalMegabufAccess(position, getter, setter, args[0]);
+            }
+
             return new LValueFunction(position, getter, setter, args);
         }
         catch (NoSuchMethodException e) {
@@ -128,6 +148,12 @@ public final class Functions {
     }
 
 
+    /**
+     * Registers a static method as a function.
+     *
+     * The method must take a {@link Frame}, followed by the arguments as RValues or LValues.
+     * A trailing double parameter makes the method the setter for assignments to the function.
+     */
     public static void addFunction(Method method) throws IllegalArgumentException {
         final String methodName = method.getName();
 
@@ -141,298 +167,830 @@ public final class Functions {
         overloads.add(overload);
     }
 
+    private static final Map<String, List<Operation>> builtins = new HashMap<String, List<Operation>>();
+    static {
+        addBuiltin(new Sin(-1, null));
+        addBuiltin(new Cos(-1, null));
+        addBuiltin(new Tan(-1, null));
+
+        addBuiltin(new Asin(-1, null));
+        addBuiltin(new Acos(-1, null));
+        addBuiltin(new Atan(-1, null));
+        addBuiltin(new Atan2(-1, null, null));
+
+        addBuiltin(new Sinh(-1, null));
+        addBuiltin(new Cosh(-1, null));
+        addBuiltin(new Tanh(-1, null));
+
+        addBuiltin(new Sqrt(-1, null));
+        addBuiltin(new Cbrt(-1, null));
+
+        addBuiltin(new Abs(-1, null));
+        addBuiltin(new Min(-1, null, null));
+        addBuiltin(new Min3(-1, null, null, null));
+        addBuiltin(new Max(-1, null, null));
+        addBuiltin(new Max3(-1, null, null, null));
+
+        addBuiltin(new Ceil(-1, null));
+        addBuiltin(new Floor(-1, null));
+        addBuiltin(new Rint(-1, null));
+        addBuiltin(new Round(-1, null));
+
+        addBuiltin(new Exp(-1, null));
+        addBuiltin(new Ln(-1, null));
+        addBuiltin(new Log(-1, null));
+        addBuiltin(new Log10(-1, null));
+
+        addBuiltin(new Sign(-1, null));
+
+        addBuiltin(new Integrate(-1, null, null));
+        addBuiltin(new Rect(-1, null, null));
+        addBuiltin(new Triangle(-1, null, null));
+        addBuiltin(new Sawtooth(-1, null, null));
+        addBuiltin(new Sine(-1, null, null));
+
+        addBuiltin(new WhiteNoise(-1));
+        addBuiltin(new BrownNoise(-1, null, null));
+        addBuiltin(new PinkNoise(-1));
+
+        addBuiltin(new Rotate(-1, null, null, null));
+        addBuiltin(new Swap(-1, null, null));
+
+        addBuiltin(new RandomValue(-1));
+        addBuiltin(new RandInt(-1, null));
+    }
+
+    private static void addBuiltin(Operation prototype) {
+        List<Operation> overloads = builtins.get(prototype.getName());
+        if (overloads == null) {
+            builtins.put(prototype.getName(), overloads = new ArrayList<Operation>());
+        }
 
-    public static final double sin(RValue x) throws EvaluationException {
-        return Math.sin(x.getValue());
+        overloads.add(prototype);
     }
 
-    public static final double cos(RValue x) throws EvaluationException {
-        return Math.cos(x.getValue());
+
+    static final class Sin extends UnaryOperation {
+        Sin(int position, RValue x) {
+            super(position, "sin", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.sin(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Sin(position, x);
+        }
     }
 
-    public static final double tan(RValue x) throws EvaluationException {
-        return Math.tan(x.getValue());
+    static final class Cos extends UnaryOperation {
+        Cos(int position, RValue x) {
+            super(position, "cos", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.cos(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Cos(position, x);
+        }
     }
 
+    static final class Tan extends UnaryOperation {
+        Tan(int position, RValue x) {
+            super(position, "tan", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.tan(x.getValue(frame));
+        }
 
-    public static final double asin(RValue x) throws EvaluationException {
-        return Math.asin(x.getValue());
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Tan(position, x);
+        }
     }
 
-    public static final double acos(RValue x) throws EvaluationException {
-        return Math.acos(x.getValue());
+
+    static final class Asin extends UnaryOperation {
+        Asin(int position, RValue x) {
+            super(position, "asin", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.asin(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Asin(position, x);
+        }
     }
 
-    public static final double atan(RValue x) throws EvaluationException {
-        return Math.atan(x.getValue());
+    static final class Acos extends UnaryOperation {
+        Acos(int position, RValue x) {
+            super(position, "acos", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.acos(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Acos(position, x);
+        }
+    }
+
+    static final class Atan extends UnaryOperation {
+        Atan(int position, RValue x) {
+            super(position, "atan", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.atan(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Atan(position, x);
+        }
     }
 
-    public static final double atan2(RValue y, RValue x) throws EvaluationException {
-        return Math.atan2(y.getValue(), x.getValue());
+    static final class Atan2 extends BinaryOperation {
+        Atan2(int position, RValue lhs, RValue rhs) {
+            super(position, "atan2", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.atan2(lhs.getValue(frame), rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Atan2(position, lhs, rhs);
+        }
     }
 
 
-    public static final double sinh(RValue x) throws EvaluationException {
-        return Math.sinh(x.getValue());
+    static final class Sinh extends UnaryOperation {
+        Sinh(int position, RValue x) {
+            super(position, "sinh", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.sinh(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Sinh(position, x);
+        }
     }
 
-    public static final double cosh(RValue x) throws EvaluationException {
-        return Math.cosh(x.getValue());
+    static final class Cosh extends UnaryOperation {
+        Cosh(int position, RValue x) {
+            super(position, "cosh", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.cosh(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Cosh(position, x);
+        }
     }
 
-    public static final double tanh(RValue x) throws EvaluationException {
-        return Math.tanh(x.getValue());
+    static final class Tanh extends UnaryOperation {
+        Tanh(int position, RValue x) {
+            super(position, "tanh", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.tanh(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Tanh(position, x);
+        }
     }
 
 
-    public static final double sqrt(RValue x) throws EvaluationException {
-        return Math.sqrt(x.getValue());
+    static final class Sqrt extends UnaryOperation {
+        Sqrt(int position, RValue x) {
+            super(position, "sqrt", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.sqrt(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Sqrt(position, x);
+        }
     }
 
-    public static final double cbrt(RValue x) throws EvaluationException {
-        return Math.cbrt(x.getValue());
+    static final class Cbrt extends UnaryOperation {
+        Cbrt(int position, RValue x) {
+            super(position, "cbrt", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.cbrt(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Cbrt(position, x);
+        }
     }
 
 
-    public static final double abs(RValue x) throws EvaluationException {
-        return Math.abs(x.getValue());
+    static final class Abs extends UnaryOperation {
+        Abs(int position, RValue x) {
+            super(position, "abs", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.abs(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Abs(position, x);
+        }
     }
 
-    public static final double min(RValue a, RValue b) throws EvaluationException {
-        return Math.min(a.getValue(), b.getValue());
+    static final class Min extends BinaryOperation {
+        Min(int position, RValue lhs, RValue rhs) {
+            super(position, "min", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.min(lhs.getValue(frame), rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Min(position, lhs, rhs);
+        }
     }
 
-    public static final double min(RValue a, RValue b, RValue c) throws EvaluationException {
-        return Math.min(a.getValue(), Math.min(b.getValue(), c.getValue()));
+    static final class Min3 extends TernaryOperation {
+        Min3(int position, RValue a, RValue b, RValue c) {
+            super(position, "min", a, b, c);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.min(a.getValue(frame), Math.min(b.getValue(frame), c.getValue(frame)));
+        }
+
+        @Override
+        TernaryOperation copy(int position, RValue a, RValue b, RValue c) {
+            return new Min3(position, a, b, c);
+        }
     }
 
-    public static final double max(RValue a, RValue b) throws EvaluationException {
-        return Math.max(a.getValue(), b.getValue());
+    static final class Max extends BinaryOperation {
+        Max(int position, RValue lhs, RValue rhs) {
+            super(position, "max", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.max(lhs.getValue(frame), rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Max(position, lhs, rhs);
+        }
     }
 
-    public static final double max(RValue a, RValue b, RValue c) throws EvaluationException {
-        return Math.max(a.getValue(), Math.max(b.getValue(), c.getValue()));
+    static final class Max3 extends TernaryOperation {
+        Max3(int position, RValue a, RValue b, RValue c) {
+            super(position, "max", a, b, c);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.max(a.getValue(frame), Math.max(b.getValue(frame), c.getValue(frame)));
+        }
+
+        @Override
+        TernaryOperation copy(int position, RValue a, RValue b, RValue c) {
+            return new Max3(position, a, b, c);
+        }
     }
 
 
-    public static final double ceil(RValue x) throws EvaluationException {
-        return Math.ceil(x.getValue());
+    static final class Ceil extends UnaryOperation {
+        Ceil(int position, RValue x) {
+            super(position, "ceil", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.ceil(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Ceil(position, x);
+        }
     }
 
-    public static final double floor(RValue x) throws EvaluationException {
-        return Math.floor(x.getValue());
+    static final class Floor extends UnaryOperation {
+        Floor(int position, RValue x) {
+            super(position, "floor", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.floor(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Floor(position, x);
+        }
     }
 
-    public static final double rint(RValue x) throws EvaluationException {
-        return Math.rint(x.getValue());
+    static final class Rint extends UnaryOperation {
+        Rint(int position, RValue x) {
+            super(position, "rint", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.rint(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Rint(position, x);
+        }
     }
 
-    public static final double round(RValue x) throws EvaluationException {
-        return Math.round(x.getValue());
+    static final class Round extends UnaryOperation {
+        Round(int position, RValue x) {
+            super(position, "round", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.round(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Round(position, x);
+        }
     }
 
 
-    public static final double exp(RValue x) throws EvaluationException {
-        return Math.exp(x.getValue());
+    static final class Exp extends UnaryOperation {
+        Exp(int position, RValue x) {
+            super(position, "exp", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.exp(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Exp(position, x);
+        }
     }
 
-    public static final double ln(RValue x) throws EvaluationException {
-        return Math.log(x.getValue());
+    static final class Ln extends UnaryOperation {
+        Ln(int position, RValue x) {
+            super(position, "ln", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.log(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Ln(position, x);
+        }
     }
 
-    public static final double log(RValue x) throws EvaluationException {
-        return Math.log(x.getValue());
+    static final class Log extends UnaryOperation {
+        Log(int position, RValue x) {
+            super(position, "log", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.log(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Log(position, x);
+        }
     }
 
-    public static final double log10(RValue x) throws EvaluationException {
-        return Math.log10(x.getValue());
+    static final class Log10 extends UnaryOperation {
+        Log10(int position, RValue x) {
+            super(position, "log10", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.log10(x.getValue(frame));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Log10(position, x);
+        }
     }
 
 
-    public static final double sign(RValue x) throws EvaluationException {
-        final double value = x.getValue();
+    static final class Sign extends UnaryOperation {
+        Sign(int position, RValue x) {
+            super(position, "sign", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final double value = x.getValue(frame);
+
+            if (value < 0)
+                return -1;
 
-        if (value < 0)
-            return -1;
+            if (value > 0)
+                return 1;
 
-        if (value > 0)
-            return 1;
+            return 0;
+        }
 
-        return 0;
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Sign(position, x);
+        }
     }
 
 
-    public static double _integrate(LValue state, RValue frequency) throws EvaluationException {
-        return state.assign((state.getValue() % 1) + frequency.getValue() / TileEntitySpeaker.SAMPLE_RATE);
+    private static double integrate(Frame frame, LValue state, RValue frequency) throws EvaluationException {
+        return state.assign(frame, (state.getValue(frame) % 1) + frequency.getValue(frame) / TileEntitySpeaker.SAMPLE_RATE);
     }
 
-    public static final double rect(LValue state, RValue frequency) throws EvaluationException {
-        return (_integrate(state, frequency) % 1 < 0.5) ? -1 : 1;
+    static final class Integrate extends BinaryOperation {
+        Integrate(int position, RValue lhs, RValue rhs) {
+            super(position, "_integrate", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return integrate(frame, (LValue) lhs, rhs);
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Integrate(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double triangle(LValue state, RValue frequency) throws EvaluationException {
-        return Math.abs((_integrate(state, frequency) * 2 + 1) % 2 - 1) * 2 - 1;
+    static final class Rect extends BinaryOperation {
+        Rect(int position, RValue lhs, RValue rhs) {
+            super(position, "rect", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return (integrate(frame, (LValue) lhs, rhs) % 1 < 0.5) ? -1 : 1;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Rect(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double sawtooth(LValue state, RValue frequency) throws EvaluationException {
-        return _integrate(state, frequency) % 1;
+    static final class Triangle extends BinaryOperation {
+        Triangle(int position, RValue lhs, RValue rhs) {
+            super(position, "triangle", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.abs((integrate(frame, (LValue) lhs, rhs) * 2 + 1) % 2 - 1) * 2 - 1;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Triangle(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double sine(LValue state, RValue frequency) throws EvaluationException {
-        return Math.sin(2 * Math.PI * _integrate(state, frequency));
+    static final class Sawtooth extends BinaryOperation {
+        Sawtooth(int position, RValue lhs, RValue rhs) {
+            super(position, "sawtooth", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return integrate(frame, (LValue) lhs, rhs) % 1;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Sawtooth(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
+    static final class Sine extends BinaryOperation {
+        Sine(int position, RValue lhs, RValue rhs) {
+            super(position, "sine", lhs, rhs);
+        }
 
-    @Dynamic
-    public static final double whitenoise() throws EvaluationException {
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.sin(2 * Math.PI * integrate(frame, (LValue) lhs, rhs));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Sine(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
+    }
+
+
+    private static double whitenoise(Random random) {
         return random.nextDouble() * 2 - 1;
     }
 
-    @Dynamic
-    public static final double brownnoise(RValue last, RValue factor) throws EvaluationException {
-        final double f = 1.0 / factor.getValue();
-        return last.getValue()*(1-f) + whitenoise() * f;
+    static final class WhiteNoise extends NullaryOperation {
+        WhiteNoise(int position) {
+            super(position, "whitenoise");
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return whitenoise(frame.random);
+        }
+
+        @Override
+        NullaryOperation copy(int position) {
+            return new WhiteNoise(position);
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return true;
+        }
     }
 
-    @Dynamic
-    public static final double pinknoise() throws EvaluationException {
-        final double level = random.nextDouble();
+    static final class BrownNoise extends BinaryOperation {
+        BrownNoise(int position, RValue lhs, RValue rhs) {
+            super(position, "brownnoise", lhs, rhs);
+        }
 
-        double output = whitenoise()*.252;
-        if (level>0.5)
-            return output;
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final double f = 1.0 / rhs.getValue(frame);
+            return lhs.getValue(frame)*(1-f) + whitenoise(frame.random) * f;
+        }
 
-        output += whitenoise()*0.672;
-        if (level>0.25)
-            return output;
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new BrownNoise(position, lhs, rhs);
+        }
 
-        output += whitenoise()*0.000;
-        if (level>0.125)
-            return output;
+        @Override
+        public boolean isDynamic() {
+            return true;
+        }
+    }
 
-        output += whitenoise()*0.171;
-        if (level>0.0625)
-            return output;
+    static final class PinkNoise extends NullaryOperation {
+        PinkNoise(int position) {
+            super(position, "pinknoise");
+        }
 
-        output += whitenoise()*0.190;
-        if (level>0.03125)
-            return output;
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final double level = frame.random.nextDouble();
 
-        output += whitenoise()*0.286;
-        if (level>0.015625)
-            return output;
+            double output = whitenoise(frame.random)*.252;
+            if (level>0.5)
+                return output;
 
-        output += whitenoise()*0.175;
-        if (level>0.0078125)
-            return output;
+            output += whitenoise(frame.random)*0.672;
+            if (level>0.25)
+                return output;
+
+            output += whitenoise(frame.random)*0.000;
+            if (level>0.125)
+                return output;
 
-        output += whitenoise()*0.233;
-        if (level>0.00390625)
+            output += whitenoise(frame.random)*0.171;
+            if (level>0.0625)
+                return output;
+
+            output += whitenoise(frame.random)*0.190;
+            if (level>0.03125)
+                return output;
+
+            output += whitenoise(frame.random)*0.286;
+            if (level>0.015625)
+                return output;
+
+            output += whitenoise(frame.random)*0.175;
+            if (level>0.0078125)
+                return output;
+
+            output += whitenoise(frame.random)*0.233;
+            if (level>0.00390625)
+                return output;
+
+            output += whitenoise(frame.random)*0.021;
             return output;
+        }
 
-        output += whitenoise()*0.021;
-        return output;
+        @Override
+        NullaryOperation copy(int position) {
+            return new PinkNoise(position);
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return true;
+        }
     }
 
 
-    public static final double rotate(LValue x, LValue y, RValue angle) throws EvaluationException {
-        final double f = angle.getValue();
+    static final class Rotate extends TernaryOperation {
+        Rotate(int position, RValue a, RValue b, RValue c) {
+            super(position, "rotate", a, b, c);
+        }
 
-        final double cosF = Math.cos(f);
-        final double sinF = Math.sin(f);
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue x = (LValue) a;
+            final LValue y = (LValue) b;
+            final double f = c.getValue(frame);
 
-        final double xOld = x.getValue();
-        final double yOld = y.getValue();
+            final double cosF = Math.cos(f);
+            final double sinF = Math.sin(f);
 
-        x.assign(xOld * cosF - yOld * sinF);
-        y.assign(xOld * sinF + yOld * cosF);
+            final double xOld = x.getValue(frame);
+            final double yOld = y.getValue(frame);
 
-        return 0.0;
-    }
+            x.assign(frame, xOld * cosF - yOld * sinF);
+            y.assign(frame, xOld * sinF + yOld * cosF);
 
-    public static final double swap(LValue x, LValue y) throws EvaluationException {
-        final double tmp = x.getValue();
+            return 0.0;
+        }
 
-        x.assign(y.getValue());
-        y.assign(tmp);
+        @Override
+        TernaryOperation copy(int position, RValue a, RValue b, RValue c) {
+            return new Rotate(position, a, b, c);
+        }
 
-        return 0.0;
+        @Override
+        boolean isLValue(int index) {
+            return index < 2;
+        }
     }
 
+    static final class Swap extends BinaryOperation {
+        Swap(int position, RValue lhs, RValue rhs) {
+            super(position, "swap", lhs, rhs);
+        }
 
-    private static final Map<Integer, double[]> gmegabuf = new HashMap<Integer, double[]>();
-    private final Map<Integer, double[]> megabuf = new HashMap<Integer, double[]>();
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue x = (LValue) lhs;
+            final LValue y = (LValue) rhs;
+            final double tmp = x.getValue(frame);
 
-    private static double[] getSubBuffer(Map<Integer, double[]> megabuf, Integer key) {
-        double[] ret = megabuf.get(key);
-        if (ret == null) {
-            megabuf.put(key, ret = new double[1024]);
+            x.assign(frame, y.getValue(frame));
+            y.assign(frame, tmp);
+
+            return 0.0;
         }
-        return ret;
-    }
 
-    private static double getBufferItem(final Map<Integer, double[]> megabuf, final int index) {
-        return getSubBuffer(megabuf, index & ~1023)[index & 1023];
-    }
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Swap(position, lhs, rhs);
+        }
 
-    private static double setBufferItem(final Map<Integer, double[]> megabuf, final int index, double value) {
-        return getSubBuffer(megabuf, index & ~1023)[index & 1023] = value;
+        @Override
+        boolean isLValue(int index) {
+            return true;
+        }
     }
 
     @Dynamic
-    public static final double gmegabuf(RValue index) throws EvaluationException {
-        return getBufferItem(gmegabuf, (int) index.getValue());
+    public static final double gmegabuf(Frame frame, RValue index) throws EvaluationException {
+        return frame.gmegabuf.get((int) index.getValue(frame));
     }
 
     @Dynamic
-    public static final double gmegabuf(RValue index, double value) throws EvaluationException {
-        return setBufferItem(gmegabuf, (int) index.getValue(), value);
+    public static final double gmegabuf(Frame frame, RValue index, double value) throws EvaluationException {
+        return frame.gmegabuf.set((int) index.getValue(frame), value);
     }
 
     @Dynamic
-    public static final double megabuf(RValue index) throws EvaluationException {
-        return getBufferItem(Expression.getInstance().getFunctions().megabuf, (int) index.getValue());
+    public static final double megabuf(Frame frame, RValue index) throws EvaluationException {
+        return frame.megabuf.get((int) index.getValue(frame));
     }
 
     @Dynamic
-    public static final double megabuf(RValue index, double value) throws EvaluationException {
-        return setBufferItem(Expression.getInstance().getFunctions().megabuf, (int) index.getValue(), value);
+    public static final double megabuf(Frame frame, RValue index, double value) throws EvaluationException {
+        return frame.megabuf.set((int) index.getValue(frame), value);
     }
 
     @Dynamic
-    public static final double closest(RValue x, RValue y, RValue z, RValue index, RValue count, RValue stride) throws EvaluationException {
+    public static final double closest(Frame frame, RValue x, RValue y, RValue z, RValue index, RValue count, RValue stride) throws EvaluationException {
         return findClosest(
-            Expression.getInstance().getFunctions().megabuf,
-            x.getValue(),
-            y.getValue(),
-            z.getValue(),
-            (int) index.getValue(),
-            (int) count.getValue(),
-            (int) stride.getValue()
+            frame.megabuf,
+            x.getValue(frame),
+            y.getValue(frame),
+            z.getValue(frame),
+            (int) index.getValue(frame),
+            (int) count.getValue(frame),
+            (int) stride.getValue(frame)
         );
     }
 
     @Dynamic
-    public static final double gclosest(RValue x, RValue y, RValue z, RValue index, RValue count, RValue stride) throws EvaluationException {
-        return findClosest(
-            gmegabuf,
-            x.getValue(),
-            y.getValue(),
-            z.getValue(),
-            (int) index.getValue(),
-            (int) count.getValue(),
-            (int) stride.getValue()
-        );
+    public static final double gclosest(Frame frame, RValue x, RValue y, RValue z, RValue index, RValue count, RValue stride) throws EvaluationException {
+        final double xValue = x.getValue(frame);
+        final double yValue = y.getValue(frame);
+        final double zValue = z.getValue(frame);
+        final int indexValue = (int) index.getValue(frame);
+        final int countValue = (int) count.getValue(frame);
+        final int strideValue = (int) stride.getValue(frame);
+
+        return findClosest(frame.gmegabuf, xValue, yValue, zValue, indexValue, countValue, strideValue);
     }
 
-    private static double findClosest(Map<Integer, double[]> megabuf, double x, double y, double z, int index, int count, int stride) {
+    private static double findClosest(SparseBuffer megabuf, double x, double y, double z, int index, int count, int stride) {
         int closestIndex = -1;
         double minDistanceSquared = Double.MAX_VALUE;
 
         for (int i = 0; i < count; ++i) {
-            double currentX = getBufferItem(megabuf, index+0) - x;
-            double currentY = getBufferItem(megabuf, index+1) - y;
-            double currentZ = getBufferItem(megabuf, index+2) - z;
+            double currentX = megabuf.get(index+0) - x;
+            double currentY = megabuf.get(index+1) - y;
+            double currentZ = megabuf.get(index+2) - z;
 
             double currentDistanceSquared = currentX*currentX + currentY*currentY + currentZ*currentZ;
 
@@ -448,15 +1006,45 @@ public final class Functions {
     }
 
 
-    private static final Random random = new Random();
+    static final class RandomValue extends NullaryOperation {
+        RandomValue(int position) {
+            super(position, "random");
+        }
 
-    @Dynamic
-    public static final double random() {
-        return random.nextDouble();
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return frame.random.nextDouble();
+        }
+
+        @Override
+        NullaryOperation copy(int position) {
+            return new RandomValue(position);
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return true;
+        }
     }
 
-    @Dynamic
-    public static final double randint(RValue max) throws EvaluationException {
-        return random.nextInt((int) Math.floor(max.getValue()));
+    static final class RandInt extends UnaryOperation {
+        RandInt(int position, RValue x) {
+            super(position, "randint", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return frame.random.nextInt((int) Math.floor(x.getValue(frame)));
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new RandInt(position, x);
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return true;
+        }
     }
 }
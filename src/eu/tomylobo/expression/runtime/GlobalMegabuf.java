@@ -0,0 +1,103 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Megabuf} that can be shared by several threads, used by gmegabuf and gclosest.
+ *
+ * The pages are spread over several stripes, each guarded by its own lock, so threads
+ * working on different pages don't wait for each other.
+ * The number of pages is limited, since any expression can write to any index.
+ *
+ * @author TomyLobo
+ */
+public final class GlobalMegabuf implements SparseBuffer {
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+    private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+
+    /**
+     * Used by frames that weren't given a buffer of their own.
+     */
+    static final GlobalMegabuf SHARED = new GlobalMegabuf(Integer.MAX_VALUE);
+
+    private final Megabuf[] stripes = new Megabuf[STRIPE_COUNT];
+    private final int maxPages;
+    private final AtomicInteger pageCount = new AtomicInteger();
+
+    /**
+     * @param maxPages The number of pages of {@value Megabuf#PAGE_SIZE} elements the buffer may allocate
+     */
+    public GlobalMegabuf(int maxPages) {
+        this.maxPages = maxPages;
+
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            stripes[i] = new Megabuf();
+        }
+    }
+
+    @Override
+    public double get(int index) {
+        final Megabuf stripe = stripes[(index >>> Megabuf.PAGE_BITS) & STRIPE_MASK];
+        synchronized (stripe) {
+            return stripe.get(getStripeIndex(index));
+        }
+    }
+
+    /**
+     * @throws EvaluationException if writing the element would exceed the page budget
+     */
+    public double set(int index, double value) throws EvaluationException {
+        final Megabuf stripe = stripes[(index >>> Megabuf.PAGE_BITS) & STRIPE_MASK];
+        final int stripeIndex = getStripeIndex(index);
+        synchronized (stripe) {
+            if (stripe.getPage(stripeIndex >>> Megabuf.PAGE_BITS) == null) {
+                if (pageCount.incrementAndGet() > maxPages) {
+                    pageCount.decrementAndGet();
+                    throw new EvaluationException(-1, "gmegabuf exceeded its limit of " + maxPages + " pages.");
+                }
+            }
+
+            return stripe.set(stripeIndex, value);
+        }
+    }
+
+    /**
+     * Each stripe holds every {@value #STRIPE_COUNT}th page, so its page numbers are divided by that.
+     */
+    private static int getStripeIndex(int index) {
+        return ((index >>> Megabuf.PAGE_BITS >>> STRIPE_BITS) << Megabuf.PAGE_BITS) | (index & Megabuf.PAGE_MASK);
+    }
+
+    /**
+     * @return the number of pages that were written
+     */
+    public int getPageCount() {
+        return pageCount.get();
+    }
+
+    /**
+     * @return the number of pages the buffer may allocate
+     */
+    public int getMaxPages() {
+        return maxPages;
+    }
+}
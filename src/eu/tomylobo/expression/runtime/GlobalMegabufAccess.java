@@ -0,0 +1,48 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reads and writes the frame's {@link GlobalMegabuf} directly instead of calling
+ * {@link Functions#gmegabuf(Frame, RValue)} through reflection, like {@link MegabufAccess}.
+ *
+ * @author TomyLobo
+ */
+final class GlobalMegabufAccess extends LValueFunction {
+    GlobalMegabufAccess(int position, Method getter, Method setter, RValue index) {
+        super(position, getter, setter, index);
+    }
+
+    @Override
+    public double getValue(Frame frame) throws EvaluationException {
+        return frame.gmegabuf.get((int) args[0].getValue(frame));
+    }
+
+    @Override
+    public double assign(Frame frame, double value) throws EvaluationException {
+        return frame.gmegabuf.set((int) args[0].getValue(frame), value);
+    }
+
+    @Override
+    Function copy(int position, RValue[] args) {
+        return new GlobalMegabufAccess(position, method, setter, args[0]);
+    }
+}
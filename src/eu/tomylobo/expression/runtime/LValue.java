@@ -27,7 +27,7 @@ import eu.tomylobo.expression.parser.ParserException;
  * @author TomyLobo
  */
 public interface LValue extends RValue {
-    public double assign(double value) throws EvaluationException;
+    public double assign(Frame frame, double value) throws EvaluationException;
 
     public LValue optimize() throws EvaluationException;
 
@@ -29,15 +29,12 @@ import eu.tomylobo.expression.parser.ParserException;
  * @author TomyLobo
  */
 public class LValueFunction extends Function implements LValue {
-    private final Object[] setterArgs;
-    private final Method setter;
+    final Method setter;
 
     LValueFunction(int position, Method getter, Method setter, RValue... args) {
         super(position, getter, args);
         assert (getter.isAnnotationPresent(Dynamic.class));
 
-        setterArgs = new Object[args.length + 1];
-        System.arraycopy(args, 0, setterArgs, 0, args.length);
         this.setter = setter;
     }
 
@@ -47,7 +44,8 @@ public class LValueFunction extends Function implements LValue {
     }
 
     @Override
-    public double assign(double value) throws EvaluationException {
+    public double assign(Frame frame, double value) throws EvaluationException {
+        final Object[] setterArgs = buildArguments(frame, 1);
         setterArgs[setterArgs.length - 1] = value;
         return invokeMethod(setter, setterArgs);
     }
@@ -59,13 +57,14 @@ public class LValueFunction extends Function implements LValue {
             return this;
         }
 
-        if (optimized instanceof Function) {
-            return new LValueFunction(optimized.getPosition(), method, setter, ((Function) optimized).args);
-        }
-
         return (LValue) optimized;
     }
 
+    @Override
+    Function copy(int position, RValue[] args) {
+        return new LValueFunction(position, method, setter, args);
+    }
+
     @Override
     public LValue bindVariables(Expression expression, boolean preferLValue) throws ParserException {
         super.bindVariables(expression, preferLValue);
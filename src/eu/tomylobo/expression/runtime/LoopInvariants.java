@@ -0,0 +1,277 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import eu.tomylobo.expression.Expression;
+
+/**
+ * Evaluates the parts of a loop that are the same in every iteration only once, before the loop.
+ *
+ * A subtree is invariant if it's side-effect free and none of the variables it reads are assigned
+ * anywhere in the loop. It is moved into an assignment to a temporary variable in front of the loop,
+ * even if the loop might not run, which is fine for side-effect free subtrees.
+ * Products are regrouped, so their invariant factors can be moved out together.
+ *
+ * @author TomyLobo
+ */
+public final class LoopInvariants {
+    private final Expression expression;
+
+    private LoopInvariants(Expression expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * @param root An optimized tree
+     * @param expression The expression that provides the temporary variables
+     * @return the new tree
+     */
+    public static RValue hoist(RValue root, Expression expression) {
+        return new LoopInvariants(expression).rewrite(root, null, null);
+    }
+
+    /**
+     * @param assigned The slots of the variables assigned in the loop being processed or null to look for loops
+     * @param hoisted Receives the assignments that have to run before the loop being processed
+     * @return the new subtree
+     */
+    private RValue rewrite(RValue node, BitSet assigned, List<RValue> hoisted) {
+        if (assigned != null) {
+            if (node instanceof Constant || node instanceof Variable) {
+                return node;
+            }
+
+            if (isInvariant(node, assigned)) {
+                return store(node, hoisted);
+            }
+
+            if (node instanceof Operators.Mul) {
+                final RValue regrouped = regroup((Operators.Mul) node, assigned, hoisted);
+                if (regrouped != null) {
+                    return regrouped;
+                }
+            }
+        }
+        else if (node instanceof While || node instanceof For || node instanceof SimpleFor) {
+            final List<RValue> statements = new ArrayList<RValue>();
+
+            // Enclosing loops were done first, so only what depends on them is left.
+            final BitSet loopAssigned = CommonSubexpressions.findAssignments(node);
+            if (loopAssigned != null) {
+                rewriteRepeatedParts(node, loopAssigned, statements);
+            }
+
+            // Nested loops
+            rewriteChildren(node, null, null);
+
+            if (statements.isEmpty()) {
+                return node;
+            }
+
+            statements.add(node);
+            return new Sequence(node.getPosition(), statements.toArray(new RValue[statements.size()]));
+        }
+
+        return rewriteChildren(node, assigned, hoisted);
+    }
+
+    /**
+     * Rewrites the parts of a loop that are evaluated in every iteration.
+     */
+    private void rewriteRepeatedParts(RValue node, BitSet assigned, List<RValue> hoisted) {
+        if (node instanceof While) {
+            final While loop = (While) node;
+            loop.condition = rewrite(loop.condition, assigned, hoisted);
+            loop.body = rewrite(loop.body, assigned, hoisted);
+        }
+        else if (node instanceof For) {
+            final For loop = (For) node;
+            loop.condition = rewrite(loop.condition, assigned, hoisted);
+            loop.increment = rewrite(loop.increment, assigned, hoisted);
+            loop.body = rewrite(loop.body, assigned, hoisted);
+        }
+        else if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            loop.body = rewrite(loop.body, assigned, hoisted);
+        }
+    }
+
+    private RValue rewriteChildren(RValue node, BitSet assigned, List<RValue> hoisted) {
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+
+            boolean changed = false;
+            for (int i = 0; i < operands.length; ++i) {
+                if (operation.isLValue(i)) {
+                    continue;
+                }
+
+                final RValue operand = rewrite(operands[i], assigned, hoisted);
+                changed |= operand != operands[i];
+                operands[i] = operand;
+            }
+
+            return changed ? operation.withOperands(operation.getPosition(), operands) : operation;
+        }
+
+        if (node instanceof Function) {
+            final Function function = (Function) node;
+            final Class<?>[] parameters = function.method.getParameterTypes();
+            for (int i = 0; i < function.args.length; ++i) {
+                if (!LValue.class.isAssignableFrom(parameters[i + 1])) {
+                    function.args[i] = rewrite(function.args[i], assigned, hoisted);
+                }
+            }
+        }
+        else if (node instanceof Sequence) {
+            final RValue[] statements = ((Sequence) node).sequence;
+            for (int i = 0; i < statements.length; ++i) {
+                statements[i] = rewrite(statements[i], assigned, hoisted);
+            }
+        }
+        else if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            conditional.condition = rewrite(conditional.condition, assigned, hoisted);
+            conditional.truePart = rewrite(conditional.truePart, assigned, hoisted);
+            if (conditional.falsePart != null) {
+                conditional.falsePart = rewrite(conditional.falsePart, assigned, hoisted);
+            }
+        }
+        else if (node instanceof While) {
+            final While loop = (While) node;
+            loop.condition = rewrite(loop.condition, assigned, hoisted);
+            loop.body = rewrite(loop.body, assigned, hoisted);
+        }
+        else if (node instanceof For) {
+            final For loop = (For) node;
+            loop.init = rewrite(loop.init, assigned, hoisted);
+            loop.condition = rewrite(loop.condition, assigned, hoisted);
+            loop.increment = rewrite(loop.increment, assigned, hoisted);
+            loop.body = rewrite(loop.body, assigned, hoisted);
+        }
+        else if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            loop.first = rewrite(loop.first, assigned, hoisted);
+            loop.last = rewrite(loop.last, assigned, hoisted);
+            loop.body = rewrite(loop.body, assigned, hoisted);
+        }
+        else if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+            switchStatement.parameter = rewrite(switchStatement.parameter, assigned, hoisted);
+            for (int i = 0; i < switchStatement.caseStatements.length; ++i) {
+                switchStatement.caseStatements[i] = rewrite(switchStatement.caseStatements[i], assigned, hoisted);
+            }
+            if (switchStatement.defaultCase != null) {
+                switchStatement.defaultCase = rewrite(switchStatement.defaultCase, assigned, hoisted);
+            }
+        }
+        else if (node instanceof Return) {
+            final Return returnStatement = (Return) node;
+            returnStatement.value = rewrite(returnStatement.value, assigned, hoisted);
+        }
+
+        return node;
+    }
+
+    /**
+     * Moves the invariant factors of a product to the front, so they form an invariant subtree.
+     *
+     * @return the new product or null if it has less than two invariant factors
+     */
+    private RValue regroup(Operators.Mul node, BitSet assigned, List<RValue> hoisted) {
+        final List<RValue> factors = new ArrayList<RValue>();
+        collectFactors(node, factors);
+
+        final List<RValue> invariantFactors = new ArrayList<RValue>();
+        final List<RValue> variantFactors = new ArrayList<RValue>();
+        for (RValue factor : factors) {
+            if (isInvariant(factor, assigned)) {
+                invariantFactors.add(factor);
+            }
+            else {
+                variantFactors.add(factor);
+            }
+        }
+
+        if (invariantFactors.size() < 2) {
+            return null;
+        }
+
+        final int position = node.getPosition();
+
+        RValue invariantProduct = invariantFactors.get(0);
+        for (int i = 1; i < invariantFactors.size(); ++i) {
+            invariantProduct = new Operators.Mul(position, invariantProduct, invariantFactors.get(i));
+        }
+
+        RValue ret = store(invariantProduct, hoisted);
+        for (RValue factor : variantFactors) {
+            ret = new Operators.Mul(position, ret, rewrite(factor, assigned, hoisted));
+        }
+
+        return ret;
+    }
+
+    private static void collectFactors(RValue node, List<RValue> factors) {
+        if (node instanceof Operators.Mul) {
+            collectFactors(((Operators.Mul) node).lhs, factors);
+            collectFactors(((Operators.Mul) node).rhs, factors);
+        }
+        else {
+            factors.add(node);
+        }
+    }
+
+    /**
+     * Adds an assignment of the subtree to a new temporary variable to the hoisted statements.
+     *
+     * @return the temporary variable
+     */
+    private Variable store(RValue node, List<RValue> hoisted) {
+        final Variable temporary = expression.newTemporary();
+        hoisted.add(new Operators.Ass(node.getPosition(), temporary, node));
+        return temporary;
+    }
+
+    /**
+     * @return true if the subtree is side-effect free and doesn't read any of the given variables
+     */
+    private static boolean isInvariant(RValue node, BitSet assigned) {
+        return Operation.isSideEffectFree(node) && !reads(node, assigned);
+    }
+
+    private static boolean reads(RValue node, BitSet slots) {
+        if (node instanceof Variable) {
+            return slots.get(((Variable) node).slot);
+        }
+
+        for (RValue child : CommonSubexpressions.getChildren(node)) {
+            if (reads(child, slots)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Replaces loops with a small, constant number of iterations by a sequence of copies of their body.
+ * The copies read the loop counter as a constant, so optimizing them can fold it into the surrounding code.
+ *
+ * @author TomyLobo
+ */
+public final class LoopUnrolling {
+    /**
+     * The number of nodes the copies of a loop body may add up to.
+     */
+    private static final int MAX_UNROLLED_SIZE = 4096;
+
+    private static volatile int maxIterations = 16;
+
+    private LoopUnrolling() {
+    }
+
+    /**
+     * @return the highest number of iterations of a loop that is unrolled
+     */
+    public static int getMaxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     * Sets the highest number of iterations of a loop that is unrolled by {@link RValue#optimize()}.
+     * Values above the loop limit of 256 iterations are clamped, 0 disables unrolling.
+     */
+    public static void setMaxIterations(int maxIterations) {
+        LoopUnrolling.maxIterations = Math.max(0, Math.min(maxIterations, 256));
+    }
+
+    /**
+     * @param loop An optimized loop
+     * @return an optimized replacement for the loop or null if it can't be unrolled
+     */
+    static RValue unroll(SimpleFor loop) throws EvaluationException {
+        if (!(loop.first instanceof Constant) || !(loop.last instanceof Constant)) {
+            return null;
+        }
+
+        final double first = ((Constant) loop.first).getValue();
+        final double last = ((Constant) loop.last).getValue();
+        final int position = loop.getPosition();
+
+        final double[] values = new double[maxIterations];
+        int count = 0;
+        for (double i = first; i <= last; ++i) {
+            if (count == values.length) {
+                return null;
+            }
+            values[count++] = i;
+        }
+
+        if (count == 0) {
+            return new Constant(position, 0.0);
+        }
+
+        if (!canUnroll(loop.body, count)) {
+            return null;
+        }
+
+        final int slot = getSubstitutableSlot(loop.counter, loop.body);
+
+        final List<RValue> statements = new ArrayList<RValue>();
+        if (slot != -1) {
+            // The body doesn't see the counter, so it only needs to hold its final value.
+            statements.add(new Operators.Ass(position, loop.counter, new Constant(position, values[count - 1])));
+        }
+
+        for (int i = 0; i < count; ++i) {
+            final Constant value = new Constant(position, values[i]);
+            if (slot == -1) {
+                statements.add(new Operators.Ass(position, Specialization.copy(loop.counter, -1, null), value));
+            }
+            statements.add(Specialization.copy(loop.body, slot, value));
+        }
+
+        return new Sequence(position, statements.toArray(new RValue[statements.size()])).optimize();
+    }
+
+    /**
+     * Unrolls loops that assign a constant to a counter, check it and update it
+     * without looking at anything else.
+     *
+     * @param loop An optimized loop
+     * @return an optimized replacement for the loop or null if it can't be unrolled
+     */
+    static RValue unroll(For loop) throws EvaluationException {
+        if (!(loop.init instanceof Operators.Ass)) {
+            return null;
+        }
+
+        final Operators.Ass init = (Operators.Ass) loop.init;
+        if (!(init.lhs instanceof Variable) || !(init.rhs instanceof Constant)) {
+            return null;
+        }
+
+        final Variable counter = (Variable) init.lhs;
+        if (!isInduction(loop.condition, counter.slot) || !isInduction(loop.increment, counter.slot)) {
+            return null;
+        }
+
+        if (getSubstitutableSlot(counter, loop.body) == -1) {
+            return null;
+        }
+
+        // The condition and the increment only touch the counter, so they can run on a frame of their own.
+        final Frame frame = new Frame(counter.slot + 1);
+        counter.assign(frame, ((Constant) init.rhs).getValue());
+
+        final double[] values = new double[maxIterations];
+        int count = 0;
+        while (loop.condition.getValue(frame) > 0) {
+            if (count == values.length) {
+                return null;
+            }
+            values[count++] = counter.getValue(frame);
+            loop.increment.getValue(frame);
+        }
+
+        if (count > 0 && !canUnroll(loop.body, count)) {
+            return null;
+        }
+
+        final int position = loop.getPosition();
+
+        final List<RValue> statements = new ArrayList<RValue>();
+        statements.add(new Operators.Ass(position, counter, new Constant(position, counter.getValue(frame))));
+        for (int i = 0; i < count; ++i) {
+            statements.add(Specialization.copy(loop.body, counter.slot, new Constant(position, values[i])));
+        }
+
+        if (count == 0) {
+            // Loops that never run return 0.0.
+            statements.add(new Constant(position, 0.0));
+        }
+
+        return new Sequence(position, statements.toArray(new RValue[statements.size()])).optimize();
+    }
+
+    /**
+     * @return the slot of the counter if it can be replaced by a constant in the body, -1 otherwise
+     */
+    private static int getSubstitutableSlot(LValue counter, RValue body) {
+        if (!(counter instanceof Variable)) {
+            return -1;
+        }
+
+        final int slot = ((Variable) counter).slot;
+        final BitSet assigned = CommonSubexpressions.findAssignments(body);
+        if (assigned == null || assigned.get(slot)) {
+            return -1;
+        }
+
+        return slot;
+    }
+
+    /**
+     * @return true if the subtree only consists of constants, the given variable and operations without side effects on anything else
+     */
+    private static boolean isInduction(RValue node, int slot) {
+        if (node instanceof Constant) {
+            return true;
+        }
+
+        if (node instanceof Variable) {
+            return ((Variable) node).slot == slot;
+        }
+
+        if (!(node instanceof Operation) || ((Operation) node).isDynamic()) {
+            return false;
+        }
+
+        for (RValue operand : ((Operation) node).getOperands()) {
+            if (!isInduction(operand, slot)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if the given number of copies of the body stay small and behave like the iterations of the loop
+     */
+    private static boolean canUnroll(RValue body, int count) {
+        final int size = getSize(body, false, false);
+        return size != -1 && (long) size * count <= MAX_UNROLLED_SIZE;
+    }
+
+    /**
+     * @param inLoop true if break and continue statements are handled inside the subtree
+     * @param inSwitch true if break statements are handled inside the subtree
+     * @return the number of nodes in the subtree or -1 if it can jump out of the loop body or can't be copied
+     */
+    private static int getSize(RValue node, boolean inLoop, boolean inSwitch) {
+        if (node instanceof Break) {
+            final boolean handled = ((Break) node).doContinue ? inLoop : inLoop || inSwitch;
+            return handled ? 1 : -1;
+        }
+
+        if (node instanceof Return) {
+            return -1;
+        }
+
+        if (node instanceof While || node instanceof For || node instanceof SimpleFor) {
+            inLoop = true;
+            inSwitch = false;
+        }
+        else if (node instanceof Switch) {
+            inSwitch = true;
+        }
+        else if (!(node instanceof Constant || node instanceof Variable || node instanceof Operation
+                || node instanceof Function || node instanceof Sequence || node instanceof Conditional)) {
+            return -1;
+        }
+
+        int size = 1;
+        for (RValue child : CommonSubexpressions.getChildren(node)) {
+            final int childSize = getSize(child, inLoop, inSwitch);
+            if (childSize == -1) {
+                return -1;
+            }
+            size += childSize;
+        }
+
+        return size;
+    }
+}
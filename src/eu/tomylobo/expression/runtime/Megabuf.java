@@ -0,0 +1,112 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.Arrays;
+
+/**
+ * A sparse array of doubles, indexed by any int, as used by megabuf and gmegabuf.
+ *
+ * The buffer is split into pages of {@value #PAGE_SIZE} elements, which are allocated when they're first written.
+ * Page number index >>> {@value #PAGE_BITS} is looked up in a directory of two levels, so a single write to a
+ * large index doesn't allocate a directory for all the pages before it.
+ * Elements of pages that weren't written yet read as 0.
+ *
+ * Not thread-safe.
+ *
+ * @author TomyLobo
+ */
+public final class Megabuf implements SparseBuffer {
+    static final int PAGE_BITS = 10;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    /**
+     * Indexed by page >>> TABLE_BITS, grows when pages are created.
+     */
+    private double[][][] directory = new double[0][][];
+    private int pageCount = 0;
+
+    @Override
+    public double get(int index) {
+        final double[] page = getPage(index >>> PAGE_BITS);
+        if (page == null) {
+            return 0;
+        }
+
+        return page[index & PAGE_MASK];
+    }
+
+    public double set(int index, double value) {
+        return getOrCreatePage(index >>> PAGE_BITS)[index & PAGE_MASK] = value;
+    }
+
+    /**
+     * @param page The page number, which is the index of its first element >>> {@link #PAGE_BITS}
+     * @return the page or null if it wasn't written yet
+     */
+    double[] getPage(int page) {
+        final double[][][] directory = this.directory;
+        final int tableIndex = page >>> TABLE_BITS;
+        if (tableIndex >= directory.length) {
+            return null;
+        }
+
+        final double[][] table = directory[tableIndex];
+        if (table == null) {
+            return null;
+        }
+
+        return table[page & TABLE_MASK];
+    }
+
+    /**
+     * @see #getPage(int)
+     */
+    double[] getOrCreatePage(int page) {
+        final int tableIndex = page >>> TABLE_BITS;
+        if (tableIndex >= directory.length) {
+            directory = Arrays.copyOf(directory, Math.max(tableIndex + 1, directory.length * 2));
+        }
+
+        double[][] table = directory[tableIndex];
+        if (table == null) {
+            directory[tableIndex] = table = new double[TABLE_SIZE][];
+        }
+
+        double[] ret = table[page & TABLE_MASK];
+        if (ret == null) {
+            table[page & TABLE_MASK] = ret = new double[PAGE_SIZE];
+            ++pageCount;
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return the number of pages that were written
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+}
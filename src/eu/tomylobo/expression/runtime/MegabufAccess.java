@@ -0,0 +1,74 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reads and writes the frame's {@link Megabuf} directly instead of calling
+ * {@link Functions#megabuf(Frame, RValue)} through reflection, which would box the index and the value.
+ * The analyses still see a call to that method.
+ *
+ * If the index is a constant, its page number and offset are worked out once, when the node is created.
+ *
+ * @author TomyLobo
+ */
+final class MegabufAccess extends LValueFunction {
+    private final boolean constantIndex;
+    private final int page;
+    private final int offset;
+
+    MegabufAccess(int position, Method getter, Method setter, RValue index) {
+        super(position, getter, setter, index);
+
+        constantIndex = index instanceof Constant;
+        if (constantIndex) {
+            final int indexValue = (int) ((Constant) index).getValue(null);
+            page = indexValue >>> Megabuf.PAGE_BITS;
+            offset = indexValue & Megabuf.PAGE_MASK;
+        }
+        else {
+            page = offset = 0;
+        }
+    }
+
+    @Override
+    public double getValue(Frame frame) throws EvaluationException {
+        if (constantIndex) {
+            final double[] page = frame.megabuf.getPage(this.page);
+            return page == null ? 0 : page[offset];
+        }
+
+        return frame.megabuf.get((int) args[0].getValue(frame));
+    }
+
+    @Override
+    public double assign(Frame frame, double value) throws EvaluationException {
+        if (constantIndex) {
+            return frame.megabuf.getOrCreatePage(page)[offset] = value;
+        }
+
+        return frame.megabuf.set((int) args[0].getValue(frame), value);
+    }
+
+    @Override
+    Function copy(int position, RValue[] args) {
+        return new MegabufAccess(position, method, setter, args[0]);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.List;
+
+import eu.tomylobo.expression.Expression;
+import eu.tomylobo.expression.parser.ParserException;
+
+/**
+ * A built-in operator or function with a fixed number of operands.
+ *
+ * Each operator or function is its own subclass, so {@link #getValue(Frame)}
+ * is a direct virtual call without reflection, boxing or argument arrays.
+ *
+ * @author TomyLobo
+ */
+public abstract class Operation extends Node {
+    private final String name;
+
+    Operation(int position, String name) {
+        super(position);
+
+        this.name = name;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    /**
+     * @return a new array containing the operands of this operation
+     */
+    public abstract RValue[] getOperands();
+
+    /**
+     * Creates an operation of the same type with different operands.
+     */
+    abstract Operation withOperands(int position, RValue[] operands);
+
+    /**
+     * @return true if the operand at the given index is assigned to by this operation
+     */
+    boolean isLValue(int index) {
+        return false;
+    }
+
+    /**
+     * Operations that don't always return the same value for the same inputs
+     * must override this, so they are not folded into constants.
+     */
+    public boolean isDynamic() {
+        return false;
+    }
+
+    @Override
+    public char id() {
+        return 'f';
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder ret = new StringBuilder(name).append('(');
+        boolean first = true;
+        for (RValue operand : getOperands()) {
+            if (!first) {
+                ret.append(", ");
+            }
+            first = false;
+            ret.append(operand);
+        }
+        return ret.append(')').toString();
+    }
+
+    @Override
+    public RValue optimize() throws EvaluationException {
+        final RValue[] operands = getOperands();
+        boolean optimizable = !isDynamic();
+        int position = getPosition();
+        for (int i = 0; i < operands.length; ++i) {
+            final RValue optimized = operands[i] = operands[i].optimize();
+
+            if (!(optimized instanceof Constant)) {
+                optimizable = false;
+            }
+
+            if (optimized.getPosition() < position) {
+                position = optimized.getPosition();
+            }
+        }
+
+        final Operation ret = withOperands(position, operands);
+        if (optimizable) {
+            // Constant operands don't need a frame
+            return new Constant(position, ret.getValue(null));
+        }
+
+        return simplify(ret);
+    }
+
+    /**
+     * Rewrites this operation into a cheaper one that returns the same value, if there is one.
+     * The operands are already optimized and not all of them are constant.
+     *
+     * @return the new node or this operation if there's nothing to simplify
+     */
+    RValue simplify() {
+        return this;
+    }
+
+    /**
+     * Simplifies the given node until none of the rules apply anymore.
+     */
+    static RValue simplify(RValue node) {
+        while (node instanceof Operation) {
+            final RValue simplified = ((Operation) node).simplify();
+            if (simplified == node) {
+                break;
+            }
+
+            node = simplified;
+        }
+
+        return node;
+    }
+
+    /**
+     * @return true if evaluating the given subtree doesn't do anything besides returning a value,
+     *         so it can be evaluated more often, less often or not at all
+     */
+    static boolean isSideEffectFree(RValue node) {
+        if (node instanceof Constant || node instanceof Variable) {
+            return true;
+        }
+
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            if (operation.isDynamic()) {
+                return false;
+            }
+
+            final RValue[] operands = operation.getOperands();
+            for (int i = 0; i < operands.length; ++i) {
+                if (operation.isLValue(i) || !isSideEffectFree(operands[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            return isSideEffectFree(conditional.condition) && isSideEffectFree(conditional.truePart) && (conditional.falsePart == null || isSideEffectFree(conditional.falsePart));
+        }
+
+        return false;
+    }
+
+    /**
+     * Copies a subtree that is side-effect free, so it can appear in several places of the tree.
+     */
+    static RValue duplicate(RValue node) {
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+            for (int i = 0; i < operands.length; ++i) {
+                operands[i] = duplicate(operands[i]);
+            }
+
+            return operation.withOperands(operation.getPosition(), operands);
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            return new Conditional(conditional.getPosition(), duplicate(conditional.condition), duplicate(conditional.truePart), conditional.falsePart == null ? null : duplicate(conditional.falsePart));
+        }
+
+        return node;
+    }
+
+    /**
+     * @return true if the given node is a constant with exactly the given value, telling 0.0 and -0.0 apart
+     */
+    static boolean isConstant(RValue node, double value) {
+        return node instanceof Constant && Double.doubleToLongBits(((Constant) node).getValue()) == Double.doubleToLongBits(value);
+    }
+
+    @Override
+    public RValue bindVariables(Expression expression, boolean preferLValue) throws ParserException {
+        final RValue[] operands = getOperands();
+        for (int i = 0; i < operands.length; ++i) {
+            operands[i] = operands[i].bindVariables(expression, isLValue(i));
+        }
+
+        return withOperands(getPosition(), operands);
+    }
+
+    /**
+     * Instantiates the first of the given prototypes that fits the arguments.
+     *
+     * @return the new operation or null if none of the prototypes fit
+     */
+    static Operation instantiate(List<Operation> prototypes, int position, RValue... args) {
+        if (prototypes == null) {
+            return null;
+        }
+
+        outer: for (Operation prototype : prototypes) {
+            if (prototype.getOperands().length != args.length) {
+                continue;
+            }
+
+            for (int i = 0; i < args.length; ++i) {
+                if (prototype.isLValue(i) && !(args[i] instanceof LValue)) {
+                    continue outer;
+                }
+            }
+
+            return prototype.withOperands(position, args);
+        }
+
+        return null;
+    }
+}
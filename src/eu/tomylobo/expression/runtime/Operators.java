@@ -18,167 +18,832 @@
 
 package eu.tomylobo.expression.runtime;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Contains all unary and binary operators.
  *
  * @author TomyLobo
  */
 public final class Operators {
-    public static final Function getOperator(int position, String name, RValue lhs, RValue rhs) throws NoSuchMethodException {
-        if (lhs instanceof LValue) {
-            try {
-                return new Function(position, Operators.class.getMethod(name, LValue.class, RValue.class), lhs, rhs);
-            }
-            catch (NoSuchMethodException e) {}
+    private static final Map<String, List<Operation>> operators = new HashMap<String, List<Operation>>();
+    static {
+        addOperator(new Add(-1, null, null));
+        addOperator(new Sub(-1, null, null));
+        addOperator(new Mul(-1, null, null));
+        addOperator(new Div(-1, null, null));
+        addOperator(new Mod(-1, null, null));
+        addOperator(new Pow(-1, null, null));
+
+        addOperator(new Neg(-1, null));
+        addOperator(new Not(-1, null));
+        addOperator(new Inv(-1, null));
+
+        addOperator(new Lth(-1, null, null));
+        addOperator(new Gth(-1, null, null));
+        addOperator(new Leq(-1, null, null));
+        addOperator(new Geq(-1, null, null));
+
+        addOperator(new Equ(-1, null, null));
+        addOperator(new Neq(-1, null, null));
+        addOperator(new Near(-1, null, null));
+
+        addOperator(new Or(-1, null, null));
+        addOperator(new And(-1, null, null));
+
+        addOperator(new Shl(-1, null, null));
+        addOperator(new Shr(-1, null, null));
+
+        addOperator(new Ass(-1, null, null));
+        addOperator(new Aadd(-1, null, null));
+        addOperator(new Asub(-1, null, null));
+        addOperator(new Amul(-1, null, null));
+        addOperator(new Adiv(-1, null, null));
+        addOperator(new Amod(-1, null, null));
+        addOperator(new Aexp(-1, null, null));
+
+        addOperator(new Inc(-1, null));
+        addOperator(new Dec(-1, null));
+        addOperator(new PostInc(-1, null));
+        addOperator(new PostDec(-1, null));
+
+        addOperator(new Fac(-1, null));
+    }
+
+    private static void addOperator(Operation prototype) {
+        List<Operation> overloads = operators.get(prototype.getName());
+        if (overloads == null) {
+            operators.put(prototype.getName(), overloads = new ArrayList<Operation>());
         }
-        return new Function(position, Operators.class.getMethod(name, RValue.class, RValue.class), lhs, rhs);
+
+        overloads.add(prototype);
     }
 
-    public static final Function getOperator(int position, String name, RValue argument) throws NoSuchMethodException {
-        if (argument instanceof LValue) {
-            try {
-                return new Function(position, Operators.class.getMethod(name, LValue.class), argument);
+    public static final RValue getOperator(int position, String name, RValue lhs, RValue rhs) throws NoSuchMethodException {
+        final Operation operator = Operation.instantiate(operators.get(name), position, lhs, rhs);
+        if (operator == null) {
+            throw new NoSuchMethodException();
+        }
+
+        return operator;
+    }
+
+    public static final RValue getOperator(int position, String name, RValue argument) throws NoSuchMethodException {
+        final Operation operator = Operation.instantiate(operators.get(name), position, argument);
+        if (operator == null) {
+            throw new NoSuchMethodException();
+        }
+
+        return operator;
+    }
+
+
+    static final class Add extends BinaryOperation {
+        Add(int position, RValue lhs, RValue rhs) {
+            super(position, "add", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) + rhs.getValue(frame);
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Add(position, lhs, rhs);
+        }
+
+        @Override
+        RValue simplify() {
+            if (lhs instanceof Constant) {
+                return new Add(getPosition(), rhs, lhs);
+            }
+
+            // -0.0 + 0.0 is 0.0, so only adding -0.0 keeps every value.
+            if (isConstant(rhs, -0.0)) {
+                return lhs;
+            }
+
+            if (rhs instanceof Neg) {
+                return new Sub(getPosition(), lhs, ((Neg) rhs).x);
+            }
+
+            // The operands swap places, so they must not see each other's side effects.
+            if (lhs instanceof Neg && (rhs instanceof Constant || isSideEffectFree(lhs) && isSideEffectFree(rhs))) {
+                return new Sub(getPosition(), rhs, ((Neg) lhs).x);
             }
-            catch (NoSuchMethodException e) {}
+
+            return this;
         }
-        return new Function(position, Operators.class.getMethod(name, RValue.class), argument);
     }
 
+    static final class Sub extends BinaryOperation {
+        Sub(int position, RValue lhs, RValue rhs) {
+            super(position, "sub", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) - rhs.getValue(frame);
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Sub(position, lhs, rhs);
+        }
+
+        @Override
+        RValue simplify() {
+            if (isConstant(rhs, 0.0)) {
+                return lhs;
+            }
 
-    public static final double add(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() + rhs.getValue();
+            // 0.0 - 0.0 is 0.0, but -0.0 - x is -x for every x.
+            if (isConstant(lhs, -0.0)) {
+                return new Neg(getPosition(), rhs);
+            }
+
+            if (rhs instanceof Neg) {
+                return new Add(getPosition(), lhs, ((Neg) rhs).x);
+            }
+
+            return this;
+        }
     }
 
-    public static final double sub(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() - rhs.getValue();
+    static final class Mul extends BinaryOperation {
+        Mul(int position, RValue lhs, RValue rhs) {
+            super(position, "mul", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) * rhs.getValue(frame);
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Mul(position, lhs, rhs);
+        }
+
+        @Override
+        RValue simplify() {
+            if (lhs instanceof Constant) {
+                return new Mul(getPosition(), rhs, lhs);
+            }
+
+            if (isConstant(rhs, 1.0)) {
+                return lhs;
+            }
+
+            if (isConstant(rhs, -1.0)) {
+                return new Neg(getPosition(), lhs);
+            }
+
+            // Infinity * 0 and NaN * 0 are NaN.
+            if (isConstant(rhs, 0.0) && isSideEffectFree(lhs) && RangeAnalysis.isFinite(lhs)) {
+                return new Constant(getPosition(), 0.0);
+            }
+
+            // (x * c1) * c2 -> x * (c1 * c2), unless the product over- or underflows, which x * c1 * c2 might not.
+            if (rhs instanceof Constant && lhs instanceof Mul && ((Mul) lhs).rhs instanceof Constant) {
+                final Mul inner = (Mul) lhs;
+                final double product = ((Constant) inner.rhs).getValue() * ((Constant) rhs).getValue();
+                if (product != 0.0 && !Double.isInfinite(product) && !Double.isNaN(product)) {
+                    return new Mul(getPosition(), inner.lhs, new Constant(rhs.getPosition(), product));
+                }
+            }
+
+            // -x * c -> x * -c
+            if (rhs instanceof Constant && lhs instanceof Neg) {
+                return new Mul(getPosition(), ((Neg) lhs).x, new Constant(rhs.getPosition(), -((Constant) rhs).getValue()));
+            }
+
+            if (lhs instanceof Neg && rhs instanceof Neg) {
+                return new Mul(getPosition(), ((Neg) lhs).x, ((Neg) rhs).x);
+            }
+
+            return this;
+        }
     }
 
-    public static final double mul(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() * rhs.getValue();
+    static final class Div extends BinaryOperation {
+        Div(int position, RValue lhs, RValue rhs) {
+            super(position, "div", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) / rhs.getValue(frame);
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Div(position, lhs, rhs);
+        }
+
+        @Override
+        RValue simplify() {
+            // Multiplications are cheaper and are reassociated with other constants.
+            // Only powers of two have exact reciprocals, so dividing by anything else would round differently.
+            if (rhs instanceof Constant) {
+                final double divisor = ((Constant) rhs).getValue();
+                final double reciprocal = 1.0 / divisor;
+                if (isPowerOfTwo(divisor) && isPowerOfTwo(reciprocal)) {
+                    return new Mul(getPosition(), lhs, new Constant(rhs.getPosition(), reciprocal));
+                }
+            }
+
+            return this;
+        }
     }
 
-    public static final double div(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() / rhs.getValue();
+    /**
+     * @return true if the absolute value is a normal power of two
+     */
+    private static boolean isPowerOfTwo(double value) {
+        if (value == 0.0 || Double.isInfinite(value) || Double.isNaN(value)) {
+            return false;
+        }
+
+        return Math.abs(value) == Math.scalb(1.0, Math.getExponent(value)) && Math.getExponent(value) >= Double.MIN_EXPONENT;
     }
 
-    public static final double mod(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() % rhs.getValue();
+    static final class Mod extends BinaryOperation {
+        Mod(int position, RValue lhs, RValue rhs) {
+            super(position, "mod", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) % rhs.getValue(frame);
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Mod(position, lhs, rhs);
+        }
     }
 
-    public static final double pow(RValue lhs, RValue rhs) throws EvaluationException {
-        return Math.pow(lhs.getValue(), rhs.getValue());
+    static final class Pow extends BinaryOperation {
+        Pow(int position, RValue lhs, RValue rhs) {
+            super(position, "pow", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return Math.pow(lhs.getValue(frame), rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Pow(position, lhs, rhs);
+        }
+
+        /**
+         * The largest exponent that is turned into multiplications.
+         */
+        private static final int MAX_MULTIPLIED_EXPONENT = 4;
+
+        @Override
+        RValue simplify() {
+            if (!(rhs instanceof Constant)) {
+                return this;
+            }
+
+            final double exponent = ((Constant) rhs).getValue();
+            if (exponent == 1.0) {
+                return lhs;
+            }
+
+            if (!isSideEffectFree(lhs)) {
+                return this;
+            }
+
+            // pow(x, 0) is 1, even for NaN.
+            if (exponent == 0.0) {
+                return new Constant(getPosition(), 1.0);
+            }
+
+            final int n = (int) Math.abs(exponent);
+            if (n != Math.abs(exponent) || n > MAX_MULTIPLIED_EXPONENT) {
+                return this;
+            }
+
+            // Squares the base as often as possible, so common subexpression elimination can reuse the squares.
+            RValue product = null;
+            RValue square = lhs;
+            for (int bits = n; bits != 0; bits >>= 1) {
+                if ((bits & 1) != 0) {
+                    product = product == null ? square : new Mul(getPosition(), product, duplicate(square));
+                }
+
+                if (bits > 1) {
+                    square = new Mul(getPosition(), square, duplicate(square));
+                }
+            }
+
+            if (exponent < 0) {
+                return new Div(getPosition(), new Constant(getPosition(), 1.0), product);
+            }
+
+            return product;
+        }
     }
 
 
-    public static final double neg(RValue x) throws EvaluationException {
-        return -x.getValue();
+    static final class Lth extends BinaryOperation {
+        Lth(int position, RValue lhs, RValue rhs) {
+            super(position, "lth", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) < rhs.getValue(frame) ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Lth(position, lhs, rhs);
+        }
     }
 
-    public static final double not(RValue x) throws EvaluationException {
-        return x.getValue() > 0.0 ? 0.0 : 1.0;
+    static final class Gth extends BinaryOperation {
+        Gth(int position, RValue lhs, RValue rhs) {
+            super(position, "gth", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) > rhs.getValue(frame) ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Gth(position, lhs, rhs);
+        }
     }
 
-    public static final double inv(RValue x) throws EvaluationException {
-        return ~(long) x.getValue();
+    static final class Leq extends BinaryOperation {
+        Leq(int position, RValue lhs, RValue rhs) {
+            super(position, "leq", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) <= rhs.getValue(frame) ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Leq(position, lhs, rhs);
+        }
     }
 
+    static final class Geq extends BinaryOperation {
+        Geq(int position, RValue lhs, RValue rhs) {
+            super(position, "geq", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) >= rhs.getValue(frame) ? 1.0 : 0.0;
+        }
 
-    public static final double lth(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() < rhs.getValue() ? 1.0 : 0.0;
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Geq(position, lhs, rhs);
+        }
     }
 
-    public static final double gth(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() > rhs.getValue() ? 1.0 : 0.0;
+
+    static final class Equ extends BinaryOperation {
+        Equ(int position, RValue lhs, RValue rhs) {
+            super(position, "equ", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) == rhs.getValue(frame) ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Equ(position, lhs, rhs);
+        }
     }
 
-    public static final double leq(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() <= rhs.getValue() ? 1.0 : 0.0;
+    static final class Neq extends BinaryOperation {
+        Neq(int position, RValue lhs, RValue rhs) {
+            super(position, "neq", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) != rhs.getValue(frame) ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Neq(position, lhs, rhs);
+        }
     }
 
-    public static final double geq(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() >= rhs.getValue() ? 1.0 : 0.0;
+    static final class Near extends BinaryOperation {
+        Near(int position, RValue lhs, RValue rhs) {
+            super(position, "near", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return almostEqual2sComplement(lhs.getValue(frame), rhs.getValue(frame), 450359963L) ? 1.0 : 0.0;
+            //return Math.abs(lhs.invoke() - rhs.invoke()) < 1e-7 ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Near(position, lhs, rhs);
+        }
     }
 
 
-    public static final double equ(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() == rhs.getValue() ? 1.0 : 0.0;
+    static final class Or extends BinaryOperation {
+        Or(int position, RValue lhs, RValue rhs) {
+            super(position, "or", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) > 0.0 || rhs.getValue(frame) > 0.0 ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Or(position, lhs, rhs);
+        }
     }
 
-    public static final double neq(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() != rhs.getValue() ? 1.0 : 0.0;
+    static final class And extends BinaryOperation {
+        And(int position, RValue lhs, RValue rhs) {
+            super(position, "and", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return lhs.getValue(frame) > 0.0 && rhs.getValue(frame) > 0.0 ? 1.0 : 0.0;
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new And(position, lhs, rhs);
+        }
     }
 
-    public static final double near(RValue lhs, RValue rhs) throws EvaluationException {
-        return almostEqual2sComplement(lhs.getValue(), rhs.getValue(), 450359963L) ? 1.0 : 0.0;
-        //return Math.abs(lhs.invoke() - rhs.invoke()) < 1e-7 ? 1.0 : 0.0;
+
+    static final class Shl extends BinaryOperation {
+        Shl(int position, RValue lhs, RValue rhs) {
+            super(position, "shl", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return (long) lhs.getValue(frame) << (long) rhs.getValue(frame);
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Shl(position, lhs, rhs);
+        }
     }
 
+    static final class Shr extends BinaryOperation {
+        Shr(int position, RValue lhs, RValue rhs) {
+            super(position, "shr", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return (long) lhs.getValue(frame) >> (long) rhs.getValue(frame);
+        }
 
-    public static final double or(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() > 0.0 || rhs.getValue() > 0.0 ? 1.0 : 0.0;
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Shr(position, lhs, rhs);
+        }
     }
 
-    public static final double and(RValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.getValue() > 0.0 && rhs.getValue() > 0.0 ? 1.0 : 0.0;
+
+    static final class Ass extends BinaryOperation {
+        Ass(int position, RValue lhs, RValue rhs) {
+            super(position, "ass", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return ((LValue) lhs).assign(frame, rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Ass(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
+    static final class Aadd extends BinaryOperation {
+        Aadd(int position, RValue lhs, RValue rhs) {
+            super(position, "aadd", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue lhs = (LValue) this.lhs;
+            return lhs.assign(frame, lhs.getValue(frame) + rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Aadd(position, lhs, rhs);
+        }
 
-    public static final double shl(RValue lhs, RValue rhs) throws EvaluationException {
-        return (long) lhs.getValue() << (long) rhs.getValue();
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double shr(RValue lhs, RValue rhs) throws EvaluationException {
-        return (long) lhs.getValue() >> (long) rhs.getValue();
+    static final class Asub extends BinaryOperation {
+        Asub(int position, RValue lhs, RValue rhs) {
+            super(position, "asub", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue lhs = (LValue) this.lhs;
+            return lhs.assign(frame, lhs.getValue(frame) - rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Asub(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
+    static final class Amul extends BinaryOperation {
+        Amul(int position, RValue lhs, RValue rhs) {
+            super(position, "amul", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue lhs = (LValue) this.lhs;
+            return lhs.assign(frame, lhs.getValue(frame) * rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Amul(position, lhs, rhs);
+        }
 
-    public static final double ass(LValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.assign(rhs.getValue());
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double aadd(LValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.assign(lhs.getValue() + rhs.getValue());
+    static final class Adiv extends BinaryOperation {
+        Adiv(int position, RValue lhs, RValue rhs) {
+            super(position, "adiv", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue lhs = (LValue) this.lhs;
+            return lhs.assign(frame, lhs.getValue(frame) / rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Adiv(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double asub(LValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.assign(lhs.getValue() - rhs.getValue());
+    static final class Amod extends BinaryOperation {
+        Amod(int position, RValue lhs, RValue rhs) {
+            super(position, "amod", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue lhs = (LValue) this.lhs;
+            return lhs.assign(frame, lhs.getValue(frame) % rhs.getValue(frame));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Amod(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double amul(LValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.assign(lhs.getValue() * rhs.getValue());
+    static final class Aexp extends BinaryOperation {
+        Aexp(int position, RValue lhs, RValue rhs) {
+            super(position, "aexp", lhs, rhs);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue lhs = (LValue) this.lhs;
+            return lhs.assign(frame, Math.pow(lhs.getValue(frame), rhs.getValue(frame)));
+        }
+
+        @Override
+        BinaryOperation copy(int position, RValue lhs, RValue rhs) {
+            return new Aexp(position, lhs, rhs);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double adiv(LValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.assign(lhs.getValue() / rhs.getValue());
+
+    static final class Neg extends UnaryOperation {
+        Neg(int position, RValue x) {
+            super(position, "neg", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return -x.getValue(frame);
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Neg(position, x);
+        }
+
+        @Override
+        RValue simplify() {
+            if (x instanceof Neg) {
+                return ((Neg) x).x;
+            }
+
+            // -(x * c) -> x * -c
+            if (x instanceof Mul && ((Mul) x).rhs instanceof Constant) {
+                final Mul inner = (Mul) x;
+                return new Mul(getPosition(), inner.lhs, new Constant(inner.rhs.getPosition(), -((Constant) inner.rhs).getValue()));
+            }
+
+            return this;
+        }
     }
 
-    public static final double amod(LValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.assign(lhs.getValue() % rhs.getValue());
+    static final class Not extends UnaryOperation {
+        Not(int position, RValue x) {
+            super(position, "not", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return x.getValue(frame) > 0.0 ? 0.0 : 1.0;
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Not(position, x);
+        }
     }
 
-    public static final double aexp(LValue lhs, RValue rhs) throws EvaluationException {
-        return lhs.assign(Math.pow(lhs.getValue(), rhs.getValue()));
+    static final class Inv extends UnaryOperation {
+        Inv(int position, RValue x) {
+            super(position, "inv", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            return ~(long) x.getValue(frame);
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Inv(position, x);
+        }
     }
 
 
-    public static final double inc(LValue x) throws EvaluationException {
-        return x.assign(x.getValue() + 1);
+    static final class Inc extends UnaryOperation {
+        Inc(int position, RValue x) {
+            super(position, "inc", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue x = (LValue) this.x;
+            return x.assign(frame, x.getValue(frame) + 1);
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Inc(position, x);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double dec(LValue x) throws EvaluationException {
-        return x.assign(x.getValue() - 1);
+    static final class Dec extends UnaryOperation {
+        Dec(int position, RValue x) {
+            super(position, "dec", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue x = (LValue) this.x;
+            return x.assign(frame, x.getValue(frame) - 1);
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Dec(position, x);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double postinc(LValue x) throws EvaluationException {
-        final double oldValue = x.getValue();
-        x.assign(oldValue + 1);
-        return oldValue;
+    static final class PostInc extends UnaryOperation {
+        PostInc(int position, RValue x) {
+            super(position, "postinc", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue x = (LValue) this.x;
+            final double oldValue = x.getValue(frame);
+            x.assign(frame, oldValue + 1);
+            return oldValue;
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new PostInc(position, x);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
-    public static final double postdec(LValue x) throws EvaluationException {
-        final double oldValue = x.getValue();
-        x.assign(oldValue - 1);
-        return oldValue;
+    static final class PostDec extends UnaryOperation {
+        PostDec(int position, RValue x) {
+            super(position, "postdec", x);
+        }
+
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            final LValue x = (LValue) this.x;
+            final double oldValue = x.getValue(frame);
+            x.assign(frame, oldValue - 1);
+            return oldValue;
+        }
+
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new PostDec(position, x);
+        }
+
+        @Override
+        boolean isLValue(int index) {
+            return index == 0;
+        }
     }
 
 
@@ -191,18 +856,30 @@ public final class Operators {
         }
     }
 
-    public static final double fac(RValue x) throws EvaluationException {
-        int n = (int) x.getValue();
-
-        if (n < 0) {
-            return 0;
+    static final class Fac extends UnaryOperation {
+        Fac(int position, RValue x) {
+            super(position, "fac", x);
         }
 
-        if (n >= factorials.length) {
-            return Double.POSITIVE_INFINITY;
+        @Override
+        public double getValue(Frame frame) throws EvaluationException {
+            int n = (int) x.getValue(frame);
+
+            if (n < 0) {
+                return 0;
+            }
+
+            if (n >= factorials.length) {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            return factorials[n];
         }
 
-        return factorials[n];
+        @Override
+        UnaryOperation copy(int position, RValue x) {
+            return new Fac(position, x);
+        }
     }
 
     // Usable AlmostEqual function, based on http://www.cygnus-software.com/papers/comparingfloats/comparingfloats.htm
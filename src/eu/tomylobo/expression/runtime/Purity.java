@@ -0,0 +1,60 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+/**
+ * How much the value of an expression or subtree depends on things other than its inputs.
+ *
+ * The classes are ordered from the most to the least predictable.
+ *
+ * @see PurityAnalysis
+ * @author TomyLobo
+ */
+public enum Purity {
+    /**
+     * Always has the same value and has no side effects, so it can be replaced by its value.
+     */
+    CONSTANT,
+
+    /**
+     * Only depends on the variables passed to evaluate, like the time,
+     * and on variables assigned earlier in the same evaluation.
+     * Can be evaluated for any set of inputs in any order.
+     */
+    PURE,
+
+    /**
+     * Reads state left behind by earlier evaluations, for example a variable that is
+     * incremented every sample or the phase of an oscillator or _integrate.
+     * Deterministic, but only when evaluated in order, starting with a new frame.
+     */
+    STATEFUL,
+
+    /**
+     * Calls dynamic functions like random or whitenoise, so it can't be reproduced at all.
+     */
+    NONDETERMINISTIC;
+
+    /**
+     * @return the less predictable of the two classes
+     */
+    public Purity combine(Purity other) {
+        return compareTo(other) >= 0 ? this : other;
+    }
+}
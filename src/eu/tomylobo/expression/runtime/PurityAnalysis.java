@@ -0,0 +1,369 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Classifies an expression tree and each of its subtrees by their {@link Purity}.
+ *
+ * Variables that are never assigned, and the time variable, are inputs.
+ * Reading an assigned variable is only stateful if it might not have been assigned earlier
+ * in the same evaluation, since it then reads the value left behind by the previous one.
+ * Whatever was assigned to a variable is classified where it is computed, so the class of
+ * the whole tree accounts for it.
+ *
+ * A tree compiled by {@link BytecodeCompiler} is analyzed through its source tree.
+ *
+ * @author TomyLobo
+ */
+public final class PurityAnalysis {
+    private final Variable time;
+    private final Map<Variable, Boolean> assigned = new IdentityHashMap<Variable, Boolean>();
+
+    /**
+     * The value assigned to each variable, if it is only assigned by one assignment. Otherwise null.
+     */
+    private final Map<Variable, RValue> definitions = new IdentityHashMap<Variable, RValue>();
+    private final Map<RValue, Purity> results = new IdentityHashMap<RValue, Purity>();
+    private final Purity purity;
+
+    /**
+     * @param root The tree to analyze
+     * @param time The variable that receives the time values. Can be null.
+     */
+    public PurityAnalysis(RValue root, Variable time) {
+        this.time = time;
+
+        findAssignments(root);
+        purity = analyze(root, newVariableSet());
+    }
+
+    /**
+     * @return the class of the whole tree
+     */
+    public Purity getPurity() {
+        return purity;
+    }
+
+    /**
+     * Nodes that occur more than once in the tree, like variables, get the least predictable of their classes.
+     *
+     * @return the class of the given subtree or null if it isn't part of the tree
+     */
+    public Purity getPurity(RValue node) {
+        return results.get(node);
+    }
+
+    /**
+     * @return true if the tree might assign to the given variable
+     */
+    public boolean isAssigned(Variable variable) {
+        return assigned.containsKey(variable);
+    }
+
+    /**
+     * If a variable is only assigned by one assignment and that assignment always comes before
+     * the variable is read, each read returns the value computed by the assignment in the same evaluation.
+     *
+     * @return the value assigned to the given variable in that case, otherwise null. Always null for the time variable.
+     */
+    public RValue getDefinition(Variable variable) {
+        final RValue definition = definitions.get(variable);
+        if (definition == null || variable == time) {
+            return null;
+        }
+
+        final Purity reads = results.get(variable);
+        if (reads != null && reads.compareTo(Purity.PURE) > 0) {
+            return null;
+        }
+
+        return definition;
+    }
+
+    private void assign(Variable variable, RValue value) {
+        definitions.put(variable, assigned.containsKey(variable) ? null : value);
+        assigned.put(variable, true);
+    }
+
+    /**
+     * Records all variables the tree assigns to.
+     * Variables passed to reflective functions are treated as assigned, since they might be.
+     */
+    private void findAssignments(RValue node) {
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+            for (int i = 0; i < operands.length; ++i) {
+                if (operation.isLValue(i) && operands[i] instanceof Variable) {
+                    assign((Variable) operands[i], operation instanceof Operators.Ass ? operands[1] : null);
+                }
+                findAssignments(operands[i]);
+            }
+        }
+        else if (node instanceof Function) {
+            for (RValue arg : ((Function) node).args) {
+                if (arg instanceof Variable) {
+                    assign((Variable) arg, null);
+                }
+                findAssignments(arg);
+            }
+        }
+        else if (node instanceof Sequence) {
+            for (RValue statement : ((Sequence) node).sequence) {
+                findAssignments(statement);
+            }
+        }
+        else if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+            findAssignments(conditional.condition);
+            findAssignments(conditional.truePart);
+            if (conditional.falsePart != null) {
+                findAssignments(conditional.falsePart);
+            }
+        }
+        else if (node instanceof While) {
+            findAssignments(((While) node).condition);
+            findAssignments(((While) node).body);
+        }
+        else if (node instanceof For) {
+            final For loop = (For) node;
+            findAssignments(loop.init);
+            findAssignments(loop.condition);
+            findAssignments(loop.increment);
+            findAssignments(loop.body);
+        }
+        else if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            if (loop.counter instanceof Variable) {
+                assign((Variable) loop.counter, null);
+            }
+            findAssignments(loop.first);
+            findAssignments(loop.last);
+            findAssignments(loop.body);
+        }
+        else if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+            findAssignments(switchStatement.parameter);
+            for (RValue caseStatement : switchStatement.caseStatements) {
+                findAssignments(caseStatement);
+            }
+            if (switchStatement.defaultCase != null) {
+                findAssignments(switchStatement.defaultCase);
+            }
+        }
+        else if (node instanceof Return) {
+            findAssignments(((Return) node).value);
+        }
+        else if (node instanceof CompiledNode) {
+            findAssignments(((CompiledNode) node).getSource());
+        }
+    }
+
+    /**
+     * Classifies a subtree and records the result.
+     *
+     * @param defined The variables that are definitely assigned when the subtree is evaluated.
+     *                Receives the variables the subtree definitely assigns.
+     */
+    private Purity analyze(RValue node, Set<Variable> defined) {
+        final Purity purity = classify(node, defined);
+
+        final Purity previous = results.get(node);
+        results.put(node, previous == null ? purity : previous.combine(purity));
+
+        return purity;
+    }
+
+    private Purity classify(RValue node, Set<Variable> defined) {
+        if (node instanceof Constant) {
+            return Purity.CONSTANT;
+        }
+
+        if (node instanceof Variable) {
+            if (node == time || !assigned.containsKey(node) || defined.contains(node)) {
+                return Purity.PURE;
+            }
+
+            return Purity.STATEFUL;
+        }
+
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+
+            Purity ret = operation.isDynamic() ? Purity.NONDETERMINISTIC : Purity.CONSTANT;
+            if (operation instanceof Operators.Ass) {
+                // The value is evaluated before anything is assigned.
+                ret = ret.combine(analyze(operands[1], defined));
+                if (operands[0] instanceof Variable) {
+                    defined.add((Variable) operands[0]);
+                }
+                else {
+                    ret = ret.combine(analyze(operands[0], defined));
+                }
+
+                // Can't be replaced by its value, since it has a side effect.
+                return ret.combine(Purity.PURE);
+            }
+
+            // The right-hand side of && and || isn't always evaluated.
+            final boolean shortCircuit = operation instanceof Operators.And || operation instanceof Operators.Or;
+
+            final Set<Variable> lvalues = newVariableSet();
+            for (int i = 0; i < operands.length; ++i) {
+                ret = ret.combine(analyze(operands[i], shortCircuit && i > 0 ? copy(defined) : defined));
+
+                if (operation.isLValue(i)) {
+                    ret = ret.combine(Purity.PURE);
+                    if (operands[i] instanceof Variable) {
+                        lvalues.add((Variable) operands[i]);
+                    }
+                }
+            }
+            defined.addAll(lvalues);
+
+            return ret;
+        }
+
+        if (node instanceof Function) {
+            final Function function = (Function) node;
+
+            Purity ret = function.method.isAnnotationPresent(Function.Dynamic.class) ? Purity.NONDETERMINISTIC : Purity.CONSTANT;
+            for (RValue arg : function.args) {
+                ret = ret.combine(analyze(arg, defined));
+            }
+
+            return ret;
+        }
+
+        if (node instanceof Sequence) {
+            Purity ret = Purity.CONSTANT;
+            for (RValue statement : ((Sequence) node).sequence) {
+                ret = ret.combine(analyze(statement, defined));
+            }
+
+            return ret;
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+
+            Purity ret = analyze(conditional.condition, defined);
+
+            final Set<Variable> trueDefined = copy(defined);
+            ret = ret.combine(analyze(conditional.truePart, trueDefined));
+
+            if (conditional.falsePart != null) {
+                final Set<Variable> falseDefined = copy(defined);
+                ret = ret.combine(analyze(conditional.falsePart, falseDefined));
+
+                // Only variables assigned by both branches are definitely assigned.
+                trueDefined.retainAll(falseDefined);
+                defined.addAll(trueDefined);
+            }
+
+            return ret;
+        }
+
+        // Loop bodies might not be evaluated at all, so the variables they assign aren't definitely assigned afterwards.
+        if (node instanceof While) {
+            final While loop = (While) node;
+
+            if (loop.footChecked) {
+                final Set<Variable> bodyDefined = copy(defined);
+                return Purity.PURE.combine(analyze(loop.body, bodyDefined)).combine(analyze(loop.condition, bodyDefined));
+            }
+
+            final Purity condition = analyze(loop.condition, defined);
+            return Purity.PURE.combine(condition).combine(analyze(loop.body, copy(defined)));
+        }
+
+        if (node instanceof For) {
+            final For loop = (For) node;
+
+            Purity ret = Purity.PURE.combine(analyze(loop.init, defined));
+            ret = ret.combine(analyze(loop.condition, defined));
+
+            final Set<Variable> bodyDefined = copy(defined);
+            ret = ret.combine(analyze(loop.body, bodyDefined));
+            return ret.combine(analyze(loop.increment, bodyDefined));
+        }
+
+        if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+
+            Purity ret = Purity.PURE.combine(analyze(loop.first, defined));
+            ret = ret.combine(analyze(loop.last, defined));
+
+            final Set<Variable> bodyDefined = copy(defined);
+            if (loop.counter instanceof Variable) {
+                bodyDefined.add((Variable) loop.counter);
+            }
+            else {
+                ret = ret.combine(analyze(loop.counter, bodyDefined));
+            }
+
+            return ret.combine(analyze(loop.body, bodyDefined));
+        }
+
+        if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+
+            Purity ret = Purity.PURE.combine(analyze(switchStatement.parameter, defined));
+            for (RValue caseStatement : switchStatement.caseStatements) {
+                ret = ret.combine(analyze(caseStatement, copy(defined)));
+            }
+            if (switchStatement.defaultCase != null) {
+                ret = ret.combine(analyze(switchStatement.defaultCase, copy(defined)));
+            }
+
+            return ret;
+        }
+
+        if (node instanceof Return) {
+            return Purity.PURE.combine(analyze(((Return) node).value, defined));
+        }
+
+        if (node instanceof Break) {
+            return Purity.PURE;
+        }
+
+        if (node instanceof CompiledNode) {
+            return analyze(((CompiledNode) node).getSource(), defined);
+        }
+
+        // Unknown node types might do anything to the frame.
+        return Purity.STATEFUL;
+    }
+
+    private static Set<Variable> newVariableSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>());
+    }
+
+    private static Set<Variable> copy(Set<Variable> variables) {
+        final Set<Variable> ret = newVariableSet();
+        ret.addAll(variables);
+        return ret;
+    }
+}
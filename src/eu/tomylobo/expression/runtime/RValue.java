@@ -28,7 +28,7 @@ import eu.tomylobo.expression.parser.ParserException;
  * @author TomyLobo
  */
 public interface RValue extends Identifiable {
-    public double getValue() throws EvaluationException;
+    public double getValue(Frame frame) throws EvaluationException;
 
     public RValue optimize() throws EvaluationException;
 
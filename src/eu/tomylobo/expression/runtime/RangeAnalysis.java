@@ -0,0 +1,894 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Finds an interval that contains every result of an expression for a range of time values.
+ *
+ * NaN is tracked separately from the interval, so an expression that might return NaN
+ * can still have tight bounds for its other results.
+ * Variables that the expression doesn't assign keep the value they have in the given frame.
+ * Variables it assigns can have any value left behind by the previous evaluation until they
+ * are assigned again. Loops and switch statements give up on the variables they assign.
+ *
+ * The bounds rely on the JVM's floating point operations being monotonic, which the Java
+ * specification guarantees for the basic arithmetic and requires for the functions in {@link Math}.
+ *
+ * @author TomyLobo
+ */
+public final class RangeAnalysis {
+    private static final Range ALL = new Range(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+    private static final Range NAN = new Range(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, true);
+    private static final Range BOOLEAN = new Range(0.0, 1.0, false);
+    private static final Range FALSE = new Range(0.0, 0.0, false);
+    private static final Range TRUE = new Range(1.0, 1.0, false);
+    private static final Range UNIT = new Range(-1.0, 1.0, false);
+
+    private final Variable time;
+    private final Range timeRange;
+    private final Frame frame;
+
+    /**
+     * The variables the tree assigns or null if that's unknown.
+     */
+    private final BitSet assigned;
+
+    /**
+     * The range of each variable at the node being analyzed, by slot.
+     * null means the variable wasn't assigned yet in the current evaluation.
+     */
+    private Range[] state;
+    private Range returned = null;
+    private boolean mayFail = false;
+
+    /**
+     * The number of switches around the node being analyzed, which a break can leave without failing.
+     */
+    private int switchDepth = 0;
+
+    /**
+     * The ranges of the conditions of the conditionals that were reached, joined over all paths reaching them.
+     */
+    private final Map<Conditional, Range> conditions = new IdentityHashMap<Conditional, Range>();
+
+    private final Range range;
+
+    /**
+     * @param root The tree to analyze
+     * @param frame The frame the tree will be evaluated with. Can be null, if nothing is known about the variables.
+     * @param time The variable that receives the time values. Can be null.
+     * @param tMin The smallest time value
+     * @param tMax The largest time value
+     */
+    public RangeAnalysis(RValue root, Frame frame, Variable time, double tMin, double tMax) {
+        this.time = time;
+        this.timeRange = Range.of(tMin, tMax, false);
+        this.frame = frame;
+
+        assigned = CommonSubexpressions.findAssignments(root instanceof CompiledNode ? ((CompiledNode) root).getSource() : root);
+        state = new Range[frame == null ? 0 : frame.values.length];
+
+        final Range result = analyze(root);
+        range = returned == null ? result : result.join(returned);
+    }
+
+    /**
+     * @return true if the subtree always evaluates to a finite number, whatever the values of the variables
+     */
+    static boolean isFinite(RValue node) {
+        final RangeAnalysis analysis = new RangeAnalysis(node, null, null, 0.0, 0.0);
+        return !analysis.range.nan && !Double.isInfinite(analysis.range.min) && !Double.isInfinite(analysis.range.max);
+    }
+
+    /**
+     * @return the smallest result other than NaN. Larger than {@link #getMax()} if NaN is the only result.
+     */
+    public double getMin() {
+        return range.min;
+    }
+
+    /**
+     * @return the largest result other than NaN
+     */
+    public double getMax() {
+        return range.max;
+    }
+
+    /**
+     * @return false if the expression never returns NaN
+     */
+    public boolean mayBeNaN() {
+        return range.nan;
+    }
+
+    /**
+     * @return true if all results other than NaN lie between the given values
+     */
+    public boolean isWithin(double min, double max) {
+        return range.min >= min && range.max <= max;
+    }
+
+    /**
+     * An expression that always returns the same value still needs to be evaluated if it
+     * has side effects other expressions can see or if it might fail.
+     *
+     * @return true if the expression always returns the same value and its evaluation can't fail
+     */
+    public boolean isConstant() {
+        return range.min == range.max && !range.nan && !mayFail;
+    }
+
+    /**
+     * @return true if at least one conditional always takes the same branch
+     */
+    public boolean hasDecidedBranches() {
+        for (Range condition : conditions.values()) {
+            if (condition.isTrue() || condition.isFalse()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if both analyses found the same conditionals to always take the same branches
+     */
+    public boolean hasSameBranches(RangeAnalysis other) {
+        for (Conditional conditional : conditions.keySet()) {
+            if (getBranch(conditional) != other.getBranch(conditional)) {
+                return false;
+            }
+        }
+
+        for (Conditional conditional : other.conditions.keySet()) {
+            if (getBranch(conditional) != other.getBranch(conditional)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} or {@link Boolean#FALSE} if the conditional always takes that branch,
+     *         null if it can take both or isn't reached
+     */
+    Boolean getBranch(Conditional conditional) {
+        final Range condition = conditions.get(conditional);
+        if (condition == null) {
+            return null;
+        }
+
+        if (condition.isTrue()) {
+            return Boolean.TRUE;
+        }
+
+        if (condition.isFalse()) {
+            return Boolean.FALSE;
+        }
+
+        return null;
+    }
+
+    private Range analyze(RValue node) {
+        if (node instanceof Constant) {
+            return Range.point(((Constant) node).getValue());
+        }
+
+        if (node instanceof Variable) {
+            return read((Variable) node);
+        }
+
+        if (node instanceof Operation) {
+            return analyzeOperation((Operation) node);
+        }
+
+        if (node instanceof Function) {
+            final Function function = (Function) node;
+            final Class<?>[] parameters = function.method.getParameterTypes();
+            for (int i = 0; i < function.args.length; ++i) {
+                analyze(function.args[i]);
+                if (function.args[i] instanceof Variable && LValue.class.isAssignableFrom(parameters[i + 1])) {
+                    write((Variable) function.args[i], ALL);
+                }
+            }
+
+            mayFail = true;
+            return ALL;
+        }
+
+        if (node instanceof Sequence) {
+            Range ret = FALSE;
+            for (RValue statement : ((Sequence) node).sequence) {
+                ret = analyze(statement);
+            }
+
+            return ret;
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+
+            final Range condition = analyze(conditional.condition);
+
+            final Range previous = conditions.get(conditional);
+            conditions.put(conditional, previous == null ? condition : previous.join(condition));
+
+            if (condition.isTrue()) {
+                return analyze(conditional.truePart);
+            }
+
+            if (condition.isFalse()) {
+                return conditional.falsePart == null ? FALSE : analyze(conditional.falsePart);
+            }
+
+            final Range[] before = state.clone();
+            final Range truePart = analyze(conditional.truePart);
+            final Range[] afterTrue = state;
+
+            state = before;
+            final Range falsePart = conditional.falsePart == null ? FALSE : analyze(conditional.falsePart);
+
+            join(afterTrue);
+            return truePart.join(falsePart);
+        }
+
+        if (node instanceof While || node instanceof For || node instanceof SimpleFor) {
+            // Loops can exceed the iteration limit.
+            mayFail = true;
+            analyzeChildren(node);
+            return ALL;
+        }
+
+        if (node instanceof Switch) {
+            // Breaking out of a switch or not matching any case returns 0.0.
+            ++switchDepth;
+            final Range ret = analyzeChildren(node).join(FALSE);
+            --switchDepth;
+            return ret;
+        }
+
+        if (node instanceof Return) {
+            final Range value = analyze(((Return) node).value);
+            returned = returned == null ? value : returned.join(value);
+            return value;
+        }
+
+        if (node instanceof Break) {
+            // Loops already fail, so only a break in a switch is left. Anything else throws a BreakException.
+            if (((Break) node).doContinue || switchDepth == 0) {
+                mayFail = true;
+            }
+
+            return FALSE;
+        }
+
+        if (node instanceof CompiledNode) {
+            return analyze(((CompiledNode) node).getSource());
+        }
+
+        mayFail = true;
+        forgetAll();
+        return ALL;
+    }
+
+    /**
+     * Analyzes the children of a node that evaluates them in any order and any number of times.
+     * The variables they assign can have any value afterwards.
+     *
+     * @return the union of the children's ranges
+     */
+    private Range analyzeChildren(RValue node) {
+        final BitSet nodeAssigned = CommonSubexpressions.findAssignments(node);
+        if (nodeAssigned == null) {
+            forgetAll();
+        }
+        else {
+            forget(nodeAssigned);
+        }
+
+        final Range[] before = state;
+
+        Range ret = null;
+        for (RValue child : CommonSubexpressions.getChildren(node)) {
+            state = before.clone();
+            final Range childRange = analyze(child);
+            ret = ret == null ? childRange : ret.join(childRange);
+        }
+
+        state = before;
+        return ret == null ? FALSE : ret;
+    }
+
+    private Range analyzeOperation(Operation operation) {
+        final RValue[] operands = operation.getOperands();
+
+        if (operation instanceof Operators.Ass) {
+            final Range value = analyze(operands[1]);
+            assign(operands[0], value);
+            return value;
+        }
+
+        if (operation instanceof Operators.And || operation instanceof Operators.Or) {
+            final boolean and = operation instanceof Operators.And;
+
+            final Range lhs = analyze(operands[0]);
+            if (and ? lhs.isFalse() : lhs.isTrue()) {
+                return and ? FALSE : TRUE;
+            }
+
+            // The right-hand side isn't always evaluated.
+            final Range[] before = state.clone();
+            final Range rhs = analyze(operands[1]);
+            join(before);
+
+            if (and) {
+                return lhs.isTrue() && rhs.isTrue() ? TRUE : rhs.isFalse() ? FALSE : BOOLEAN;
+            }
+
+            return lhs.isFalse() && rhs.isFalse() ? FALSE : rhs.isTrue() ? TRUE : BOOLEAN;
+        }
+
+        final Range[] ranges = new Range[operands.length];
+        for (int i = 0; i < operands.length; ++i) {
+            ranges[i] = analyze(operands[i]);
+        }
+
+        if (operation instanceof Operators.Aadd) {
+            return assign(operands[0], add(ranges[0], ranges[1]));
+        }
+
+        if (operation instanceof Operators.Asub) {
+            return assign(operands[0], add(ranges[0], ranges[1].negate()));
+        }
+
+        if (operation instanceof Operators.Amul) {
+            return assign(operands[0], multiply(ranges[0], ranges[1]));
+        }
+
+        if (operation instanceof Operators.Adiv) {
+            return assign(operands[0], divide(ranges[0], ranges[1]));
+        }
+
+        if (operation instanceof Operators.Amod) {
+            return assign(operands[0], modulo(ranges[0], ranges[1]));
+        }
+
+        if (operation instanceof Operators.Inc) {
+            return assign(operands[0], add(ranges[0], TRUE));
+        }
+
+        if (operation instanceof Operators.Dec) {
+            return assign(operands[0], add(ranges[0], TRUE.negate()));
+        }
+
+        if (operation instanceof Operators.PostInc) {
+            assign(operands[0], add(ranges[0], TRUE));
+            return ranges[0];
+        }
+
+        if (operation instanceof Operators.PostDec) {
+            assign(operands[0], add(ranges[0], TRUE.negate()));
+            return ranges[0];
+        }
+
+        for (int i = 0; i < operands.length; ++i) {
+            if (operation.isLValue(i)) {
+                assign(operands[i], ALL);
+            }
+        }
+
+        return evaluate(operation, ranges);
+    }
+
+    /**
+     * @return the range of the given operation without side effects on variables
+     */
+    private static Range evaluate(Operation operation, Range[] ranges) {
+        if (operation instanceof Operators.Add) {
+            return add(ranges[0], ranges[1]);
+        }
+
+        if (operation instanceof Operators.Sub) {
+            return add(ranges[0], ranges[1].negate());
+        }
+
+        if (operation instanceof Operators.Mul) {
+            return multiply(ranges[0], ranges[1]);
+        }
+
+        if (operation instanceof Operators.Div) {
+            return divide(ranges[0], ranges[1]);
+        }
+
+        if (operation instanceof Operators.Mod) {
+            return modulo(ranges[0], ranges[1]);
+        }
+
+        if (operation instanceof Operators.Neg) {
+            return ranges[0].negate();
+        }
+
+        if (operation instanceof Operators.Lth) {
+            return less(ranges[0], ranges[1], false);
+        }
+
+        if (operation instanceof Operators.Gth) {
+            return less(ranges[1], ranges[0], false);
+        }
+
+        if (operation instanceof Operators.Leq) {
+            return less(ranges[0], ranges[1], true);
+        }
+
+        if (operation instanceof Operators.Geq) {
+            return less(ranges[1], ranges[0], true);
+        }
+
+        if (operation instanceof Operators.Equ) {
+            return equal(ranges[0], ranges[1]);
+        }
+
+        if (operation instanceof Operators.Neq) {
+            return equal(ranges[0], ranges[1]).not();
+        }
+
+        if (operation instanceof Operators.Near) {
+            return BOOLEAN;
+        }
+
+        if (operation instanceof Operators.Not) {
+            return ranges[0].not();
+        }
+
+        if (operation instanceof Functions.Sin || operation instanceof Functions.Cos) {
+            return unit(ranges[0]);
+        }
+
+        if (operation instanceof Functions.Tanh) {
+            return increasing(ranges[0], Math.tanh(ranges[0].min), Math.tanh(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Atan) {
+            return increasing(ranges[0], Math.atan(ranges[0].min), Math.atan(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Sinh) {
+            return increasing(ranges[0], Math.sinh(ranges[0].min), Math.sinh(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Cbrt) {
+            return increasing(ranges[0], Math.cbrt(ranges[0].min), Math.cbrt(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Exp) {
+            return increasing(ranges[0], Math.exp(ranges[0].min), Math.exp(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Floor) {
+            return increasing(ranges[0], Math.floor(ranges[0].min), Math.floor(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Ceil) {
+            return increasing(ranges[0], Math.ceil(ranges[0].min), Math.ceil(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Rint) {
+            return increasing(ranges[0], Math.rint(ranges[0].min), Math.rint(ranges[0].max));
+        }
+
+        if (operation instanceof Functions.Round) {
+            // round(NaN) is 0
+            return rounded(increasing(ranges[0], Math.round(ranges[0].min), Math.round(ranges[0].max)), ranges[0]);
+        }
+
+        if (operation instanceof Functions.Sign) {
+            // sign(NaN) is 0
+            return rounded(increasing(ranges[0], Math.signum(ranges[0].min), Math.signum(ranges[0].max)), ranges[0]);
+        }
+
+        if (operation instanceof Functions.Sqrt) {
+            final Range x = ranges[0].nonNegative();
+            return increasing(x, Math.sqrt(x.min), Math.sqrt(x.max));
+        }
+
+        if (operation instanceof Functions.Ln) {
+            final Range x = ranges[0].nonNegative();
+            return increasing(x, Math.log(x.min), Math.log(x.max));
+        }
+
+        if (operation instanceof Functions.Log) {
+            final Range x = ranges[0].nonNegative();
+            return increasing(x, Math.log(x.min), Math.log(x.max));
+        }
+
+        if (operation instanceof Functions.Log10) {
+            final Range x = ranges[0].nonNegative();
+            return increasing(x, Math.log10(x.min), Math.log10(x.max));
+        }
+
+        if (operation instanceof Functions.Abs) {
+            final Range x = ranges[0];
+            if (x.isEmpty() || x.min >= 0) {
+                return x;
+            }
+
+            if (x.max <= 0) {
+                return x.negate();
+            }
+
+            return Range.of(0.0, Math.max(-x.min, x.max), x.nan);
+        }
+
+        if (operation instanceof Functions.Cosh) {
+            final Range x = ranges[0];
+            if (x.min >= 0) {
+                return increasing(x, Math.cosh(x.min), Math.cosh(x.max));
+            }
+
+            final double max = Math.cosh(Math.max(-x.min, x.max));
+            return increasing(x, x.max <= 0 ? Math.cosh(x.max) : 1.0, max);
+        }
+
+        if (operation instanceof Functions.Min) {
+            return minimum(ranges[0], ranges[1]);
+        }
+
+        if (operation instanceof Functions.Min3) {
+            return minimum(minimum(ranges[0], ranges[1]), ranges[2]);
+        }
+
+        if (operation instanceof Functions.Max) {
+            return minimum(ranges[0].negate(), ranges[1].negate()).negate();
+        }
+
+        if (operation instanceof Functions.Max3) {
+            return minimum(minimum(ranges[0].negate(), ranges[1].negate()), ranges[2].negate()).negate();
+        }
+
+        if (operation instanceof Functions.Asin || operation instanceof Functions.Atan2) {
+            final double max = operation instanceof Functions.Asin ? Math.PI / 2 : Math.PI;
+            return Range.of(-max, max, true);
+        }
+
+        if (operation instanceof Functions.Acos) {
+            return Range.of(0.0, Math.PI, true);
+        }
+
+        if (operation instanceof Functions.Rect || operation instanceof Functions.Triangle || operation instanceof Functions.WhiteNoise) {
+            return UNIT;
+        }
+
+        if (operation instanceof Functions.Sine || operation instanceof Functions.Sawtooth) {
+            // The phase might become infinite.
+            return Range.of(-1.0, 1.0, true);
+        }
+
+        if (operation instanceof Functions.RandomValue) {
+            return Range.of(0.0, 1.0, false);
+        }
+
+        if (operation instanceof Functions.Rotate || operation instanceof Functions.Swap) {
+            return FALSE;
+        }
+
+        return ALL;
+    }
+
+    private Range read(Variable variable) {
+        final int slot = variable.slot;
+        if (slot < state.length && state[slot] != null) {
+            return state[slot];
+        }
+
+        return getInitial(slot);
+    }
+
+    /**
+     * @return the range of the given variable at the start of an evaluation
+     */
+    private Range getInitial(int slot) {
+        if (time != null && slot == time.slot) {
+            return timeRange;
+        }
+
+        if (frame == null || slot >= frame.values.length || assigned == null || assigned.get(slot)) {
+            // Left behind by the previous evaluation
+            return ALL;
+        }
+
+        return Range.point(frame.values[slot]);
+    }
+
+    /**
+     * @return the given range
+     */
+    private Range assign(RValue lvalue, Range value) {
+        if (lvalue instanceof Variable) {
+            write((Variable) lvalue, value);
+        }
+        else {
+            analyze(lvalue);
+        }
+
+        return value;
+    }
+
+    private void write(Variable variable, Range value) {
+        if (variable.slot < state.length) {
+            state[variable.slot] = value;
+        }
+    }
+
+    private void forget(BitSet slots) {
+        for (int slot = slots.nextSetBit(0); slot >= 0 && slot < state.length; slot = slots.nextSetBit(slot + 1)) {
+            state[slot] = ALL;
+        }
+    }
+
+    private void forgetAll() {
+        Arrays.fill(state, ALL);
+    }
+
+    /**
+     * Makes the current state cover the given one as well, for code that ran on either of them.
+     */
+    private void join(Range[] other) {
+        for (int i = 0; i < state.length; ++i) {
+            if (state[i] == other[i]) {
+                continue;
+            }
+
+            // Variables assigned on one path only still have their initial value on the other one.
+            final Range range = state[i] == null ? getInitial(i) : state[i];
+            state[i] = range.join(other[i] == null ? getInitial(i) : other[i]);
+        }
+    }
+
+    private static Range add(Range a, Range b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return NAN;
+        }
+
+        // Adding infinities of different signs results in NaN.
+        final boolean nan = a.nan || b.nan || a.min == Double.NEGATIVE_INFINITY && b.max == Double.POSITIVE_INFINITY
+                || a.max == Double.POSITIVE_INFINITY && b.min == Double.NEGATIVE_INFINITY;
+
+        return Range.of(a.min + b.min, a.max + b.max, nan);
+    }
+
+    private static Range multiply(Range a, Range b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return NAN;
+        }
+
+        // 0 * Infinity is NaN, even if the 0 isn't one of the bounds the corners are made of.
+        final boolean nan = a.nan || b.nan || a.containsZero() && b.isUnbounded() || b.containsZero() && a.isUnbounded();
+
+        return corners(a.min * b.min, a.min * b.max, a.max * b.min, a.max * b.max, nan);
+    }
+
+    private static Range divide(Range a, Range b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return NAN;
+        }
+
+        if (b.min <= 0 && b.max >= 0) {
+            return ALL;
+        }
+
+        return corners(a.min / b.min, a.min / b.max, a.max / b.min, a.max / b.max, a.nan || b.nan);
+    }
+
+    /**
+     * @return the range between the smallest and the largest value or {@link #ALL} if one of them is NaN
+     */
+    private static Range corners(double v1, double v2, double v3, double v4, boolean nan) {
+        if (Double.isNaN(v1) || Double.isNaN(v2) || Double.isNaN(v3) || Double.isNaN(v4)) {
+            return ALL;
+        }
+
+        return Range.of(Math.min(Math.min(v1, v2), Math.min(v3, v4)), Math.max(Math.max(v1, v2), Math.max(v3, v4)), nan);
+    }
+
+    /**
+     * The result of x % y has the sign of x and is smaller than both |x| and |y|.
+     */
+    private static Range modulo(Range a, Range b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return NAN;
+        }
+
+        final boolean nan = a.nan || b.nan || Double.isInfinite(a.min) || Double.isInfinite(a.max) || b.min <= 0 && b.max >= 0;
+        final double bound = Math.min(Math.max(-a.min, a.max), Math.max(-b.min, b.max));
+
+        return Range.of(a.min < 0 ? -bound : 0.0, a.max > 0 ? bound : 0.0, nan);
+    }
+
+    /**
+     * Comparisons involving NaN are false.
+     */
+    private static Range less(Range a, Range b, boolean orEqual) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return FALSE;
+        }
+
+        final boolean nan = a.nan || b.nan;
+        if (!nan && (orEqual ? a.max <= b.min : a.max < b.min)) {
+            return TRUE;
+        }
+
+        if (orEqual ? a.min > b.max : a.min >= b.max) {
+            return FALSE;
+        }
+
+        return BOOLEAN;
+    }
+
+    private static Range equal(Range a, Range b) {
+        if (a.isEmpty() || b.isEmpty() || a.min > b.max || b.min > a.max) {
+            return FALSE;
+        }
+
+        if (!a.nan && !b.nan && a.min == a.max && b.min == b.max) {
+            return TRUE;
+        }
+
+        return BOOLEAN;
+    }
+
+    private static Range minimum(Range a, Range b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return NAN;
+        }
+
+        return Range.of(Math.min(a.min, b.min), Math.min(a.max, b.max), a.nan || b.nan);
+    }
+
+    /**
+     * sin and cos return NaN for infinite arguments.
+     */
+    private static Range unit(Range x) {
+        if (x.isEmpty()) {
+            return NAN;
+        }
+
+        return Range.of(-1.0, 1.0, x.nan || Double.isInfinite(x.min) || Double.isInfinite(x.max));
+    }
+
+    /**
+     * @return the range of a monotonically increasing function, given its values at the bounds of the argument
+     */
+    private static Range increasing(Range x, double min, double max) {
+        if (x.isEmpty()) {
+            return x;
+        }
+
+        return Range.of(min, max, x.nan);
+    }
+
+    /**
+     * Adds the 0 returned for NaN arguments.
+     */
+    private static Range rounded(Range range, Range x) {
+        if (!x.nan) {
+            return range;
+        }
+
+        return (range.isEmpty() ? FALSE : Range.of(Math.min(range.min, 0.0), Math.max(range.max, 0.0), false));
+    }
+
+    /**
+     * An interval of doubles and whether the value might be NaN.
+     * An interval with min > max is empty.
+     */
+    private static final class Range {
+        final double min;
+        final double max;
+        final boolean nan;
+
+        Range(double min, double max, boolean nan) {
+            this.min = min;
+            this.max = max;
+            this.nan = nan;
+        }
+
+        static Range point(double value) {
+            return Double.isNaN(value) ? NAN : new Range(value, value, false);
+        }
+
+        /**
+         * NaN bounds are replaced by infinities.
+         */
+        static Range of(double min, double max, boolean nan) {
+            if (Double.isNaN(min)) {
+                min = Double.NEGATIVE_INFINITY;
+                nan = true;
+            }
+
+            if (Double.isNaN(max)) {
+                max = Double.POSITIVE_INFINITY;
+                nan = true;
+            }
+
+            return new Range(min, max, nan);
+        }
+
+        boolean isEmpty() {
+            return min > max;
+        }
+
+        /**
+         * @return true if 0 lies between the bounds or one of the bounds is NaN
+         */
+        boolean containsZero() {
+            return !(min > 0.0) && !(max < 0.0);
+        }
+
+        /**
+         * @return true if one of the bounds is infinite or NaN
+         */
+        boolean isUnbounded() {
+            return !(min > Double.NEGATIVE_INFINITY && max < Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * @return true if all values are treated as true by conditions
+         */
+        boolean isTrue() {
+            return !nan && !isEmpty() && min > 0.0;
+        }
+
+        /**
+         * @return true if all values, including NaN, are treated as false by conditions
+         */
+        boolean isFalse() {
+            return max <= 0.0;
+        }
+
+        Range negate() {
+            return isEmpty() ? this : new Range(-max, -min, nan);
+        }
+
+        Range not() {
+            return isTrue() ? FALSE : isFalse() ? TRUE : BOOLEAN;
+        }
+
+        /**
+         * @return the range without negative numbers, which are NaN for functions like sqrt
+         */
+        Range nonNegative() {
+            if (min >= 0.0 || isEmpty()) {
+                return this;
+            }
+
+            return new Range(Math.max(min, -0.0), max, true);
+        }
+
+        Range join(Range other) {
+            return new Range(Math.min(min, other.min), Math.max(max, other.max), nan || other.nan);
+        }
+    }
+}
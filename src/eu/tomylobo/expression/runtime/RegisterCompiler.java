@@ -0,0 +1,936 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles an optimized expression tree into a {@link RegisterProgram}.
+ *
+ * This doesn't need to generate classes at runtime, so it works where {@link BytecodeCompiler} doesn't,
+ * and the program takes a lot less memory than the tree, while still avoiding most of its virtual calls.
+ * Nodes the compiler doesn't know about are kept and invoked through {@link RValue#getValue(Frame)}.
+ *
+ * Variables and constants are read from their registers directly, so they don't take any instructions.
+ * Every other node leaves its value in a register of its own, which is free again once the node using
+ * the value is done with it.
+ *
+ * @author TomyLobo
+ */
+public final class RegisterCompiler {
+    private static final Map<String, Integer> operatorOpcodes = new HashMap<String, Integer>();
+    private static final Map<String, Integer> unaryFunctionOpcodes = new HashMap<String, Integer>();
+    private static final Map<String, Integer> binaryFunctionOpcodes = new HashMap<String, Integer>();
+    private static final Map<String, Integer> oscillatorOpcodes = new HashMap<String, Integer>();
+
+    /**
+     * Maps comparison operators to { jump if true, jump if false }.
+     * The operands of gth and geq are swapped, so they can use the lth and leq jumps.
+     */
+    private static final Map<String, int[]> comparisons = new HashMap<String, int[]>();
+    static {
+        comparisons.put("lth", new int[] { RegisterProgram.JLT, RegisterProgram.JNLT });
+        comparisons.put("leq", new int[] { RegisterProgram.JLE, RegisterProgram.JNLE });
+        comparisons.put("gth", new int[] { RegisterProgram.JLT, RegisterProgram.JNLT });
+        comparisons.put("geq", new int[] { RegisterProgram.JLE, RegisterProgram.JNLE });
+        comparisons.put("equ", new int[] { RegisterProgram.JEQ, RegisterProgram.JNE });
+        comparisons.put("neq", new int[] { RegisterProgram.JNE, RegisterProgram.JEQ });
+
+        operatorOpcodes.put("add", RegisterProgram.ADD);
+        operatorOpcodes.put("sub", RegisterProgram.SUB);
+        operatorOpcodes.put("mul", RegisterProgram.MUL);
+        operatorOpcodes.put("div", RegisterProgram.DIV);
+        operatorOpcodes.put("mod", RegisterProgram.MOD);
+        operatorOpcodes.put("pow", RegisterProgram.POW);
+        operatorOpcodes.put("shl", RegisterProgram.SHL);
+        operatorOpcodes.put("shr", RegisterProgram.SHR);
+        operatorOpcodes.put("lth", RegisterProgram.LTH);
+        operatorOpcodes.put("leq", RegisterProgram.LEQ);
+        operatorOpcodes.put("gth", RegisterProgram.LTH);
+        operatorOpcodes.put("geq", RegisterProgram.LEQ);
+        operatorOpcodes.put("equ", RegisterProgram.EQU);
+        operatorOpcodes.put("neq", RegisterProgram.NEQ);
+
+        unaryFunctionOpcodes.put("sin", RegisterProgram.SIN);
+        unaryFunctionOpcodes.put("cos", RegisterProgram.COS);
+        unaryFunctionOpcodes.put("tan", RegisterProgram.TAN);
+        unaryFunctionOpcodes.put("asin", RegisterProgram.ASIN);
+        unaryFunctionOpcodes.put("acos", RegisterProgram.ACOS);
+        unaryFunctionOpcodes.put("atan", RegisterProgram.ATAN);
+        unaryFunctionOpcodes.put("sinh", RegisterProgram.SINH);
+        unaryFunctionOpcodes.put("cosh", RegisterProgram.COSH);
+        unaryFunctionOpcodes.put("tanh", RegisterProgram.TANH);
+        unaryFunctionOpcodes.put("sqrt", RegisterProgram.SQRT);
+        unaryFunctionOpcodes.put("cbrt", RegisterProgram.CBRT);
+        unaryFunctionOpcodes.put("abs", RegisterProgram.ABS);
+        unaryFunctionOpcodes.put("ceil", RegisterProgram.CEIL);
+        unaryFunctionOpcodes.put("floor", RegisterProgram.FLOOR);
+        unaryFunctionOpcodes.put("rint", RegisterProgram.RINT);
+        unaryFunctionOpcodes.put("round", RegisterProgram.ROUND);
+        unaryFunctionOpcodes.put("exp", RegisterProgram.EXP);
+        unaryFunctionOpcodes.put("ln", RegisterProgram.LN);
+        unaryFunctionOpcodes.put("log", RegisterProgram.LN);
+        unaryFunctionOpcodes.put("log10", RegisterProgram.LOG10);
+        unaryFunctionOpcodes.put("sign", RegisterProgram.SIGN);
+
+        binaryFunctionOpcodes.put("atan2", RegisterProgram.ATAN2);
+        binaryFunctionOpcodes.put("min", RegisterProgram.MIN);
+        binaryFunctionOpcodes.put("max", RegisterProgram.MAX);
+
+        oscillatorOpcodes.put("rect", RegisterProgram.RECT);
+        oscillatorOpcodes.put("triangle", RegisterProgram.TRIANGLE);
+        oscillatorOpcodes.put("sine", RegisterProgram.SINE);
+    }
+
+    /**
+     * A position in the program that jumps can refer to before it's known.
+     */
+    private static final class Label {
+        int address = -1;
+        final List<Integer> uses = new ArrayList<Integer>();
+    }
+
+    /**
+     * A construct that break or continue can jump out of.
+     */
+    private static final class JumpTarget {
+        final Label breakLabel;
+        final Label continueLabel;
+
+        JumpTarget(Label breakLabel, Label continueLabel) {
+            this.breakLabel = breakLabel;
+            this.continueLabel = continueLabel;
+        }
+    }
+
+    private final List<RValue> references = new ArrayList<RValue>();
+    private final LinkedList<JumpTarget> jumpTargets = new LinkedList<JumpTarget>();
+
+    /**
+     * The registers holding the constants, by the bits of their values.
+     */
+    private final Map<Long, Integer> constantRegisters = new HashMap<Long, Integer>();
+    private final List<Double> constants = new ArrayList<Double>();
+
+    private int[] code = new int[64];
+    private int length = 0;
+
+    private int variableCount = 0;
+    private int zero;
+    private int one;
+
+    /**
+     * The first free register and the number of registers used so far.
+     */
+    private int top;
+    private int registerCount;
+
+    private RegisterCompiler() {
+    }
+
+    /**
+     * Compiles the given tree.
+     *
+     * @param root the root of an optimized tree
+     * @return a {@link RegisterProgram} or the original tree, if it couldn't be compiled
+     */
+    public static RValue compile(RValue root) {
+        if (root instanceof Constant || root instanceof CompiledNode) {
+            return root;
+        }
+
+        try {
+            return new RegisterCompiler().compileRoot(root);
+        }
+        catch (IllegalStateException e) {
+            return root;
+        }
+    }
+
+    private RValue compileRoot(RValue root) {
+        // Variables go first, so their registers are their slots, followed by the constants.
+        findRegisters(root);
+        zero = addConstant(0.0);
+        one = addConstant(1.0);
+        findConstants(root);
+        top = registerCount = variableCount + constants.size();
+
+        emit(RegisterProgram.RET, compileNode(root));
+
+        final double[] registers = new double[registerCount];
+        for (int i = 0; i < constants.size(); ++i) {
+            registers[variableCount + i] = constants.get(i);
+        }
+
+        return new RegisterProgram(root.getPosition(), root, references.toArray(new RValue[references.size()]), Arrays.copyOf(code, length), registers, variableCount);
+    }
+
+    private void findRegisters(RValue node) {
+        if (node instanceof Variable) {
+            variableCount = Math.max(variableCount, ((Variable) node).slot + 1);
+        }
+
+        for (RValue child : CommonSubexpressions.getChildren(node)) {
+            findRegisters(child);
+        }
+    }
+
+    private void findConstants(RValue node) {
+        if (node instanceof Constant) {
+            addConstant(((Constant) node).getValue());
+        }
+        else if (node instanceof Switch) {
+            for (double value : ((Switch) node).values) {
+                addConstant(value);
+            }
+        }
+
+        for (RValue child : CommonSubexpressions.getChildren(node)) {
+            findConstants(child);
+        }
+    }
+
+    /**
+     * @return the register of the constant
+     */
+    private int addConstant(double value) {
+        final Long bits = Double.doubleToLongBits(value);
+        Integer register = constantRegisters.get(bits);
+        if (register == null) {
+            constantRegisters.put(bits, register = variableCount + constants.size());
+            constants.add(value);
+        }
+
+        return register;
+    }
+
+    private int getConstant(double value) {
+        final Integer register = constantRegisters.get(Double.doubleToLongBits(value));
+        if (register == null) {
+            throw new IllegalStateException("Constant " + value + " wasn't found in advance.");
+        }
+
+        return register;
+    }
+
+    /**
+     * @return the register the given node leaves its value in
+     */
+    private int compileNode(RValue node) {
+        if (node instanceof Constant) {
+            return getConstant(((Constant) node).getValue());
+        }
+
+        if (node instanceof Variable) {
+            return ((Variable) node).slot;
+        }
+
+        if (node instanceof Operation) {
+            return compileOperation((Operation) node);
+        }
+
+        if (node instanceof Sequence) {
+            return compileSequence((Sequence) node);
+        }
+
+        if (node instanceof Conditional) {
+            return compileConditional((Conditional) node);
+        }
+
+        if (node instanceof While) {
+            return compileWhile((While) node);
+        }
+
+        if (node instanceof For) {
+            return compileFor((For) node);
+        }
+
+        if (node instanceof SimpleFor) {
+            return compileSimpleFor((SimpleFor) node);
+        }
+
+        if (node instanceof Switch) {
+            return compileSwitch((Switch) node);
+        }
+
+        if (node instanceof Break) {
+            return compileBreak((Break) node);
+        }
+
+        if (node instanceof Return) {
+            final int value = compileNode(((Return) node).value);
+            emit(RegisterProgram.RET, value);
+            return value;
+        }
+
+        return invokeReference(node);
+    }
+
+    private int compileOperation(Operation operation) {
+        final Class<?> owner = operation.getClass().getEnclosingClass();
+        final String name = operation.getName();
+        final RValue[] args = operation.getOperands();
+
+        if (owner == Operators.class) {
+            final int ret = compileOperator(operation, name, args);
+            if (ret != -1) {
+                return ret;
+            }
+        }
+        else if (owner == Functions.class) {
+            final int ret = compileBuiltin(name, args);
+            if (ret != -1) {
+                return ret;
+            }
+        }
+
+        return invokeReference(operation);
+    }
+
+    /**
+     * @return the register holding the result or -1 if the operator isn't supported
+     */
+    private int compileOperator(Operation operation, String name, RValue[] args) {
+        if (args.length == 1) {
+            final RValue x = args[0];
+
+            if (name.equals("neg")) {
+                return compileUnary(RegisterProgram.NEG, x);
+            }
+
+            if (name.equals("inv")) {
+                return compileUnary(RegisterProgram.INV, x);
+            }
+
+            if (name.equals("not")) {
+                return compileUnary(RegisterProgram.NOT, x);
+            }
+
+            if (!(x instanceof Variable)) {
+                return -1;
+            }
+
+            final int slot = ((Variable) x).slot;
+
+            if (name.equals("inc") || name.equals("dec")) {
+                emit(name.equals("inc") ? RegisterProgram.ADD : RegisterProgram.SUB, slot, slot, one);
+                return slot;
+            }
+
+            if (name.equals("postinc") || name.equals("postdec")) {
+                final int old = newRegister();
+                emit(RegisterProgram.MOV, old, slot);
+                emit(name.equals("postinc") ? RegisterProgram.ADD : RegisterProgram.SUB, slot, slot, one);
+                return old;
+            }
+
+            return -1;
+        }
+
+        if (args.length != 2) {
+            return -1;
+        }
+
+        final RValue lhs = args[0];
+        final RValue rhs = args[1];
+
+        final Integer opcode = operatorOpcodes.get(name);
+        if (opcode != null) {
+            return compileBinary(opcode, lhs, rhs, name.equals("gth") || name.equals("geq"));
+        }
+
+        if (name.equals("and") || name.equals("or")) {
+            return compileBoolean(operation);
+        }
+
+        if (name.startsWith("a") && lhs instanceof Variable) {
+            final int slot = ((Variable) lhs).slot;
+            final String operator = name.substring(1);
+            if (operator.equals("ss")) {
+                move(slot, compileNode(rhs));
+                return slot;
+            }
+
+            final Integer compoundOpcode = operatorOpcodes.get(operator.equals("exp") ? "pow" : operator);
+            if (compoundOpcode == null) {
+                return -1;
+            }
+
+            // The variable is read before the right-hand side is evaluated.
+            final int mark = top;
+            int old = slot;
+            if (assigns(rhs, slot)) {
+                old = newRegister();
+                emit(RegisterProgram.MOV, old, slot);
+            }
+
+            emit(compoundOpcode, slot, old, compileNode(rhs));
+            top = mark;
+            return slot;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the register holding the result or -1 if the function isn't supported
+     */
+    private int compileBuiltin(String name, RValue[] args) {
+        switch (args.length) {
+        case 1: {
+            final Integer opcode = unaryFunctionOpcodes.get(name);
+            if (opcode == null) {
+                return -1;
+            }
+
+            return compileUnary(opcode, args[0]);
+        }
+
+        case 2: {
+            final Integer opcode = binaryFunctionOpcodes.get(name);
+            if (opcode != null) {
+                return compileBinary(opcode, args[0], args[1], false);
+            }
+
+            if (!(args[0] instanceof Variable)) {
+                return -1;
+            }
+
+            final int state = ((Variable) args[0]).slot;
+            if (assigns(args[1], state)) {
+                // The state is read before the frequency is evaluated.
+                return -1;
+            }
+
+            if (name.equals("_integrate")) {
+                compileIntegrate(state, args[1]);
+                return state;
+            }
+
+            if (name.equals("sawtooth")) {
+                compileIntegrate(state, args[1]);
+                final int ret = newRegister();
+                emit(RegisterProgram.MOD, ret, state, one);
+                return ret;
+            }
+
+            final Integer oscillatorOpcode = oscillatorOpcodes.get(name);
+            if (oscillatorOpcode != null) {
+                compileIntegrate(state, args[1]);
+                final int ret = newRegister();
+                emit(oscillatorOpcode, ret, state);
+                return ret;
+            }
+
+            return -1;
+        }
+
+        case 3: {
+            final Integer opcode = binaryFunctionOpcodes.get(name);
+            if (opcode == null || name.equals("atan2")) {
+                return -1;
+            }
+
+            // op(a, op(b, c))
+            final int[] operands = compileOperands(args);
+            final int ret = newRegister();
+            emit(opcode, ret, operands[1], operands[2]);
+            emit(opcode, ret, operands[0], ret);
+            return ret;
+        }
+
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * state = state % 1 + frequency / SAMPLE_RATE
+     */
+    private void compileIntegrate(int state, RValue frequency) {
+        final int mark = top;
+        emit(RegisterProgram.INTEGRATE, state, compileNode(frequency));
+        top = mark;
+    }
+
+    private int compileUnary(int opcode, RValue x) {
+        final int mark = top;
+        final int operand = compileNode(x);
+        top = mark;
+
+        final int ret = newRegister();
+        emit(opcode, ret, operand);
+        return ret;
+    }
+
+    /**
+     * @param swap Whether to pass the operands to the instruction in reverse order
+     */
+    private int compileBinary(int opcode, RValue lhs, RValue rhs, boolean swap) {
+        final int mark = top;
+        final int[] operands = compileOperands(new RValue[] { lhs, rhs });
+        top = mark;
+
+        // The instruction reads its operands before writing the result, so it can reuse their registers.
+        final int ret = newRegister();
+        if (swap) {
+            emit(opcode, ret, operands[1], operands[0]);
+        }
+        else {
+            emit(opcode, ret, operands[0], operands[1]);
+        }
+        return ret;
+    }
+
+    /**
+     * Evaluates the operands in order.
+     * Variables read by an operand are copied if a later operand might assign them.
+     *
+     * @return the registers holding the values of the operands
+     */
+    private int[] compileOperands(RValue[] operands) {
+        final int[] ret = new int[operands.length];
+        for (int i = 0; i < operands.length; ++i) {
+            ret[i] = compileNode(operands[i]);
+
+            if (ret[i] < variableCount) {
+                for (int j = i + 1; j < operands.length; ++j) {
+                    if (assigns(operands[j], ret[i])) {
+                        final int copy = newRegister();
+                        emit(RegisterProgram.MOV, copy, ret[i]);
+                        ret[i] = copy;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return true if the subtree might assign the variable in the given slot
+     */
+    private static boolean assigns(RValue node, int slot) {
+        final BitSet assigned = CommonSubexpressions.findAssignments(node);
+        return assigned == null || assigned.get(slot);
+    }
+
+    /**
+     * Stores 1.0 in a register if the condition holds and 0.0 otherwise.
+     */
+    private int compileBoolean(RValue condition) {
+        final Label falseLabel = new Label();
+        final Label end = new Label();
+
+        compileBranch(condition, false, falseLabel);
+
+        final int ret = newRegister();
+        emit(RegisterProgram.MOV, ret, one);
+        emitJump(end);
+
+        place(falseLabel);
+        emit(RegisterProgram.MOV, ret, zero);
+
+        place(end);
+        return ret;
+    }
+
+    /**
+     * Emits code that jumps to the given label if the condition is (or isn't) true.
+     * Comparisons and logical operators are compiled into branches directly.
+     *
+     * @param condition The condition to test
+     * @param jumpIfTrue Whether to jump if the condition holds or if it doesn't
+     * @param target The label to jump to
+     */
+    private void compileBranch(RValue condition, boolean jumpIfTrue, Label target) {
+        final String name = operatorName(condition);
+        if (name != null) {
+            final RValue[] args = ((Operation) condition).getOperands();
+
+            final int[] comparison = comparisons.get(name);
+            if (comparison != null && args.length == 2) {
+                final int mark = top;
+                final int[] operands = compileOperands(args);
+                top = mark;
+
+                final boolean swap = name.equals("gth") || name.equals("geq");
+                emit(jumpIfTrue ? comparison[0] : comparison[1], operands[swap ? 1 : 0], operands[swap ? 0 : 1]);
+                emitLabel(target);
+                return;
+            }
+
+            if (name.equals("not") && args.length == 1) {
+                compileBranch(args[0], !jumpIfTrue, target);
+                return;
+            }
+
+            if (name.equals("and") && args.length == 2) {
+                if (jumpIfTrue) {
+                    final Label skip = new Label();
+                    compileBranch(args[0], false, skip);
+                    compileBranch(args[1], true, target);
+                    place(skip);
+                }
+                else {
+                    compileBranch(args[0], false, target);
+                    compileBranch(args[1], false, target);
+                }
+                return;
+            }
+
+            if (name.equals("or") && args.length == 2) {
+                if (jumpIfTrue) {
+                    compileBranch(args[0], true, target);
+                    compileBranch(args[1], true, target);
+                }
+                else {
+                    final Label skip = new Label();
+                    compileBranch(args[0], true, skip);
+                    compileBranch(args[1], false, target);
+                    place(skip);
+                }
+                return;
+            }
+        }
+
+        final int mark = top;
+        emit(jumpIfTrue ? RegisterProgram.JT : RegisterProgram.JF, compileNode(condition));
+        emitLabel(target);
+        top = mark;
+    }
+
+    /**
+     * @return the name of the operator, if the node is an operator, null otherwise
+     */
+    private static String operatorName(RValue node) {
+        if (!(node instanceof Operation) || node.getClass().getEnclosingClass() != Operators.class) {
+            return null;
+        }
+
+        return ((Operation) node).getName();
+    }
+
+    private int compileSequence(Sequence sequence) {
+        final int mark = top;
+
+        int ret = zero;
+        for (RValue statement : sequence.sequence) {
+            top = mark;
+            ret = compileNode(statement);
+        }
+
+        return ret;
+    }
+
+    private int compileConditional(Conditional conditional) {
+        final Label falseLabel = new Label();
+        final Label end = new Label();
+
+        compileBranch(conditional.condition, false, falseLabel);
+
+        final int ret = newRegister();
+        move(ret, compileNode(conditional.truePart));
+        top = ret + 1;
+        emitJump(end);
+
+        place(falseLabel);
+        move(ret, conditional.falsePart == null ? zero : compileNode(conditional.falsePart));
+        top = ret + 1;
+
+        place(end);
+        return ret;
+    }
+
+    private int compileWhile(While loop) {
+        final int ret = newRegister();
+        final int iterations = newRegister();
+        final Label start = new Label();
+        final Label next = new Label();
+        final Label end = new Label();
+
+        emit(RegisterProgram.MOV, ret, zero);
+        emit(RegisterProgram.MOV, iterations, zero);
+
+        if (loop.footChecked) {
+            place(start);
+            compileLoopBody(loop.getPosition(), loop.body, ret, iterations, end, next);
+
+            place(next);
+            compileBranch(loop.condition, true, start);
+        }
+        else {
+            place(next);
+            compileBranch(loop.condition, false, end);
+            compileLoopBody(loop.getPosition(), loop.body, ret, iterations, end, next);
+            emitJump(next);
+        }
+
+        place(end);
+        top = ret + 1;
+        return ret;
+    }
+
+    private int compileFor(For loop) {
+        final int ret = newRegister();
+        final int iterations = newRegister();
+        final Label condition = new Label();
+        final Label next = new Label();
+        final Label end = new Label();
+
+        emit(RegisterProgram.MOV, ret, zero);
+        emit(RegisterProgram.MOV, iterations, zero);
+
+        compileNode(loop.init);
+        top = iterations + 1;
+
+        place(condition);
+        compileBranch(loop.condition, false, end);
+        compileLoopBody(loop.getPosition(), loop.body, ret, iterations, end, next);
+
+        place(next);
+        compileNode(loop.increment);
+        top = iterations + 1;
+        emitJump(condition);
+
+        place(end);
+        top = ret + 1;
+        return ret;
+    }
+
+    private int compileSimpleFor(SimpleFor loop) {
+        if (!(loop.counter instanceof Variable)) {
+            return invokeReference(loop);
+        }
+
+        final int ret = newRegister();
+        final int iterations = newRegister();
+        final int counter = newRegister();
+        final int last = newRegister();
+        final Label condition = new Label();
+        final Label next = new Label();
+        final Label end = new Label();
+
+        emit(RegisterProgram.MOV, ret, zero);
+        emit(RegisterProgram.MOV, iterations, zero);
+
+        move(counter, compileNode(loop.first));
+        top = last + 1;
+        move(last, compileNode(loop.last));
+        top = last + 1;
+
+        // while (counter <= last)
+        place(condition);
+        emit(RegisterProgram.JNLE, counter, last);
+        emitLabel(end);
+
+        compileLoopBody(loop.getPosition(), loop.body, ret, iterations, ((Variable) loop.counter).slot, counter, end, next);
+
+        place(next);
+        emit(RegisterProgram.ADD, counter, counter, one);
+        emitJump(condition);
+
+        place(end);
+        top = ret + 1;
+        return ret;
+    }
+
+    private void compileLoopBody(int position, RValue body, int ret, int iterations, Label breakLabel, Label continueLabel) {
+        compileLoopBody(position, body, ret, iterations, -1, -1, breakLabel, continueLabel);
+    }
+
+    /**
+     * Emits the iteration limit check and the loop body, storing the body's value in the given register.
+     *
+     * @param counter The slot of the counter of a simple for loop or -1
+     * @param counterValue The register holding the value to assign to the counter
+     */
+    private void compileLoopBody(int position, RValue body, int ret, int iterations, int counter, int counterValue, Label breakLabel, Label continueLabel) {
+        final int mark = top;
+
+        emit(RegisterProgram.ITER, iterations, position);
+        if (counter != -1) {
+            emit(RegisterProgram.MOV, counter, counterValue);
+        }
+
+        jumpTargets.addFirst(new JumpTarget(breakLabel, continueLabel));
+        move(ret, compileNode(body));
+        jumpTargets.removeFirst();
+
+        top = mark;
+    }
+
+    private int compileSwitch(Switch switchNode) {
+        final RValue[] caseStatements = switchNode.caseStatements;
+        final Label[] caseLabels = new Label[caseStatements.length];
+        final Label afterCases = new Label();
+        final Label breakLabel = new Label();
+        final Label end = new Label();
+
+        for (int i = 0; i < caseLabels.length; ++i) {
+            caseLabels[i] = new Label();
+        }
+
+        final int ret = newRegister();
+        emit(RegisterProgram.MOV, ret, zero);
+
+        final int parameter = compileNode(switchNode.parameter);
+        if (switchNode.table != null) {
+            emit(RegisterProgram.TABLE, parameter, switchNode.tableStart, switchNode.table.length);
+            emitLabel(afterCases);
+            for (int target : switchNode.table) {
+                emitLabel(getCaseLabel(caseLabels, target, afterCases));
+            }
+        }
+        else {
+            for (int i = 0; i < switchNode.values.length; ++i) {
+                emit(RegisterProgram.JEQ, parameter, getConstant(switchNode.values[i]));
+                emitLabel(getCaseLabel(caseLabels, switchNode.targets[i], afterCases));
+            }
+            emitJump(afterCases);
+        }
+        top = ret + 1;
+
+        // break leaves the switch, continue goes to the enclosing loop.
+        jumpTargets.addFirst(new JumpTarget(breakLabel, null));
+        for (int i = 0; i < caseStatements.length; ++i) {
+            place(caseLabels[i]);
+            move(ret, compileNode(caseStatements[i]));
+            top = ret + 1;
+        }
+
+        place(afterCases);
+        if (switchNode.defaultCase != null) {
+            move(ret, compileNode(switchNode.defaultCase));
+            top = ret + 1;
+        }
+        jumpTargets.removeFirst();
+        emitJump(end);
+
+        place(breakLabel);
+        emit(RegisterProgram.MOV, ret, zero);
+
+        place(end);
+        return ret;
+    }
+
+    /**
+     * @param target The index of a case statement, the number of case statements or -1
+     * @return the label of the case statement or afterCases if there is none
+     */
+    private static Label getCaseLabel(Label[] caseLabels, int target, Label afterCases) {
+        return target >= 0 && target < caseLabels.length ? caseLabels[target] : afterCases;
+    }
+
+    private int compileBreak(Break breakNode) {
+        for (JumpTarget target : jumpTargets) {
+            final Label label = breakNode.doContinue ? target.continueLabel : target.breakLabel;
+            if (label == null) {
+                continue;
+            }
+
+            emitJump(label);
+            return zero;
+        }
+
+        // Not inside a loop, so do what the interpreter does.
+        emit(RegisterProgram.BREAK, breakNode.doContinue ? 1 : 0);
+        return zero;
+    }
+
+    private int invokeReference(RValue node) {
+        final int index = references.size();
+        references.add(node);
+
+        // Nodes invoked through the interpreter signal break and continue with exceptions.
+        Label breakLabel = null;
+        Label continueLabel = null;
+        for (JumpTarget target : jumpTargets) {
+            if (breakLabel == null) {
+                breakLabel = target.breakLabel;
+            }
+            if (continueLabel == null) {
+                continueLabel = target.continueLabel;
+            }
+        }
+
+        final int ret = newRegister();
+        emit(RegisterProgram.CALL, ret, index);
+        emitLabelOrNone(breakLabel);
+        emitLabelOrNone(continueLabel);
+        return ret;
+    }
+
+    private int newRegister() {
+        final int ret = top++;
+        registerCount = Math.max(registerCount, top);
+        return ret;
+    }
+
+    private void move(int target, int source) {
+        if (target != source) {
+            emit(RegisterProgram.MOV, target, source);
+        }
+    }
+
+    private void emit(int... words) {
+        if (length + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + words.length));
+        }
+
+        System.arraycopy(words, 0, code, length, words.length);
+        length += words.length;
+    }
+
+    private void emitJump(Label target) {
+        emit(RegisterProgram.JMP);
+        emitLabel(target);
+    }
+
+    private void emitLabel(Label label) {
+        if (label.address == -1) {
+            label.uses.add(length);
+        }
+        emit(label.address);
+    }
+
+    private void emitLabelOrNone(Label label) {
+        if (label == null) {
+            emit(-1);
+        }
+        else {
+            emitLabel(label);
+        }
+    }
+
+    private void place(Label label) {
+        label.address = length;
+        for (int use : label.uses) {
+            code[use] = length;
+        }
+        label.uses.clear();
+    }
+}
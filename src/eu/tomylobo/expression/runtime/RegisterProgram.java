@@ -0,0 +1,478 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import eu.tomylobo.ccnoise.common.TileEntitySpeaker;
+
+/**
+ * A program for a register machine, generated by {@link RegisterCompiler}.
+ *
+ * The program is a flat array of instructions, each an opcode followed by its operands,
+ * most of which are indexes into a register file of doubles. The register file starts with
+ * the variables, followed by the constants and the intermediate results.
+ * The variables are copied from the frame before running the program and copied back afterwards,
+ * as well as around the nodes that are evaluated through {@link RValue#getValue(Frame)}.
+ *
+ * @author TomyLobo
+ */
+public final class RegisterProgram extends CompiledNode {
+    // a = b op c
+    static final int ADD = 0;
+    static final int SUB = 1;
+    static final int MUL = 2;
+    static final int DIV = 3;
+    static final int MOD = 4;
+    static final int POW = 5;
+    static final int SHL = 6;
+    static final int SHR = 7;
+    static final int LTH = 8;
+    static final int LEQ = 9;
+    static final int EQU = 10;
+    static final int NEQ = 11;
+    static final int ATAN2 = 12;
+    static final int MIN = 13;
+    static final int MAX = 14;
+
+    // a = op b
+    static final int MOV = 15;
+    static final int NEG = 16;
+    static final int NOT = 17;
+    static final int INV = 18;
+    static final int SIN = 19;
+    static final int COS = 20;
+    static final int TAN = 21;
+    static final int ASIN = 22;
+    static final int ACOS = 23;
+    static final int ATAN = 24;
+    static final int SINH = 25;
+    static final int COSH = 26;
+    static final int TANH = 27;
+    static final int SQRT = 28;
+    static final int CBRT = 29;
+    static final int ABS = 30;
+    static final int CEIL = 31;
+    static final int FLOOR = 32;
+    static final int RINT = 33;
+    static final int ROUND = 34;
+    static final int EXP = 35;
+    static final int LN = 36;
+    static final int LOG10 = 37;
+    static final int SIGN = 38;
+    static final int RECT = 39;
+    static final int TRIANGLE = 40;
+    static final int SINE = 41;
+
+    // state, frequency
+    static final int INTEGRATE = 42;
+
+    // target
+    static final int JMP = 43;
+    // a, target
+    static final int JT = 44;
+    static final int JF = 45;
+    // a, b, target
+    static final int JLT = 46;
+    static final int JNLT = 47;
+    static final int JLE = 48;
+    static final int JNLE = 49;
+    static final int JEQ = 50;
+    static final int JNE = 51;
+    // parameter, first value, table length, default target, targets
+    static final int TABLE = 52;
+
+    // iterations, position
+    static final int ITER = 53;
+    // result, reference, break target, continue target
+    static final int CALL = 54;
+    // value
+    static final int RET = 55;
+    // doContinue
+    static final int BREAK = 56;
+
+    private final int[] code;
+    private final double[] registers;
+    private final int variableCount;
+
+    /**
+     * @param registers The initial contents of the register file
+     * @param variableCount The number of registers that hold variables
+     */
+    RegisterProgram(int position, RValue source, RValue[] references, int[] code, double[] registers, int variableCount) {
+        super(position, source, references);
+
+        this.code = code;
+        this.registers = registers;
+        this.variableCount = variableCount;
+    }
+
+    @Override
+    public double getValue(Frame frame) throws EvaluationException {
+        // Each frame gets its own register file, so the program can be shared between threads.
+        // Programs don't call each other, so a frame only needs one, which is reused by the next program.
+        double[] r = frame.registers;
+        if (frame.registerProgram != this) {
+            if (r == null || r.length < registers.length) {
+                frame.registers = r = new double[registers.length];
+            }
+            System.arraycopy(registers, 0, r, 0, registers.length);
+            frame.registerProgram = this;
+        }
+
+        final double[] values = frame.values;
+        final int variableCount = this.variableCount;
+        System.arraycopy(values, 0, r, 0, variableCount);
+
+        final int[] code = this.code;
+        int pc = 0;
+        while (true) {
+            switch (code[pc]) {
+            case ADD:
+                r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]];
+                pc += 4;
+                break;
+
+            case SUB:
+                r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]];
+                pc += 4;
+                break;
+
+            case MUL:
+                r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]];
+                pc += 4;
+                break;
+
+            case DIV:
+                r[code[pc + 1]] = r[code[pc + 2]] / r[code[pc + 3]];
+                pc += 4;
+                break;
+
+            case MOD:
+                r[code[pc + 1]] = r[code[pc + 2]] % r[code[pc + 3]];
+                pc += 4;
+                break;
+
+            case POW:
+                r[code[pc + 1]] = Math.pow(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+
+            case SHL:
+                r[code[pc + 1]] = (long) r[code[pc + 2]] << (long) r[code[pc + 3]];
+                pc += 4;
+                break;
+
+            case SHR:
+                r[code[pc + 1]] = (long) r[code[pc + 2]] >> (long) r[code[pc + 3]];
+                pc += 4;
+                break;
+
+            case LTH:
+                r[code[pc + 1]] = r[code[pc + 2]] < r[code[pc + 3]] ? 1.0 : 0.0;
+                pc += 4;
+                break;
+
+            case LEQ:
+                r[code[pc + 1]] = r[code[pc + 2]] <= r[code[pc + 3]] ? 1.0 : 0.0;
+                pc += 4;
+                break;
+
+            case EQU:
+                r[code[pc + 1]] = r[code[pc + 2]] == r[code[pc + 3]] ? 1.0 : 0.0;
+                pc += 4;
+                break;
+
+            case NEQ:
+                r[code[pc + 1]] = r[code[pc + 2]] != r[code[pc + 3]] ? 1.0 : 0.0;
+                pc += 4;
+                break;
+
+            case ATAN2:
+                r[code[pc + 1]] = Math.atan2(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+
+            case MIN:
+                r[code[pc + 1]] = Math.min(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+
+            case MAX:
+                r[code[pc + 1]] = Math.max(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+
+            case MOV:
+                r[code[pc + 1]] = r[code[pc + 2]];
+                pc += 3;
+                break;
+
+            case NEG:
+                r[code[pc + 1]] = -r[code[pc + 2]];
+                pc += 3;
+                break;
+
+            case NOT:
+                r[code[pc + 1]] = r[code[pc + 2]] > 0.0 ? 0.0 : 1.0;
+                pc += 3;
+                break;
+
+            case INV:
+                r[code[pc + 1]] = ~(long) r[code[pc + 2]];
+                pc += 3;
+                break;
+
+            case SIN:
+                r[code[pc + 1]] = Math.sin(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case COS:
+                r[code[pc + 1]] = Math.cos(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case TAN:
+                r[code[pc + 1]] = Math.tan(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case ASIN:
+                r[code[pc + 1]] = Math.asin(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case ACOS:
+                r[code[pc + 1]] = Math.acos(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case ATAN:
+                r[code[pc + 1]] = Math.atan(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case SINH:
+                r[code[pc + 1]] = Math.sinh(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case COSH:
+                r[code[pc + 1]] = Math.cosh(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case TANH:
+                r[code[pc + 1]] = Math.tanh(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case SQRT:
+                r[code[pc + 1]] = Math.sqrt(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case CBRT:
+                r[code[pc + 1]] = Math.cbrt(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case ABS:
+                r[code[pc + 1]] = Math.abs(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case CEIL:
+                r[code[pc + 1]] = Math.ceil(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case FLOOR:
+                r[code[pc + 1]] = Math.floor(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case RINT:
+                r[code[pc + 1]] = Math.rint(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case ROUND:
+                r[code[pc + 1]] = Math.round(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case EXP:
+                r[code[pc + 1]] = Math.exp(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case LN:
+                r[code[pc + 1]] = Math.log(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case LOG10:
+                r[code[pc + 1]] = Math.log10(r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case SIGN: {
+                final double value = r[code[pc + 2]];
+                r[code[pc + 1]] = value < 0 ? -1 : value > 0 ? 1 : 0;
+                pc += 3;
+                break;
+            }
+
+            case RECT:
+                r[code[pc + 1]] = r[code[pc + 2]] % 1 < 0.5 ? -1 : 1;
+                pc += 3;
+                break;
+
+            case TRIANGLE:
+                r[code[pc + 1]] = Math.abs((r[code[pc + 2]] * 2 + 1) % 2 - 1) * 2 - 1;
+                pc += 3;
+                break;
+
+            case SINE:
+                r[code[pc + 1]] = Math.sin(2 * Math.PI * r[code[pc + 2]]);
+                pc += 3;
+                break;
+
+            case INTEGRATE: {
+                final int state = code[pc + 1];
+                r[state] = (r[state] % 1) + r[code[pc + 2]] / TileEntitySpeaker.SAMPLE_RATE;
+                pc += 3;
+                break;
+            }
+
+            case JMP:
+                pc = code[pc + 1];
+                break;
+
+            case JT:
+                pc = r[code[pc + 1]] > 0.0 ? code[pc + 2] : pc + 3;
+                break;
+
+            case JF:
+                pc = r[code[pc + 1]] > 0.0 ? pc + 3 : code[pc + 2];
+                break;
+
+            case JLT:
+                pc = r[code[pc + 1]] < r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                break;
+
+            case JNLT:
+                pc = r[code[pc + 1]] < r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                break;
+
+            case JLE:
+                pc = r[code[pc + 1]] <= r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                break;
+
+            case JNLE:
+                pc = r[code[pc + 1]] <= r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                break;
+
+            case JEQ:
+                pc = r[code[pc + 1]] == r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                break;
+
+            case JNE:
+                pc = r[code[pc + 1]] == r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                break;
+
+            case TABLE: {
+                // Only integers can match, everything else (including NaN) fails the round trip through int.
+                final double parameter = r[code[pc + 1]];
+                final int index = (int) parameter - code[pc + 2];
+                if ((int) parameter != parameter || index < 0 || index >= code[pc + 3]) {
+                    pc = code[pc + 4];
+                }
+                else {
+                    pc = code[pc + 5 + index];
+                }
+                break;
+            }
+
+            case ITER:
+                if (r[code[pc + 1]] > 256) {
+                    System.arraycopy(r, 0, values, 0, variableCount);
+                    throw new EvaluationException(code[pc + 2], "Loop exceeded 256 iterations.");
+                }
+                ++r[code[pc + 1]];
+                pc += 3;
+                break;
+
+            case CALL:
+                pc = call(frame, r, pc);
+                break;
+
+            case RET:
+                System.arraycopy(r, 0, values, 0, variableCount);
+                return r[code[pc + 1]];
+
+            case BREAK:
+                // Not inside a loop, so do what the interpreter does.
+                System.arraycopy(r, 0, values, 0, variableCount);
+                throw new BreakException(code[pc + 1] != 0);
+
+            default:
+                throw new EvaluationException(getPosition(), "Invalid opcode " + code[pc] + " at " + pc + ".");
+            }
+        }
+    }
+
+    /**
+     * Evaluates a reference, which sees and changes the frame's values.
+     *
+     * @return the address of the next instruction
+     */
+    private int call(Frame frame, double[] r, int pc) throws EvaluationException {
+        final double[] values = frame.values;
+        System.arraycopy(r, 0, values, 0, variableCount);
+        try {
+            r[code[pc + 1]] = references[code[pc + 2]].getValue(frame);
+            pc += 5;
+        }
+        catch (BreakException e) {
+            // Like a break or continue statement in the program
+            final int target = e.doContinue ? code[pc + 4] : code[pc + 3];
+            if (target == -1) {
+                throw e;
+            }
+            pc = target;
+        }
+        System.arraycopy(values, 0, r, 0, variableCount);
+        return pc;
+    }
+
+    /**
+     * @return the number of ints in the program
+     */
+    public int getCodeSize() {
+        return code.length;
+    }
+
+    /**
+     * @return the number of registers
+     */
+    public int getRegisterCount() {
+        return registers.length;
+    }
+}
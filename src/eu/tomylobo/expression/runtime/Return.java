@@ -29,6 +29,12 @@ import eu.tomylobo.expression.parser.ParserException;
 public class Return extends Node {
     RValue value;
 
+    /**
+     * Set by {@link ControlFlow} if all nodes up to the root check {@link Frame#jump}.
+     * Otherwise a {@link ReturnException} is thrown.
+     */
+    boolean signal;
+
     public Return(int position, RValue value) {
         super(position);
 
@@ -36,8 +42,14 @@ public class Return extends Node {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
-        throw new ReturnException(value.getValue());
+    public double getValue(Frame frame) throws EvaluationException {
+        final double ret = value.getValue(frame);
+        if (!signal) {
+            throw new ReturnException(ret);
+        }
+
+        frame.jump = Frame.RETURN;
+        return ret;
     }
 
     @Override
@@ -44,10 +44,13 @@ public class Sequence extends Node {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
+    public double getValue(Frame frame) throws EvaluationException {
         double ret = 0;
         for (RValue invokable : sequence) {
-            ret = invokable.getValue();
+            ret = invokable.getValue(frame);
+            if (frame.jump != Frame.NONE) {
+                break;
+            }
         }
         return ret;
     }
@@ -42,12 +42,12 @@ public class SimpleFor extends Node {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
+    public double getValue(Frame frame) throws EvaluationException {
         int iterations = 0;
         double ret = 0.0;
 
-        double firstValue = first.getValue();
-        double lastValue = last.getValue();
+        double firstValue = first.getValue(frame);
+        double lastValue = last.getValue(frame);
 
         for (double i = firstValue; i <= lastValue; ++i) {
             if (iterations > 256) {
@@ -55,9 +55,10 @@ public class SimpleFor extends Node {
             }
             ++iterations;
 
+            final double value;
             try {
-                counter.assign(i);
-                ret = body.getValue();
+                counter.assign(frame, i);
+                value = body.getValue(frame);
             }
             catch (BreakException e) {
                 if (e.doContinue) {
@@ -67,6 +68,23 @@ public class SimpleFor extends Node {
                     break;
                 }
             }
+
+            if (frame.jump != Frame.NONE) {
+                if (frame.jump == Frame.RETURN) {
+                    return value;
+                }
+
+                final boolean doContinue = frame.jump == Frame.CONTINUE;
+                frame.jump = Frame.NONE;
+                if (doContinue) {
+                    continue;
+                }
+                else {
+                    break;
+                }
+            }
+
+            ret = value;
         }
 
         return ret;
@@ -84,9 +102,10 @@ public class SimpleFor extends Node {
 
     @Override
     public RValue optimize() throws EvaluationException {
-        // TODO: unroll small loops into Sequences
+        final SimpleFor optimized = new SimpleFor(getPosition(), (LValue) counter.optimize(), first.optimize(), last.optimize(), body.optimize());
 
-        return new SimpleFor(getPosition(), (LValue) counter.optimize(), first.optimize(), last.optimize(), body.optimize());
+        final RValue unrolled = LoopUnrolling.unroll(optimized);
+        return unrolled == null ? optimized : unrolled;
     }
 
     @Override
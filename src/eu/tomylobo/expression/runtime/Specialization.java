@@ -0,0 +1,223 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces reads of variables with known values by constants, so optimizing the tree can fold them
+ * into the surrounding code.
+ * Conditionals that always take the same branch for a range of time values can be replaced by that branch.
+ *
+ * @author TomyLobo
+ */
+public final class Specialization {
+    private Specialization() {
+    }
+
+    /**
+     * Variables that are assigned anywhere in the tree are left alone, since they don't always hold the known value.
+     *
+     * @param root An unoptimized tree
+     * @param values The known values of some variables
+     * @return a copy of the tree with the known variables replaced or the tree itself if none of them could be replaced
+     */
+    public static RValue substitute(RValue root, Map<Variable, Double> values) {
+        final BitSet assigned = CommonSubexpressions.findAssignments(root);
+        if (assigned == null) {
+            return root;
+        }
+
+        int slotCount = 0;
+        for (Variable variable : values.keySet()) {
+            slotCount = Math.max(slotCount, variable.slot + 1);
+        }
+
+        final RValue[] replacements = new RValue[slotCount];
+        boolean replaced = false;
+        for (Map.Entry<Variable, Double> entry : values.entrySet()) {
+            final int slot = entry.getKey().slot;
+            if (!assigned.get(slot)) {
+                replacements[slot] = new Constant(-1, entry.getValue());
+                replaced = true;
+            }
+        }
+
+        return replaced ? copy(root, replacements) : root;
+    }
+
+    /**
+     * @param slot The slot of the variable to replace or -1 to keep all variables
+     * @param replacement The node replacing reads of the variable
+     * @see #copy(RValue, RValue[])
+     */
+    static RValue copy(RValue node, int slot, RValue replacement) {
+        final RValue[] replacements = new RValue[slot + 1];
+        if (slot != -1) {
+            replacements[slot] = replacement;
+        }
+        return copy(node, replacements);
+    }
+
+    /**
+     * Replaces the conditionals that always take the same branch by that branch.
+     * Conditions with side effects are still evaluated.
+     *
+     * @param root An optimized tree
+     * @param analysis The analysis of the tree for the range of time values the copy will be used for
+     * @return an unoptimized copy of the tree or the tree itself if no conditional always takes the same branch
+     */
+    public static RValue prune(RValue root, RangeAnalysis analysis) {
+        if (!analysis.hasDecidedBranches()) {
+            return root;
+        }
+
+        return copy(root, new RValue[0], analysis);
+    }
+
+    /**
+     * Copies a subtree, replacing the given variables.
+     * Replaced variables must not be assigned in the subtree.
+     *
+     * @param replacements The nodes replacing reads of the variables, indexed by slot. null keeps the variable.
+     */
+    static RValue copy(RValue node, RValue[] replacements) {
+        return copy(node, replacements, null);
+    }
+
+    /**
+     * @param analysis Decides which conditionals to replace by one of their branches. Can be null.
+     */
+    private static RValue copy(RValue node, RValue[] replacements, RangeAnalysis analysis) {
+        if (node instanceof Variable) {
+            final int slot = ((Variable) node).slot;
+            if (slot < replacements.length && replacements[slot] != null) {
+                return replacements[slot];
+            }
+
+            return node;
+        }
+
+        if (node instanceof Operation) {
+            final Operation operation = (Operation) node;
+            final RValue[] operands = operation.getOperands();
+            for (int i = 0; i < operands.length; ++i) {
+                operands[i] = copy(operands[i], replacements, analysis);
+            }
+
+            return operation.withOperands(operation.getPosition(), operands);
+        }
+
+        if (node instanceof Function) {
+            final Function function = (Function) node;
+            final RValue[] args = new RValue[function.args.length];
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = copy(function.args[i], replacements, analysis);
+            }
+
+            return function.withArguments(args);
+        }
+
+        if (node instanceof Sequence) {
+            final Sequence sequence = (Sequence) node;
+            final RValue[] statements = new RValue[sequence.sequence.length];
+            for (int i = 0; i < statements.length; ++i) {
+                statements[i] = copy(sequence.sequence[i], replacements, analysis);
+            }
+
+            return new Sequence(sequence.getPosition(), statements);
+        }
+
+        if (node instanceof Conditional) {
+            final Conditional conditional = (Conditional) node;
+
+            final Boolean branch = analysis == null ? null : analysis.getBranch(conditional);
+            if (branch != null) {
+                final RValue taken = branch ? conditional.truePart : conditional.falsePart;
+                final RValue value = taken == null ? new Constant(conditional.getPosition(), 0.0) : copy(taken, replacements, analysis);
+                if (Operation.isSideEffectFree(conditional.condition)) {
+                    return value;
+                }
+
+                return new Sequence(conditional.getPosition(), copy(conditional.condition, replacements, analysis), value);
+            }
+
+            return new Conditional(conditional.getPosition(),
+                    copy(conditional.condition, replacements, analysis),
+                    copy(conditional.truePart, replacements, analysis),
+                    conditional.falsePart == null ? null : copy(conditional.falsePart, replacements, analysis));
+        }
+
+        if (node instanceof While) {
+            final While loop = (While) node;
+            return new While(loop.getPosition(), copy(loop.condition, replacements, analysis), copy(loop.body, replacements, analysis), loop.footChecked);
+        }
+
+        if (node instanceof For) {
+            final For loop = (For) node;
+            return new For(loop.getPosition(),
+                    copy(loop.init, replacements, analysis),
+                    copy(loop.condition, replacements, analysis),
+                    copy(loop.increment, replacements, analysis),
+                    copy(loop.body, replacements, analysis));
+        }
+
+        if (node instanceof SimpleFor) {
+            final SimpleFor loop = (SimpleFor) node;
+            return new SimpleFor(loop.getPosition(),
+                    (LValue) copy(loop.counter, replacements, analysis),
+                    copy(loop.first, replacements, analysis),
+                    copy(loop.last, replacements, analysis),
+                    copy(loop.body, replacements, analysis));
+        }
+
+        if (node instanceof Switch) {
+            final Switch switchStatement = (Switch) node;
+            final List<RValue> caseStatements = new ArrayList<RValue>();
+            for (RValue caseStatement : switchStatement.caseStatements) {
+                caseStatements.add(copy(caseStatement, replacements, analysis));
+            }
+
+            return new Switch(switchStatement.getPosition(),
+                    copy(switchStatement.parameter, replacements, analysis),
+                    switchStatement.values,
+                    switchStatement.targets,
+                    caseStatements,
+                    switchStatement.defaultCase == null ? null : copy(switchStatement.defaultCase, replacements, analysis));
+        }
+
+        if (node instanceof Break) {
+            return new Break(node.getPosition(), ((Break) node).doContinue);
+        }
+
+        if (node instanceof Return) {
+            return new Return(node.getPosition(), copy(((Return) node).value, replacements, analysis));
+        }
+
+        if (node instanceof CompiledNode) {
+            return copy(((CompiledNode) node).getSource(), replacements, analysis);
+        }
+
+        // Constants can be shared.
+        return node;
+    }
+}
@@ -19,11 +19,10 @@
 package eu.tomylobo.expression.runtime;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import eu.tomylobo.expression.Expression;
 import eu.tomylobo.expression.parser.ParserException;
@@ -34,31 +33,127 @@ import eu.tomylobo.expression.parser.ParserException;
  * @author TomyLobo
  */
 public class Switch extends Node implements RValue {
-    private RValue parameter;
-    private final Map<Double, Integer> valueMap;
-    private final RValue[] caseStatements;
-    private RValue defaultCase;
+    /**
+     * Integer case values are looked up in a table, if it has at most this many entries
+     * and the values fill about half of them.
+     */
+    private static final int MAX_TABLE_SIZE = 1024;
+
+    RValue parameter;
+
+    /**
+     * The case values in ascending order and the indexes of the case statements they jump to.
+     */
+    final double[] values;
+    final int[] targets;
+
+    /**
+     * The indexes of the case statements for the integers from tableStart on, -1 for integers without a case.
+     * Null if the case values aren't integers close enough to each other.
+     */
+    final int[] table;
+    final int tableStart;
+
+    final RValue[] caseStatements;
+    RValue defaultCase;
 
     public Switch(int position, RValue parameter, List<Double> values, List<RValue> caseStatements, RValue defaultCase) {
         this(position, parameter, invertList(values), caseStatements, defaultCase);
-
     }
 
-    private static Map<Double, Integer> invertList(List<Double> values) {
-        Map<Double, Integer> valueMap = new HashMap<Double, Integer>();
+    private static SortedMap<Double, Integer> invertList(List<Double> values) {
+        final SortedMap<Double, Integer> valueMap = new TreeMap<Double, Integer>();
         for (int i = 0; i < values.size(); ++i) {
-            valueMap.put(values.get(i), i);
+            // Cases match values that are ==, so -0.0 goes with 0.0.
+            valueMap.put(values.get(i) + 0.0, i);
         }
         return valueMap;
     }
 
-    private Switch(int position, RValue parameter, Map<Double, Integer> valueMap, List<RValue> caseStatements, RValue defaultCase) {
+    private Switch(int position, RValue parameter, SortedMap<Double, Integer> valueMap, List<RValue> caseStatements, RValue defaultCase) {
+        this(position, parameter, getValues(valueMap), getTargets(valueMap), caseStatements, defaultCase);
+    }
+
+    private static double[] getValues(SortedMap<Double, Integer> valueMap) {
+        final double[] values = new double[valueMap.size()];
+        int i = 0;
+        for (double value : valueMap.keySet()) {
+            values[i++] = value;
+        }
+        return values;
+    }
+
+    private static int[] getTargets(SortedMap<Double, Integer> valueMap) {
+        final int[] targets = new int[valueMap.size()];
+        int i = 0;
+        for (int target : valueMap.values()) {
+            targets[i++] = target;
+        }
+        return targets;
+    }
+
+    /**
+     * @param values The case values in ascending order and without duplicates
+     */
+    Switch(int position, RValue parameter, double[] values, int[] targets, List<RValue> caseStatements, RValue defaultCase) {
         super(position);
 
         this.parameter = parameter;
-        this.valueMap = valueMap;
+        this.values = values;
+        this.targets = targets;
         this.caseStatements = caseStatements.toArray(new RValue[caseStatements.size()]);
         this.defaultCase = defaultCase;
+
+        table = createTable(values, targets);
+        tableStart = table == null ? 0 : (int) values[0];
+    }
+
+    private static int[] createTable(double[] values, int[] targets) {
+        if (values.length == 0) {
+            return null;
+        }
+
+        for (double value : values) {
+            if ((int) value != value) {
+                return null;
+            }
+        }
+
+        final long size = (long) values[values.length - 1] - (long) values[0] + 1;
+        if (size > MAX_TABLE_SIZE || size > 2L * values.length + 8) {
+            return null;
+        }
+
+        final int start = (int) values[0];
+        final int[] table = new int[(int) size];
+        Arrays.fill(table, -1);
+        for (int i = 0; i < values.length; ++i) {
+            table[(int) values[i] - start] = targets[i];
+        }
+
+        return table;
+    }
+
+    /**
+     * @return the index of the case statement matching the given value or -1 if there is none
+     */
+    int findCase(double value) {
+        if (table != null) {
+            final int intValue = (int) value;
+            if (intValue != value) {
+                return -1;
+            }
+
+            final int index = intValue - tableStart;
+            if (index < 0 || index >= table.length) {
+                return -1;
+            }
+
+            return table[index];
+        }
+
+        final int index = Arrays.binarySearch(values, value + 0.0);
+        return index < 0 ? -1 : targets[index];
     }
 
     @Override
@@ -67,20 +162,32 @@ public class Switch extends Node implements RValue {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
-        final double parameter = this.parameter.getValue();
+    public double getValue(Frame frame) throws EvaluationException {
+        final double parameter = this.parameter.getValue(frame);
 
         try {
             double ret = 0.0;
 
-            final Integer index = valueMap.get(parameter);
-            if (index != null) {
+            final int index = findCase(parameter);
+            if (index != -1) {
                 for (int i = index; i < caseStatements.length; ++i) {
-                    ret = caseStatements[i].getValue();
+                    ret = caseStatements[i].getValue(frame);
+                    if (frame.jump != Frame.NONE) {
+                        return handleJump(frame, ret);
+                    }
                 }
             }
 
-            return defaultCase == null ? ret : defaultCase.getValue();
+            if (defaultCase == null) {
+                return ret;
+            }
+
+            ret = defaultCase.getValue(frame);
+            if (frame.jump != Frame.NONE) {
+                return handleJump(frame, ret);
+            }
+
+            return ret;
         }
         catch (BreakException e) {
             if (e.doContinue) throw e;
@@ -89,6 +196,18 @@ public class Switch extends Node implements RValue {
         }
     }
 
+    /**
+     * A break leaves the switch, continue and return are passed on.
+     */
+    private static double handleJump(Frame frame, double value) {
+        if (frame.jump == Frame.BREAK) {
+            frame.jump = Frame.NONE;
+            return 0.0;
+        }
+
+        return value;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
@@ -100,9 +219,9 @@ public class Switch extends Node implements RValue {
         for (int i = 0; i < caseStatements.length; ++i) {
             RValue caseStatement = caseStatements[i];
             sb.append("case ");
-            for (Entry<Double, Integer> entry : valueMap.entrySet()) {
-                if (entry.getValue() == i) {
-                    sb.append(entry.getKey());
+            for (int j = 0; j < values.length; ++j) {
+                if (targets[j] == i) {
+                    sb.append(values[j]);
                     break;
                 }
             }
@@ -128,10 +247,10 @@ public class Switch extends Node implements RValue {
         final List<RValue> newSequence = new ArrayList<RValue>();
 
         if (optimizedParameter instanceof Constant) {
-            final double parameter = optimizedParameter.getValue();
+            final double parameter = ((Constant) optimizedParameter).getValue();
 
-            final Integer index = valueMap.get(parameter);
-            if (index == null) {
+            final int index = findCase(parameter);
+            if (index == -1) {
                 return defaultCase == null ? new Constant(getPosition(), 0.0) : defaultCase.optimize();
             }
 
@@ -154,7 +273,11 @@ public class Switch extends Node implements RValue {
                 }
             }
 
-            if (defaultCase != null && !breakDetected) {
+            if (breakDetected) {
+                // Leaving the switch with break makes it return 0.0.
+                newSequence.add(new Constant(getPosition(), 0.0));
+            }
+            else if (defaultCase != null) {
                 final RValue invokable = defaultCase.optimize();
 
                 if (invokable instanceof Sequence) {
@@ -167,23 +290,14 @@ public class Switch extends Node implements RValue {
                 }
             }
 
-            return new Switch(getPosition(), optimizedParameter, Collections.singletonMap(parameter, 0), newSequence, null);
-        }
-
-        final Map<Double, Integer> newValueMap = new HashMap<Double, Integer>();
-
-        Map<Integer, Double> backMap = new HashMap<Integer, Double>();
-        for (Entry<Double, Integer> entry : valueMap.entrySet()) {
-            backMap.put(entry.getValue(), entry.getKey());
+            return new Switch(getPosition(), optimizedParameter, new double[] { parameter + 0.0 }, new int[] { 0 }, newSequence, null);
         }
 
+        final int[] newTargets = new int[targets.length];
         for (int i = 0; i < caseStatements.length; ++i) {
-            final RValue invokable = caseStatements[i].optimize();
+            retarget(newTargets, i, newSequence.size());
 
-            final Double caseValue = backMap.get(i);
-            if (caseValue != null) {
-                newValueMap.put(caseValue, newSequence.size());
-            }
+            final RValue invokable = caseStatements[i].optimize();
 
             if (invokable instanceof Sequence) {
                 for (RValue subInvokable : ((Sequence) invokable).sequence) {
@@ -195,7 +309,21 @@ public class Switch extends Node implements RValue {
             }
         }
 
-        return new Switch(getPosition(), optimizedParameter, newValueMap, newSequence, defaultCase.optimize());
+        retarget(newTargets, caseStatements.length, newSequence.size());
+
+        return new Switch(getPosition(), optimizedParameter, values, newTargets, newSequence, defaultCase == null ? null : defaultCase.optimize());
+    }
+
+    /**
+     * Points all values that jump to the given case statement to its new index.
+     * Several values can jump to the same statement, since statements can be optimized away.
+     */
+    private void retarget(int[] newTargets, int caseStatement, int newIndex) {
+        for (int i = 0; i < targets.length; ++i) {
+            if (targets[i] == caseStatement) {
+                newTargets[i] = newIndex;
+            }
+        }
     }
 
     @Override
@@ -206,7 +334,9 @@ public class Switch extends Node implements RValue {
             caseStatements[i] = caseStatements[i].bindVariables(expression, false);
         }
 
-        defaultCase = defaultCase.bindVariables(expression, false);
+        if (defaultCase != null) {
+            defaultCase = defaultCase.bindVariables(expression, false);
+        }
 
         return this;
     }
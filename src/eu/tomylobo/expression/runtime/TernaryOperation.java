@@ -0,0 +1,50 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+/**
+ * An operation with three operands.
+ *
+ * @author TomyLobo
+ */
+public abstract class TernaryOperation extends Operation {
+    final RValue a;
+    final RValue b;
+    final RValue c;
+
+    TernaryOperation(int position, String name, RValue a, RValue b, RValue c) {
+        super(position, name);
+
+        this.a = a;
+        this.b = b;
+        this.c = c;
+    }
+
+    abstract TernaryOperation copy(int position, RValue a, RValue b, RValue c);
+
+    @Override
+    public RValue[] getOperands() {
+        return new RValue[] { a, b, c };
+    }
+
+    @Override
+    Operation withOperands(int position, RValue[] operands) {
+        return copy(position, operands[0], operands[1], operands[2]);
+    }
+}
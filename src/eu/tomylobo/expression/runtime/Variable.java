@@ -27,16 +27,36 @@ import eu.tomylobo.expression.parser.ParserException;
  * @author TomyLobo
  */
 public final class Variable extends Node implements LValue {
-    public double value;
+    final int slot;
+    final boolean temporary;
 
-    public Variable(double value) {
+    public Variable(int slot) {
+        this(slot, false);
+    }
+
+    /**
+     * @param temporary true for variables holding intermediate results, whose values don't matter after an evaluation
+     */
+    public Variable(int slot, boolean temporary) {
         super(-1);
-        this.value = value;
+        this.slot = slot;
+        this.temporary = temporary;
+    }
+
+    /**
+     * @return the index of this variable's value in a {@link Frame}
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public boolean isTemporary() {
+        return temporary;
     }
 
     @Override
-    public double getValue() {
-        return value;
+    public double getValue(Frame frame) {
+        return frame.values[slot];
     }
 
     @Override
@@ -50,8 +70,8 @@ public final class Variable extends Node implements LValue {
     }
 
     @Override
-    public double assign(double value) {
-        return this.value = value;
+    public double assign(Frame frame, double value) {
+        return frame.values[slot] = value;
     }
 
     @Override
@@ -40,7 +40,7 @@ public class While extends Node {
     }
 
     @Override
-    public double getValue() throws EvaluationException {
+    public double getValue(Frame frame) throws EvaluationException {
         int iterations = 0;
         double ret = 0.0;
 
@@ -51,8 +51,9 @@ public class While extends Node {
                 }
                 ++iterations;
 
+                final double value;
                 try {
-                    ret = body.getValue();
+                    value = body.getValue(frame);
                 }
                 catch (BreakException e) {
                     if (e.doContinue) {
@@ -62,16 +63,34 @@ public class While extends Node {
                         break;
                     }
                 }
-            } while (condition.getValue() > 0.0);
+
+                if (frame.jump != Frame.NONE) {
+                    if (frame.jump == Frame.RETURN) {
+                        return value;
+                    }
+
+                    final boolean doContinue = frame.jump == Frame.CONTINUE;
+                    frame.jump = Frame.NONE;
+                    if (doContinue) {
+                        continue;
+                    }
+                    else {
+                        break;
+                    }
+                }
+
+                ret = value;
+            } while (condition.getValue(frame) > 0.0);
         } else {
-            while (condition.getValue() > 0.0) {
+            while (condition.getValue(frame) > 0.0) {
                 if (iterations > 256) {
                     throw new EvaluationException(getPosition(), "Loop exceeded 256 iterations.");
                 }
                 ++iterations;
 
+                final double value;
                 try {
-                    ret = body.getValue();
+                    value = body.getValue(frame);
                 }
                 catch (BreakException e) {
                     if (e.doContinue) {
@@ -81,6 +100,23 @@ public class While extends Node {
                         break;
                     }
                 }
+
+                if (frame.jump != Frame.NONE) {
+                    if (frame.jump == Frame.RETURN) {
+                        return value;
+                    }
+
+                    final boolean doContinue = frame.jump == Frame.CONTINUE;
+                    frame.jump = Frame.NONE;
+                    if (doContinue) {
+                        continue;
+                    }
+                    else {
+                        break;
+                    }
+                }
+
+                ret = value;
             }
         }
 
@@ -106,7 +142,7 @@ public class While extends Node {
     public RValue optimize() throws EvaluationException {
         final RValue newCondition = condition.optimize();
 
-        if (newCondition instanceof Constant && newCondition.getValue() <= 0) {
+        if (newCondition instanceof Constant && ((Constant) newCondition).getValue() <= 0) {
             // If the condition is always false, the loop can be flattened.
             if (footChecked) {
                 // Foot-checked loops run at least once.
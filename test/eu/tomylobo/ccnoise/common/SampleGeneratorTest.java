@@ -0,0 +1,15 @@
+package eu.tomylobo.ccnoise.common;
+
+import org.junit.Test;
+
+import eu.tomylobo.expression.Expression;
+import eu.tomylobo.expression.runtime.EvaluationException;
+import eu.tomylobo.expression.runtime.GlobalMegabuf;
+
+public class SampleGeneratorTest {
+	@Test(expected = EvaluationException.class)
+	public void strayBreakIsNotRenderedAsConstantChunk() throws Exception {
+		final Expression expression = Expression.compile("if (t > 0.3) { break; } 1", "t", "length");
+		SampleGenerator.generate(expression, 1.0, new GlobalMegabuf(16));
+	}
+}
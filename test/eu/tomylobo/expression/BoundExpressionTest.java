@@ -0,0 +1,115 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that {@link BoundExpression#next()} doesn't allocate anything per sample, in every tier.
+ *
+ * @author TomyLobo
+ */
+public class BoundExpressionTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int WARMUP_SAMPLES = 200000;
+
+    private static final String[] EXPRESSIONS = {
+        "sin(2*pi*440*t)*0.5*(1-t/length)",
+        "x = 0; for (i = 0; i < 4; ++i) { x += sin(t*i) } x",
+        "t < 0.5 ? rect(p, 440) : sine(q, 220)",
+        "megabuf(3) = t; megabuf(t * 100) = 1; megabuf(3) + megabuf(7)",
+        "gmegabuf(3) = t; gmegabuf(t * 100) = 1; gmegabuf(3) + gmegabuf(7)",
+    };
+
+    private enum Tier {
+        TREE, BYTECODE, REGISTERS
+    }
+
+    @Test
+    public void treeDoesNotAllocate() throws Exception {
+        checkAllocations(Tier.TREE);
+    }
+
+    @Test
+    public void bytecodeDoesNotAllocate() throws Exception {
+        checkAllocations(Tier.BYTECODE);
+    }
+
+    @Test
+    public void registersDoNotAllocate() throws Exception {
+        checkAllocations(Tier.REGISTERS);
+    }
+
+    @Test
+    public void timeAdvancesBySamples() throws Exception {
+        final BoundExpression bound = Expression.compile("t", "t").bind(SAMPLE_RATE);
+        bound.setT(2);
+        assertEquals(2.0, bound.next(), 0);
+        assertEquals(2.0 + 1.0 / SAMPLE_RATE, bound.next(), 0);
+        assertEquals(2.0 + 2.0 / SAMPLE_RATE, bound.getT(), 0);
+    }
+
+    private static void checkAllocations(Tier tier) throws Exception {
+        final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        final long threadId = Thread.currentThread().getId();
+
+        for (String source : EXPRESSIONS) {
+            final Expression expression = Expression.compile(source, "t", "length");
+            expression.optimize();
+            switch (tier) {
+            case BYTECODE:
+                expression.compileToBytecode();
+                break;
+
+            case REGISTERS:
+                expression.compileToRegisters();
+                break;
+
+            default:
+                break;
+            }
+
+            final BoundExpression bound = expression.bind(SAMPLE_RATE);
+            bound.set(1, 2.0);
+
+            // Lets the JIT compile the loop, so only the evaluation itself is measured
+            for (int i = 0; i < WARMUP_SAMPLES; ++i) {
+                bound.next();
+            }
+
+            final long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < SAMPLE_RATE; ++i) {
+                bound.next();
+            }
+            final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            // Less than a byte per sample means nothing was allocated per sample
+            assertEquals(tier + " bytes per sample for " + source, 0, allocated / SAMPLE_RATE);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.parser;
+
+import java.util.List;
+
+import eu.tomylobo.expression.Expression;
+import eu.tomylobo.expression.lexer.Lexer;
+import eu.tomylobo.expression.lexer.tokens.Token;
+
+/**
+ * Measures how long {@link Parser#parse(List, Expression)} takes for chains of binary operators of growing length.
+ *
+ * The chains mix left-associative operators of different precedence levels with the right-associative ^.
+ * Parsing is linear if the time per term stays about the same while the chain doubles in length.
+ * Run it with "ant benchmark" or with the term counts as arguments.
+ *
+ * @author TomyLobo
+ */
+public class ParserBenchmark {
+    private static final int[] DEFAULT_TERMS = { 1000, 2000, 4000, 8000, 16000 };
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final long MEASURE_NANOS = 1000000000L;
+
+    public static void main(String[] args) throws Exception {
+        int[] termCounts = DEFAULT_TERMS;
+        if (args.length > 0) {
+            termCounts = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                termCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        final Expression expression = Expression.compile("t", "t");
+
+        // Lets the JIT compile the parser before anything is measured
+        final List<Token> warmupTokens = Lexer.tokenize(createChain(termCounts[0]));
+        for (long start = System.nanoTime(); System.nanoTime() - start < WARMUP_NANOS; ) {
+            Parser.parse(warmupTokens, expression);
+        }
+
+        System.out.println("terms     ms/parse   ns/term");
+        for (int terms : termCounts) {
+            final List<Token> tokens = Lexer.tokenize(createChain(terms));
+
+            int runs = 0;
+            final long start = System.nanoTime();
+            long elapsed;
+            do {
+                Parser.parse(tokens, expression);
+                ++runs;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MEASURE_NANOS);
+
+            final double nanosPerParse = (double) elapsed / runs;
+            System.out.println(String.format("%-8d  %8.3f  %8.1f", terms, nanosPerParse / 1e6, nanosPerParse / terms));
+        }
+    }
+
+    /**
+     * @return an expression like "t + 0 ^ 2 * 1 ^ 2 - 2 ^ 2 + ..." with the given number of terms after the t
+     */
+    private static String createChain(int terms) {
+        final String[] operators = { " + ", " * ", " - ", " / " };
+
+        final StringBuilder sb = new StringBuilder("t");
+        for (int i = 0; i < terms; ++i) {
+            sb.append(operators[i % operators.length]).append(i + 1).append(" ^ 2");
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import eu.tomylobo.expression.Expression;
+
+/**
+ * Checks that the rules in {@link Operation#simplify()} don't change any result,
+ * by comparing the optimized tiers with the unoptimized tree.
+ *
+ * @author TomyLobo
+ */
+public class OperatorsTest {
+    @Test
+    public void negatedLhsKeepsEvaluationOrder() throws Exception {
+        checkAllTiers("x = 1; -(x = 5) + x", 0);
+        checkAllTiers("x = 1; -(x++) + x", 0);
+        checkAllTiers("-(megabuf(0) = 7) + megabuf(0)", 0);
+        checkAllTiers("y = 0.25; -(sine(y, -1)) + (z = (y /= 1))", 0);
+    }
+
+    @Test
+    public void negatedLhsIsStillSwappedWhenItCanBe() throws Exception {
+        checkAllTiers("x = 3; -x + t", 0.5);
+        checkAllTiers("-(x = t) + 2", 0.5);
+    }
+
+    @Test
+    public void negatedRhsKeepsEvaluationOrder() throws Exception {
+        checkAllTiers("x = 1; (x = 5) + -x", 0);
+        checkAllTiers("x = 1; x - -(x++)", 0);
+    }
+
+    @Test
+    public void zeroKeepsItsSign() throws Exception {
+        checkAllTiers("0 - t", 0);
+        checkAllTiers("if (t > 0.5) { return t; } 0 - t", 0);
+        checkAllTiers("-0 - t", 0);
+        checkAllTiers("-t + 0", 0);
+        checkAllTiers("-t + -0", 0);
+        checkAllTiers("-t - 0", 0);
+    }
+
+    /**
+     * Evaluates the expression without optimizations and then in every tier and compares the results bit by bit.
+     */
+    private static void checkAllTiers(String source, double t) throws Exception {
+        final double expected = Expression.compile(source, "t").evaluate(t);
+
+        final Expression optimized = Expression.compile(source, "t");
+        optimized.optimize();
+        assertSameValue("tree", source, expected, optimized.evaluate(t));
+
+        final Expression block = Expression.compile(source, "t");
+        block.optimize();
+        final double[] out = new double[1];
+        block.evaluateBlock(new double[] { t }, out, 0, 1);
+        assertSameValue("block", source, expected, out[0]);
+
+        final Expression bytecode = Expression.compile(source, "t");
+        bytecode.optimize();
+        bytecode.compileToBytecode();
+        assertSameValue("bytecode", source, expected, bytecode.evaluate(t));
+
+        final Expression registers = Expression.compile(source, "t");
+        registers.optimize();
+        registers.compileToRegisters();
+        assertSameValue("registers", source, expected, registers.evaluate(t));
+    }
+
+    private static void assertSameValue(String tier, String source, double expected, double actual) {
+        // Compares the bits, since assertEquals treats 0.0 and -0.0 as equal
+        assertEquals(tier + ": " + source + " was " + actual + " instead of " + expected, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Expression Parser
+ * Copyright (C) 2011, 2012, 2013 TomyLobo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.tomylobo.expression.runtime;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eu.tomylobo.expression.Expression;
+
+/**
+ * Checks that {@link RangeAnalysis#isConstant()} only holds if evaluating can't fail.
+ *
+ * @author TomyLobo
+ */
+public class RangeAnalysisTest {
+    @Test
+    public void strayBreakIsNotConstant() throws Exception {
+        assertFalse(analyze("if (t > 0.3) { break; } 1", 0.5, 0.6).isConstant());
+        assertFalse(analyze("if (t > 0.3) { continue; } 1", 0.5, 0.6).isConstant());
+        assertFalse(analyze("switch (1) { case 1: continue; } 1", 0.5, 0.6).isConstant());
+    }
+
+    @Test
+    public void breakOutOfSwitchIsConstant() throws Exception {
+        assertTrue(analyze("switch (1) { case 1: x = 2; break; } 1", 0.5, 0.6).isConstant());
+    }
+
+    private static RangeAnalysis analyze(String source, double tMin, double tMax) throws Exception {
+        final Expression expression = Expression.compile(source, "t");
+        return expression.analyzeRange(expression.newFrame(), tMin, tMax);
+    }
+}